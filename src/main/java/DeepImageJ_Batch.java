@@ -0,0 +1,281 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import deepimagej.BatchProcessor;
+import deepimagej.DeepImageJ;
+import deepimagej.ModelCache;
+import deepimagej.TileScheduler;
+import deepimagej.tools.ArrayOperations;
+import deepimagej.tools.BlendedReconstructor;
+import deepimagej.tools.DijTensor;
+import deepimagej.tools.Log;
+import deepimagej.tools.ModelLoader;
+import ij.IJ;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+import io.bioimage.modelrunner.engine.EngineInfo;
+import io.bioimage.modelrunner.model.Model;
+
+/**
+ * Plugin that applies a model to every image of a folder and saves the outputs in
+ * another folder. The model is loaded only once and reading, processing and writing
+ * of the images are overlapped. In a macro:
+ * run("DeepImageJ Batch", "model=[name] format=Tensorflow preprocessing=[no preprocessing]
+ * postprocessing=[no postprocessing] tile=auto input=/path/in output=/path/out io_threads=2 queue_depth=4 logging=Normal");
+ */
+public class DeepImageJ_Batch implements PlugIn {
+
+	static private String	path	= IJ.getDirectory("imagej") + File.separator + "models" + File.separator;
+	private static final String JARS_DIRECTORY = new File("engines").getAbsolutePath();
+	private Log				log		= new Log();
+
+	public static void main(String[] arg) {
+		new DeepImageJ_Batch().run("");
+	}
+
+	@Override
+	public void run(String arg0) {
+		HashMap<String, DeepImageJ> dps = DeepImageJ.list(path, false, null);
+		List<String> names = new ArrayList<String>();
+		HashMap<String, DeepImageJ> byName = new HashMap<String, DeepImageJ>();
+		for (DeepImageJ dp : dps.values()) {
+			if (!dp.params.completeConfig || dp.params.incorrectSha256 || !dp.presentYaml)
+				continue;
+			names.add(dp.getName());
+			byName.put(dp.getName(), dp);
+		}
+		if (names.size() == 0) {
+			IJ.error("No models found at: " + DeepImageJ.cleanPathStr(path));
+			return;
+		}
+		names.sort(null);
+		
+		GenericDialog dlg = new GenericDialog("DeepImageJ Batch");
+		dlg.addChoice("Model", names.toArray(new String[0]), names.get(0));
+		dlg.addChoice("Format", new String[] {"Tensorflow", "Pytorch", "Onnx"}, "Tensorflow");
+		dlg.addStringField("Preprocessing", "no preprocessing", 30);
+		dlg.addStringField("Postprocessing", "no postprocessing", 30);
+		dlg.addStringField("Tile", "auto", 30);
+		dlg.addDirectoryField("Input", "");
+		dlg.addDirectoryField("Output", "");
+		dlg.addNumericField("IO_threads", Prefs.get(BatchProcessor.IO_THREADS_KEY, 2), 0);
+		dlg.addNumericField("Queue_depth", Prefs.get(BatchProcessor.DEPTH_KEY, 4), 0);
+		dlg.addChoice("Logging", new String[] {"Mute", "Normal", "Debug"}, "Normal");
+		dlg.showDialog();
+		if (dlg.wasCanceled())
+			return;
+		DeepImageJ dp = byName.get(dlg.getNextChoice());
+		String format = dlg.getNextChoice().toLowerCase();
+		String preprocessing = dlg.getNextString().trim();
+		String postprocessing = dlg.getNextString().trim();
+		String tile = dlg.getNextString().trim();
+		File inputDir = new File(dlg.getNextString());
+		File outputDir = new File(dlg.getNextString());
+		int ioThreads = (int) dlg.getNextNumber();
+		int depth = (int) dlg.getNextNumber();
+		String logging = dlg.getNextChoice().toLowerCase();
+		log.setLevel(logging.equals("debug") ? 2 : (logging.equals("normal") ? 1 : 0));
+		
+		if (!inputDir.isDirectory()) {
+			IJ.error("The input folder does not exist:\n" + inputDir.getAbsolutePath());
+			return;
+		}
+		if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+			IJ.error("Unable to create the output folder:\n" + outputDir.getAbsolutePath());
+			return;
+		}
+		List<File> files = listImages(inputDir);
+		if (files.size() == 0) {
+			IJ.error("No images found at:\n" + inputDir.getAbsolutePath());
+			return;
+		}
+		Prefs.set(BatchProcessor.IO_THREADS_KEY, ioThreads);
+		Prefs.set(BatchProcessor.DEPTH_KEY, depth);
+		
+		dp.params.firstPreprocessing = null;
+		dp.params.secondPreprocessing = null;
+		dp.params.firstPostprocessing = null;
+		dp.params.secondPostprocessing = null;
+		String[] pre = getProcessingFiles(dp, preprocessing, "no preprocessing");
+		dp.params.firstPreprocessing = pre[0];
+		dp.params.secondPreprocessing = pre[1];
+		String[] post = getProcessingFiles(dp, postprocessing, "no postprocessing");
+		dp.params.firstPostprocessing = post[0];
+		dp.params.secondPostprocessing = post[1];
+		
+		boolean autoTile = tile.toLowerCase().equals("auto");
+		DijTensor inp = dp.params.inputList.get(0);
+		int[] patch;
+		if (autoTile) {
+			// The tile is planned for each image, until then use the smallest tile allowed
+			patch = inp.minimum_size.clone();
+			if (inp.form.indexOf("B") != -1)
+				patch[inp.form.indexOf("B")] = 1;
+		} else {
+			patch = ArrayOperations.getPatchSize(DijTensor.getWorkingDims(inp.form), inp.form, tile, false);
+		}
+		if (patch == null) {
+			IJ.error("Please, introduce the tile size as integers separated by commas or 'auto'.");
+			return;
+		}
+		inp.recommended_patch = patch;
+		dp.params.tileWorkers = (int) Prefs.get(TileScheduler.WORKERS_KEY, TileScheduler.getDefaultWorkers());
+		dp.params.tileQueueSize = (int) Prefs.get(TileScheduler.QUEUE_KEY, dp.params.tileQueueSize);
+		dp.params.batchSize = (int) Prefs.get(TileScheduler.BATCH_KEY, 0);
+		dp.params.memoryFraction = Prefs.get(TileScheduler.MEMORY_KEY, dp.params.memoryFraction);
+		dp.params.tensorViews = Prefs.get(TileScheduler.VIEWS_KEY, dp.params.tensorViews);
+		dp.params.blending = Prefs.get(BlendedReconstructor.WINDOW_KEY, dp.params.blending).toLowerCase();
+		
+		if (!loadModel(dp, format))
+			return;
+		long start = System.nanoTime();
+		try {
+			BatchProcessor processor = new BatchProcessor(dp, log, outputDir, ioThreads, depth, autoTile);
+			int processed = processor.run(files);
+			String msg = "DeepImageJ Batch: " + processed + " of " + files.size() + " images processed in "
+						+ String.format("%.1f", (System.nanoTime() - start) / 1e9) + " s";
+			IJ.log(msg);
+		} catch (InterruptedException ex) {
+			IJ.log("DeepImageJ Batch: execution interrupted");
+		} finally {
+			ModelCache.release(dp.getModel());
+			dp.setModel(null);
+		}
+	}
+	
+	/*
+	 * Load the model with the weights of the format selected, or take it from the
+	 * cache if it was already loaded
+	 */
+	private boolean loadModel(DeepImageJ dp, String format) {
+		dp.params.framework = format;
+		String weightsFormat;
+		if (format.equals("pytorch")) {
+			weightsFormat = "torchscript";
+		} else if (format.equals("tensorflow")) {
+			weightsFormat = "tensorflow_saved_model_bundle";
+		} else {
+			weightsFormat = "onnx";
+		}
+		String engineSelected = dp.params.weights.getEnginesListWithVersions().stream()
+				.filter(i -> i.startsWith(weightsFormat)).findFirst().orElse(null);
+		String source;
+		String engine;
+		String version;
+		try {
+			engine = dp.params.weights.getWeightsByIdentifier(engineSelected).getWeightsFormat();
+			source = dp.params.weights.getWeightsByIdentifier(engineSelected).getSource();
+			source = dp.getPath() + File.separator + new File(source).getName();
+			version = dp.params.weights.getWeightsByIdentifier(engineSelected).getTrainingVersion();
+		} catch (IOException e) {
+			IJ.error("The selected model does not contains source file for the selected weights.");
+			return false;
+		}
+		String cacheKey = ModelCache.getKey(source, engine, version);
+		Model cachedModel = ModelCache.acquire(cacheKey);
+		if (cachedModel != null) {
+			dp.setModel(cachedModel);
+			return true;
+		}
+		try {
+			EngineInfo engineInfo = EngineInfo.defineCompatibleDLEngineCPU(engine, version, JARS_DIRECTORY);
+			if (engineInfo == null)
+				throw new Exception("No compatible engine installed." + System.lineSeparator()
+									+ "Required engine: " + engine + " " + version);
+			Model model = Model.createDeepLearningModel(dp.getPath(), source, engineInfo, getClass().getClassLoader());
+			if (!new ModelLoader(dp, model, null, false, false, false).call()) {
+				IJ.error("Unable to load model");
+				return false;
+			}
+		} catch (Exception e) {
+			IJ.error("Error loading " + engine + System.lineSeparator() + e.toString());
+			return false;
+		}
+		ModelCache.add(cacheKey, dp.getModel());
+		return true;
+	}
+	
+	/*
+	 * Get the paths to the processing files, written as [file1,file2] 
+	 */
+	private static String[] getProcessingFiles(DeepImageJ dp, String processing, String none) {
+		String[] files = new String[2];
+		if (processing.equals(none) || processing.equals(""))
+			return files;
+		if (!processing.startsWith("["))
+			processing = "[" + processing;
+		if (!processing.endsWith("]"))
+			processing = processing + "]";
+		String[] procArray = processing.substring(1, processing.length() - 1).split(",");
+		files[0] = dp.getPath() + File.separator + procArray[0].trim();
+		if (procArray.length > 1)
+			files[1] = dp.getPath() + File.separator + procArray[1].trim();
+		return files;
+	}
+	
+	/*
+	 * Files of the folder sorted by name, ignoring hidden files and folders
+	 */
+	private static List<File> listImages(File dir) {
+		List<File> files = new ArrayList<File>();
+		File[] content = dir.listFiles();
+		if (content == null)
+			return files;
+		Arrays.sort(content);
+		for (File f : content) {
+			if (f.isFile() && !f.isHidden() && !f.getName().startsWith("."))
+				files.add(f);
+		}
+		return files;
+	}
+
+}
@@ -53,6 +53,7 @@ import java.awt.event.ActionListener;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Vector;
 
 import ij.IJ;
@@ -66,8 +67,12 @@ import deepimagej.validation.AbstractLoss;
 import deepimagej.validation.Bce;
 import deepimagej.validation.CategoricalHinge;
 import deepimagej.validation.Composed;
+import deepimagej.validation.Dice;
 import deepimagej.validation.DiceLoss;
+import deepimagej.validation.FusedEvaluator;
+import deepimagej.validation.GaussianSSIM;
 import deepimagej.validation.Hinge;
+import deepimagej.validation.InstanceF1;
 import deepimagej.validation.Jaccard;
 import deepimagej.validation.KLD;
 import deepimagej.validation.LAP;
@@ -75,6 +80,7 @@ import deepimagej.validation.Log_Cosh;
 import deepimagej.validation.MAE;
 import deepimagej.validation.MAPE;
 import deepimagej.validation.MSLE;
+import deepimagej.validation.MSSSIM;
 import deepimagej.validation.RMSE;
 import deepimagej.validation.RegressSNR;
 import deepimagej.validation.NormL1;
@@ -102,7 +108,7 @@ public class DeepImageJ_ImageValidation implements ActionListener,PlugIn, ItemLi
 	Panel settings = new Panel();
 	Button button = new Button("Advanced");
 	private Constants setting = new Constants();
-	public int columns_function = 4 , rows_function = 6;
+	public int columns_function = 4 , rows_function = 7;
 	public int columns_text = 40 , rows_text = 3;
 	
 	
@@ -131,7 +137,11 @@ public class DeepImageJ_ImageValidation implements ActionListener,PlugIn, ItemLi
 		functions.add(new PSNR());
 		functions.add(new DiceLoss());
 		functions.add(new Jaccard());
+		functions.add(new Dice());
+		functions.add(new InstanceF1());
 		functions.add(new SSIM());
+		functions.add(new GaussianSSIM());
+		functions.add(new MSSSIM());
 		functions.add(new RegressSNR());
 		functions.add(new LAP());
 		// TODO decide what to do with function composition functions.add(new Composed());
@@ -362,6 +372,12 @@ public class DeepImageJ_ImageValidation implements ActionListener,PlugIn, ItemLi
 		
 		
 		ArrayList<Double> loss1_comp = null, loss2_comp = null;
+		// Evaluate all the pixel-wise losses (also the ones used by the composed function) in a single pass
+		ArrayList<AbstractLoss> needed = new ArrayList<AbstractLoss>();
+		for(AbstractLoss function : functions)
+			if (function.getSelected() || function.getName()== setting.title1 || function.getName()== setting.title2)
+				needed.add(function);
+		HashMap<AbstractLoss, ArrayList<Double>> fused = FusedEvaluator.compute(img1, img2, needed);
 		//call the classes of loss function to get the results
 		for(AbstractLoss function : functions) {
 			if (function.getSelected()) { 
@@ -370,7 +386,7 @@ public class DeepImageJ_ImageValidation implements ActionListener,PlugIn, ItemLi
 					losses= function.compose(loss1_comp, setting.w1_composed, loss2_comp, setting.w2_composed);
 				}
 				else {
-					losses= function.run(img1, img2,setting);
+					losses= fused.containsKey(function) ? fused.get(function) : function.run(img1, img2,setting);
 					if(function.getName()== setting.title1) {
 						loss1_comp=losses;
 					}
@@ -411,10 +427,10 @@ public class DeepImageJ_ImageValidation implements ActionListener,PlugIn, ItemLi
 			else {
 				
 				if(function.getName()== setting.title1) {
-					loss1_comp = function.run(img1, img2,setting);
+					loss1_comp = fused.containsKey(function) ? fused.get(function) : function.run(img1, img2,setting);
 				}
 				else if(function.getName()== setting.title2) {
-					loss2_comp = function.run(img1, img2,setting);
+					loss2_comp = fused.containsKey(function) ? fused.get(function) : function.run(img1, img2,setting);
 				}
 			}
 		}
@@ -74,13 +74,18 @@ import deepimagej.DeepImageJ;
 import deepimagej.Constants;
 import deepimagej.RunnerProgress;
 import deepimagej.RunnerDL;
+import deepimagej.TilePlanner;
+import deepimagej.TileScheduler;
 import deepimagej.DeepLearningModel;
+import deepimagej.ModelCache;
+import deepimagej.ModelPrewarmer;
 import deepimagej.components.BorderPanel;
 import deepimagej.components.Hyperlink;
 import deepimagej.exceptions.MacrosError;
 import deepimagej.modelrunner.EngineInstaller;
 import deepimagej.processing.HeadlessProcessing;
 import deepimagej.tools.ArrayOperations;
+import deepimagej.tools.BlendedReconstructor;
 import deepimagej.tools.DijRunnerPostprocessing;
 import deepimagej.tools.DijRunnerPreprocessing;
 import deepimagej.tools.DijTensor;
@@ -91,6 +96,7 @@ import deepimagej.tools.SystemUsage;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.Macro;
+import ij.Prefs;
 import ij.WindowManager;
 import ij.gui.GenericDialog;
 import ij.plugin.PlugIn;
@@ -410,6 +416,8 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable, ActionLis
 		dlg.showDialog();
 		
 		if (dlg.wasCanceled()) {
+			// Discard the model loaded speculatively
+			ModelPrewarmer.discard();
 			// Close every model that has been loaded
 			if (dps == null) {
 				return null;
@@ -526,6 +534,10 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable, ActionLis
 			// Get the axes given by the yaml without batch
 			String[] dim = DijTensor.getWorkingDims(tensorForm);
 			patchString = ArrayOperations.optimalPatch(haloVals, dim, step, min, dp.params.allowPatching);
+			// Choose the tile that fits in the memory with the smallest cost
+			TilePlanner plan = planTiles(dp, imp);
+			if (plan != null)
+				patchString = plan.getPatchString();
 		} else if (testMode && !isMacro) {
 			// If no image has been displayed there is an error
 			String err = "No test image has been found in the model folder.\n"
@@ -632,6 +644,8 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable, ActionLis
 			}
 		}
 
+		// Batch size chosen together with the tile size, 0 if the tile size was given
+		int plannedBatch = 0;
 		// TODO generalise for several image inputs
 		for (DijTensor inp: dp.params.inputList) {
 			String tensorForm = inp.form;
@@ -651,6 +665,19 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable, ActionLis
 				return;
 			}
 			
+			// In macros, 'tile=auto' lets the plugin choose the tile that fits in the memory
+			if (patchString.trim().toLowerCase().equals("auto") && dp.params.allowPatching) {
+				TilePlanner plan = planTiles(dp, imp == null ? WindowManager.getCurrentImage() : imp);
+				if (plan == null) {
+					IJ.error("No tile size could be found for the image with the memory available.\n"
+							+ "Please, introduce the tile size manually.");
+					// Relaunch the plugin
+					closeAndReopenPlugin(imp);
+					return;
+				}
+				patchString = plan.getPatchString();
+				plannedBatch = plan.batch;
+			}
 			patch = ArrayOperations.getPatchSize(dims, inp.form, patchString, patchEditable);
 			if (patch == null) {
 				IJ.error("Please, introduce the patch size as integers separated by commas.\n"
@@ -691,6 +718,20 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable, ActionLis
 			}
 		}
 		dp.params.inputList.get(0).recommended_patch = patch;
+		// Number of threads and queue size used to process the patches. They can be
+		// changed with: call("ij.Prefs.set", "deepimagej.tile_workers", "8");
+		dp.params.tileWorkers = (int) Prefs.get(TileScheduler.WORKERS_KEY, TileScheduler.getDefaultWorkers());
+		dp.params.tileQueueSize = (int) Prefs.get(TileScheduler.QUEUE_KEY, dp.params.tileQueueSize);
+		// Number of patches processed at once by models with a batch axis, 0 to
+		// estimate it from the memory available
+		dp.params.batchSize = (int) Prefs.get(TileScheduler.BATCH_KEY, 0);
+		if (dp.params.batchSize <= 0)
+			dp.params.batchSize = plannedBatch;
+		dp.params.memoryFraction = Prefs.get(TileScheduler.MEMORY_KEY, dp.params.memoryFraction);
+		// Whether the input tensors wrap the pixels of the patches or copy them
+		dp.params.tensorViews = Prefs.get(TileScheduler.VIEWS_KEY, dp.params.tensorViews);
+		// Window used to blend the overlapping patches (none, linear, cosine or gaussian)
+		dp.params.blending = Prefs.get(BlendedReconstructor.WINDOW_KEY, dp.params.blending).toLowerCase();
 
 		ExecutorService service = Executors.newFixedThreadPool(1);
 		RunnerProgress rp = null;
@@ -710,6 +751,21 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable, ActionLis
 		
 		EngineInfo engineInfo;
 		Model model;
+		// If the model has already been loaded by a previous execution, use it directly
+		String cacheKey = ModelCache.getKey(source, engine, version);
+		// If the model is being loaded in the background, wait for it
+		ModelPrewarmer.await(cacheKey);
+		Model cachedModel = ModelCache.acquire(cacheKey);
+		if (cachedModel != null) {
+			dp.setModel(cachedModel);
+			if (rp != null)
+				rp.setService(null);
+			else
+				System.out.println("[DEBUG] Model already loaded");
+			calculateImage(imp, rp, service);
+			service.shutdown();
+			return;
+		}
 		try {
 			engineInfo = EngineInfo.defineCompatibleDLEngineCPU(engine, version, JARS_DIRECTORY);
 			if (engineInfo == null)
@@ -762,6 +818,8 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable, ActionLis
 			return;
 		}
 		
+		// Keep the model loaded for the following executions
+		ModelCache.add(cacheKey, dp.getModel());
 		if (rp != null)
 			rp.setService(null);
 
@@ -806,10 +864,14 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable, ActionLis
 			// check that the dp of the selected model 
 			// is valid
 			boolean goodDp = isGoodDp(dp, ind);
-			if (!goodDp)
+			if (!goodDp) {
+				ModelPrewarmer.discard();
 				return;
+			}
 			// Set the DL engine
 			setDLEngine(dp);
+			// Start loading the model in the background while the user reviews the parameters
+			prewarmModel(dp);
 			// Set pre- and post-processing files as options
 			setProcessingFiles(dp);
 			// Load the model information in the textbox
@@ -835,6 +897,10 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable, ActionLis
 			// Get the axes given by the yaml without batch
 			String[] dim = DijTensor.getWorkingDims(tensorForm);
 			String optimalPatch = ArrayOperations.optimalPatch(haloVals, dim, step, min, testSize, dp.params.allowPatching);
+			// If there is an image open, suggest the tile that fits in the memory with the smallest cost
+			TilePlanner plan = planTiles(dp, WindowManager.getCurrentImage());
+			if (plan != null)
+				optimalPatch = plan.getPatchString();
 			// Update the info shown in the GUI
 			info.setText("");
 			info.setCaretPosition(0);
@@ -862,6 +928,61 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable, ActionLis
 		}
 	}
 	
+	/**
+	 * Load the engine and the weights of the selected model in a background thread,
+	 * so they are ready when the user presses OK. Models with several weights 
+	 * formats are not prewarmed, as the format has not been chosen yet.
+	 * @param dp: model selected
+	 */
+	private void prewarmModel(DeepImageJ dp) {
+		String format;
+		if (!loadedEngine || !ModelPrewarmer.isEnabled()) {
+			return;
+		} else if (dp.params.framework.equals("pytorch")) {
+			format = "torchscript";
+		} else if (dp.params.framework.equals("tensorflow")) {
+			format = "tensorflow_saved_model_bundle";
+		} else if (dp.params.framework.equals("onnx")) {
+			format = "onnx";
+		} else {
+			ModelPrewarmer.discard();
+			return;
+		}
+		String engineSelected = dp.params.weights.getEnginesListWithVersions().stream()
+				.filter(i -> i.startsWith(format)).findFirst().orElse(null);
+		try {
+			String engine = dp.params.weights.getWeightsByIdentifier(engineSelected).getWeightsFormat();
+			String source = dp.params.weights.getWeightsByIdentifier(engineSelected).getSource();
+			source = dp.getPath() + File.separator + new File(source).getName();
+			String version = dp.params.weights.getWeightsByIdentifier(engineSelected).getTrainingVersion();
+			ModelPrewarmer.prewarm(dp, source, engine, version, JARS_DIRECTORY, getClass().getClassLoader());
+		} catch (Exception e) {
+			// The model is loaded when the user presses OK and the error is shown then
+			ModelPrewarmer.discard();
+		}
+	}
+	
+	/**
+	 * Find the tile size and batch size with the smallest cost to process the image
+	 * with the memory budget defined by the user. The budget is a fraction of the
+	 * maximum memory of the JVM not used by the input and output images and can be
+	 * changed with:
+	 * call("ij.Prefs.set", "deepimagej.memory_fraction", "0.5");
+	 * The parameters of the model are not modified.
+	 * @param dp: model
+	 * @param imp: image that is going to be processed
+	 * @return the plan for the image or null if the model cannot be tiled or there is no image
+	 */
+	public static TilePlanner planTiles(DeepImageJ dp, ImagePlus imp) {
+		if (imp == null)
+			return null;
+		double fraction = Prefs.get(TileScheduler.MEMORY_KEY, dp.params.memoryFraction);
+		int batch = (int) Prefs.get(TileScheduler.BATCH_KEY, 0);
+		int queue = (int) Prefs.get(TileScheduler.QUEUE_KEY, dp.params.tileQueueSize);
+		long budget = TilePlanner.getMemoryBudget(fraction, TilePlanner.getResidentBytes(imp, dp.params));
+		return TilePlanner.plan(imp, dp.params, batch, queue, budget);
+	}
+	
 	/**
 	 * Set the model optimal tile dimensions for the open image. If there
 	 * is no open image, the testing tile size will be displayed.
@@ -1189,7 +1310,8 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable, ActionLis
 		if (!headless && !isMacro && !testMode)
 			dlg.dispose();
 		if (dp != null && dp.getModel() != null) {
-			dp.getModel().closeModel();
+			// The model is only closed if it is not kept in the cache
+			ModelCache.release(dp.getModel());
 			dp.setModel(null);
 		}
 		this.dp = null;
@@ -0,0 +1,317 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import deepimagej.tools.DijRunnerPostprocessing;
+import deepimagej.tools.DijRunnerPreprocessing;
+import deepimagej.tools.DijTensor;
+import deepimagej.tools.Log;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.macro.Interpreter;
+import ij.measure.ResultsTable;
+
+/**
+ * Class that applies a model to every image of a folder and saves the results in
+ * another folder. Reading the images from disk and writing the outputs run in a pool
+ * of I/O threads at the same time as the processing of other images. Preprocessing, 
+ * inference and postprocessing run one image at a time in the calling thread, as the
+ * macros work on the images of the ImageJ workspace, the model shows its outputs in it
+ * and all of them modify the parameters of the model. The Deep Learning engines are
+ * not thread safe either.
+ * The number of images read in advance and waiting to be written is bounded by the
+ * queue depth, so the memory used does not depend on the number of images of the folder.
+ * The model has to be loaded before running the batch and it is used for every image.
+ */
+public class BatchProcessor {
+	
+	/*
+	 * Key of the ImageJ preferences used to define the number of threads that 
+	 * read and write images
+	 */
+	public static final String IO_THREADS_KEY = "deepimagej.batch_io_threads";
+	/*
+	 * Key of the ImageJ preferences used to define the number of images that can 
+	 * wait between two stages
+	 */
+	public static final String DEPTH_KEY = "deepimagej.batch_queue_depth";
+	
+	private DeepImageJ		dp;
+	private Log 			log;
+	private File			outputDir;
+	/*
+	 * Number of threads used to read and to write images
+	 */
+	private int				ioThreads;
+	/*
+	 * Maximum number of images waiting between two stages
+	 */
+	private int				depth;
+	/*
+	 * Whether the tile size is chosen for each image or it is fixed
+	 */
+	private boolean			autoTile;
+	/*
+	 * Number of images that could not be processed
+	 */
+	private int				failed = 0;
+
+	public BatchProcessor(DeepImageJ dp, Log log, File outputDir, int ioThreads, int depth, boolean autoTile) {
+		this.dp = dp;
+		this.log = log;
+		this.outputDir = outputDir;
+		this.ioThreads = Math.max(1, ioThreads);
+		this.depth = Math.max(1, depth);
+		this.autoTile = autoTile;
+	}
+	
+	/**
+	 * Apply the model to every file of the list. The images that cannot be 
+	 * processed are reported in the log window and skipped.
+	 * @param files
+	 * 	images to be processed
+	 * @return number of images processed correctly
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public int run(List<File> files) throws InterruptedException {
+		ExecutorService io = Executors.newFixedThreadPool(ioThreads);
+		ArrayDeque<Future<ImagePlus>> read = new ArrayDeque<Future<ImagePlus>>();
+		ArrayDeque<PendingWrite> written = new ArrayDeque<PendingWrite>();
+		// Outputs of the model are not displayed, they are only saved
+		boolean batchMode = Interpreter.isBatchMode();
+		Interpreter.setBatchMode(true);
+		failed = 0;
+		int submitted = 0;
+		try {
+			for (int i = 0; i < files.size(); i ++) {
+				// Keep the reading 'depth' images ahead
+				while (submitted < files.size() && submitted < i + depth) {
+					final File file = files.get(submitted ++);
+					read.add(io.submit(() -> IJ.openImage(file.getAbsolutePath())));
+				}
+				String name = files.get(i).getName();
+				IJ.showStatus("DeepImageJ Batch: " + name + " (" + (i + 1) + "/" + files.size() + ")");
+				IJ.showProgress(i, files.size());
+				ImagePlus imp = null;
+				try {
+					imp = read.poll().get();
+				} catch (ExecutionException ex) {
+					reportError(name, ex.getCause());
+					continue;
+				}
+				if (imp == null) {
+					reportError(name, null);
+					continue;
+				}
+				HashMap<String, Object> inputsMap = null;
+				try {
+					inputsMap = new DijRunnerPreprocessing(dp, null, imp, true, false).call();
+				} catch (Exception ex) {
+					reportError(name, ex);
+					continue;
+				}
+				if (inputsMap == null) {
+					reportError(name, null);
+					continue;
+				}
+				HashMap<String, Object> output = infer(inputsMap);
+				closeImages(inputsMap);
+				if (output == null) {
+					reportError(name, null);
+					continue;
+				}
+				HashMap<String, Object> fin = new DijRunnerPostprocessing(dp, null, output).call();
+				if (fin == null) {
+					closeImages(output);
+					reportError(name, null);
+					continue;
+				}
+				// The outputs leave the workspace before the next image is processed
+				detachImages(output);
+				detachImages(fin);
+				String baseName = getBaseName(files.get(i));
+				written.add(new PendingWrite(name, io.submit(() -> save(fin, baseName)), output, fin));
+				// Do not accumulate more outputs than the queue depth
+				while (written.size() > depth)
+					waitFor(written.poll());
+			}
+			while (!written.isEmpty())
+				waitFor(written.poll());
+		} finally {
+			for (Future<ImagePlus> f : read)
+				f.cancel(true);
+			for (PendingWrite w : written)
+				w.saved.cancel(true);
+			io.shutdown();
+			Interpreter.setBatchMode(batchMode);
+			IJ.showProgress(1.0);
+		}
+		return files.size() - failed;
+	}
+	
+	/**
+	 * Number of images that could not be processed in the last run
+	 * @return number of images with errors
+	 */
+	public int getFailed() {
+		return failed;
+	}
+	
+	/*
+	 * Run the model on the preprocessed inputs. If the tile size is automatic, it
+	 * is chosen for the size of the image
+	 */
+	private HashMap<String, Object> infer(HashMap<String, Object> inputsMap) {
+		if (autoTile && dp.params.allowPatching) {
+			for (DijTensor tensor : dp.params.inputList) {
+				Object im = inputsMap.get(tensor.name);
+				if (!tensor.tensorType.contains("image") || !(im instanceof ImagePlus))
+					continue;
+				TilePlanner plan = TilePlanner.plan((ImagePlus) im, dp.params);
+				if (plan == null) {
+					IJ.log("DeepImageJ Batch: no tile size could be found for the image with the memory available");
+					return null;
+				}
+				tensor.recommended_patch = plan.patch;
+				break;
+			}
+		}
+		return new RunnerDL(dp, null, inputsMap, log).call();
+	}
+	
+	/*
+	 * Wait until the outputs of an image have been saved and free them
+	 */
+	private void waitFor(PendingWrite w) throws InterruptedException {
+		try {
+			if (!w.saved.get())
+				reportError(w.name, null);
+		} catch (ExecutionException ex) {
+			reportError(w.name, ex.getCause());
+		} finally {
+			closeImages(w.fin);
+			closeImages(w.output);
+		}
+	}
+	
+	/*
+	 * Save every output image as tif and every table as csv, with the name of
+	 * the input image followed by the name of the output
+	 */
+	private boolean save(HashMap<String, Object> outputs, String baseName) {
+		boolean saved = true;
+		for (String key : outputs.keySet()) {
+			Object out = outputs.get(key);
+			String fileName = new File(outputDir, baseName + "_" + key.replaceAll("[^A-Za-z0-9_\\-]", "_")).getAbsolutePath();
+			if (out instanceof ImagePlus) {
+				ImagePlus imp = (ImagePlus) out;
+				saved = IJ.saveAsTiff(imp, fileName + ".tif") && saved;
+			} else if (out instanceof ResultsTable) {
+				saved = ((ResultsTable) out).save(fileName + ".csv") && saved;
+			}
+		}
+		return saved;
+	}
+	
+	private void reportError(String name, Throwable cause) {
+		failed ++;
+		String msg = "DeepImageJ Batch: unable to process " + name;
+		if (cause != null)
+			msg += " (" + cause.toString() + ")";
+		IJ.log(msg);
+	}
+	
+	/*
+	 * Remove the images from the batch mode workspace, so the macros and the model
+	 * of the following images cannot select them
+	 */
+	private static void detachImages(HashMap<String, Object> map) {
+		for (Object im : map.values()) {
+			if (im instanceof ImagePlus)
+				Interpreter.removeBatchModeImage((ImagePlus) im);
+		}
+	}
+	
+	private static void closeImages(HashMap<String, Object> map) {
+		for (Object im : map.values()) {
+			if (im instanceof ImagePlus) {
+				((ImagePlus) im).changes = false;
+				((ImagePlus) im).close();
+			}
+		}
+	}
+	
+	private static String getBaseName(File file) {
+		String name = file.getName();
+		int extensionInd = name.lastIndexOf('.');
+		return extensionInd == -1 ? name : name.substring(0, extensionInd);
+	}
+	
+	/*
+	 * Outputs of an image being written to disk
+	 */
+	private static class PendingWrite {
+		private String						name;
+		private Future<Boolean>				saved;
+		private HashMap<String, Object>	output;
+		private HashMap<String, Object>	fin;
+		
+		private PendingWrite(String name, Future<Boolean> saved, HashMap<String, Object> output, HashMap<String, Object> fin) {
+			this.name = name;
+			this.saved = saved;
+			this.output = output;
+			this.fin = fin;
+		}
+	}
+}
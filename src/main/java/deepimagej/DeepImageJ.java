@@ -54,8 +54,14 @@ import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 import deepimagej.tools.DijTensor;
@@ -79,6 +85,22 @@ public class DeepImageJ {
 	public String tfName = "tensorflow_saved_model_bundle.zip";
 	
 	public DeepImageJ(String pathModel, String dirname, boolean dev) {
+		this(pathModel, dirname, dev, null);
+	}
+	
+	/**
+	 * Read a model folder. If an index of the models folder is given, the weights are only 
+	 * checked if the folder has changed since the last time it was checked
+	 * @param pathModel
+	 * 	folder that contains the models
+	 * @param dirname
+	 * 	name of the model folder
+	 * @param dev
+	 * 	whether the model is read by the developer plugins
+	 * @param index
+	 * 	index of the models folder, can be null
+	 */
+	public DeepImageJ(String pathModel, String dirname, boolean dev, ModelIndex index) {
 		String p = pathModel + File.separator + dirname + File.separator;
 		this.path = p.replace(File.separator + File.separator, File.separator);
 		// Remove double File separators
@@ -88,12 +110,13 @@ public class DeepImageJ {
 		if (!dev && !(new File(path, "model.yaml").isFile() || new File(path, "rdf.yaml").isFile())) {
 			this.presentYaml = false;
 			this.params = new Parameters(valid, path, dev);
-			this.valid = check(p);
+			this.valid = check(p, index);
 		} else if (dev || new File(path, "model.yaml").isFile() || new File(path, "rdf.yaml").isFile()) {
 			try {
-				this.params = new Parameters(valid, path, dev);
+				// The index keeps the contents of the yaml file, so it is only parsed if the folder changes
+				this.params = new Parameters(valid, path, dev, index == null || dev ? null : index.getYaml(this));
 				this.params.path2Model = this.path;
-				this.valid = check(p);
+				this.valid = check(p, index);
 			} catch (Exception ex) {
 				IJ.log("Unable to read the rdf.yaml specifications file in following folder.\n"
 					+ "Please review that the compulsory fields are not missing.\n"
@@ -155,6 +178,20 @@ public class DeepImageJ {
 		return list;
 	}
 	
+	/**
+	 * Find every model of the models folder. The model folders are read in parallel
+	 * and the result of checking their weights is stored in the {@link ModelIndex} of 
+	 * the models folder, so only the folders that have changed are checked again.
+	 * The developer plugins read the folders one by one, as they might ask the user
+	 * about each model.
+	 * @param pathModels
+	 * 	folder that contains the models
+	 * @param isDeveloper
+	 * 	whether the models are read by the developer plugins
+	 * @param textField
+	 * 	text area where the progress is shown, can be null
+	 * @return the valid models, with the name of their folder as the key
+	 */
 	static public HashMap<String, DeepImageJ> list(String pathModels, boolean isDeveloper, TextArea textField) {
 		HashMap<String, DeepImageJ> list = new HashMap<String, DeepImageJ>();
 		File models = new File(pathModels);
@@ -168,17 +205,31 @@ public class DeepImageJ {
 
 		// FOrmat for the date
 		Date now = new Date(); 
+		ModelIndex index = isDeveloper ? null : ModelIndex.load(pathModels);
+		int nThreads = isDeveloper ? 1 : Math.max(1, Math.min(dirs.length, Runtime.getRuntime().availableProcessors()));
+		ExecutorService service = Executors.newFixedThreadPool(nThreads);
+		List<Future<DeepImageJ>> found = new ArrayList<Future<DeepImageJ>>();
 		for (File dir : dirs) {
 			if (dir.isDirectory()) {
 				String name = dir.getName();
 				if (textField != null)
 					textField.append(" - " + new SimpleDateFormat("HH:mm:ss").format(now) + " -- Looking for a model at: " + name + "\n");
-				DeepImageJ dp = new DeepImageJ(pathModels + File.separator, name, isDeveloper);
+				found.add(service.submit(() -> new DeepImageJ(pathModels + File.separator, name, isDeveloper, index)));
+			}
+		}
+		service.shutdown();
+		for (Future<DeepImageJ> future : found) {
+			try {
+				DeepImageJ dp = future.get();
 				if (dp.valid && dp.params != null) {
 					list.put(dp.dirname, dp);
 				}
+			} catch (InterruptedException | ExecutionException ex) {
+				ex.printStackTrace();
 			}
 		}
+		if (index != null)
+			index.save();
 		return list;
 	}
 
@@ -341,6 +392,23 @@ public class DeepImageJ {
 		}
 	}
 
+	/*
+	 * Check the model folder, or restore the result of the last check from the 
+	 * index if the folder has not changed
+	 */
+	private boolean check(String path, ModelIndex index) {
+		if (index == null || this.developer)
+			return check(path);
+		if (index.restore(this)) {
+			if (params.incorrectSha256)
+				IJ.log("The weights of the model at " + path + " do not coincide with the ones specified in the rdf.yaml (incorrect sha256).");
+			return index.isValid(this);
+		}
+		boolean validModel = check(path);
+		index.store(this, validModel);
+		return validModel;
+	}
+
 	public  boolean check(String path) {
 		File dir = new File(path);
 		if (!dir.exists()) {
@@ -421,7 +489,7 @@ public class DeepImageJ {
 				tfName = modelName;
 				return true;
 			} else if (file.equals(modelName) ) {//&& FileTools.createSHA256(modelFolder.getPath() + File.separator + file).equals(params.tfSha256)) {
-				String sha = FileTools.createSHA256(modelFolder.getPath() + File.separator + file);
+				String sha = FileTools.getSHA256(modelFolder.getPath() + File.separator + file);
 				tfName = modelName;
 				return true;
 			} else if (file.equals(modelName)) {
@@ -438,7 +506,7 @@ public class DeepImageJ {
 		}
 		if (auxPresent && !this.presentYaml) {
 			return true;
-		} else if (auxPresent && FileTools.createSHA256(modelFolder.getPath() + File.separator + auxModelName).equals(params.tfSha256)) {
+		} else if (auxPresent && FileTools.getSHA256(modelFolder.getPath() + File.separator + auxModelName).equals(params.tfSha256)) {
 			return true;
 		} else if (auxPresent) {
 			IJ.log("Zipped Bioimage Model Zoo model at:");
@@ -475,7 +543,7 @@ public class DeepImageJ {
 				if (!this.developer && file.contains(modelName) && !this.presentYaml) {
 					ptName = modelName;
 					return true;
-				} else if (!this.developer && file.contains(modelName) && FileTools.createSHA256(modelFolder.getPath() + File.separator + file).equals(params.ptSha256)) {
+				} else if (!this.developer && file.contains(modelName) && FileTools.getSHA256(modelFolder.getPath() + File.separator + file).equals(params.ptSha256)) {
 					ptName = modelName;
 					return true;
 				} else if (this.developer && file.contains(".pt")) {
@@ -497,7 +565,7 @@ public class DeepImageJ {
 			// try with the default name
 			if (!this.developer && auxPresent && !this.presentYaml) {
 				return true;
-			} else if (!this.developer && auxPresent && FileTools.createSHA256(modelFolder.getPath() + File.separator + auxModelName).equals(params.ptSha256)) {
+			} else if (!this.developer && auxPresent && FileTools.getSHA256(modelFolder.getPath() + File.separator + auxModelName).equals(params.ptSha256)) {
 				return true;
 			} else if (!this.developer && auxPresent) {
 				IJ.log("Zipped Bioimage Model Zoo model at:");
@@ -44,25 +44,33 @@
 
 package deepimagej;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.stream.LongStream;
 
 
+import deepimagej.processing.StandardProcessing.Kernel;
+import deepimagej.processing.StandardProcessing.Normalization;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.process.ImageProcessor;
 import io.bioimage.modelrunner.tensor.Tensor;
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImg;
-import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.planar.PlanarImg;
 import net.imglib2.type.Type;
 import net.imglib2.type.numeric.NumericType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Cast;
+import net.imglib2.util.Fraction;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
@@ -74,42 +82,248 @@ public class ImagePlus2Tensor {
 	// Methods to transform a DJL Pytorch and TF tensors into ImageJ ImagePlus
 	
 	public static < T extends NumericType< T > & RealType< T > >  RandomAccessibleInterval< T > imPlus2tensor(ImagePlus img, String form){
+		return imPlus2tensor(img, form, (Normalization) null);
+	}
+	
+	/**
+	 * Create a tensor from an image applying the normalization of the input to each 
+	 * pixel while it is copied, so the image is read only once and is not modified
+	 * @param img
+	 * 	image that is converted into a tensor
+	 * @param form
+	 * 	axes order of the tensor
+	 * @param norm
+	 * 	normalization applied to the pixels, if null the pixels are copied as they are
+	 * @return the tensor
+	 */
+	public static < T extends NumericType< T > & RealType< T > >  RandomAccessibleInterval< T > imPlus2tensor(ImagePlus img, String form, Normalization norm){
 		// Convert ImagePlus into tensor calling the corresponding
 		// method depending on the dimensions of the required tensor 
 		// Find the number of dimensions of the tensor
 		int[] tensorDimOrder = Tensor.convertToTensorDimOrder(form);
 		
-		// TODO allow different batch sizes
-        // Create a cursor
         int[] tensorDims = getTensorCompleteTensorDimensions(img.getDimensions(), tensorDimOrder);
 		// Find the correspondence between the sequence axes order and
 		// the tensor axes order
 		int[] orderCorrespondence = getSequenceDimOrder(tensorDimOrder);
-		// Make sure the array is written from last dimension to first dimension.
-		// For example, for CYX we first iterate over all the X, then over the Y and then 
-		// over the C
-		int[] auxCounter = new int[5];
-		final ArrayImgFactory< FloatType > factory = new ArrayImgFactory<>(new FloatType());
 		long[] tensorSize = LongStream.range(0, tensorDimOrder.length).map(i -> tensorDims[(int) i]).toArray();
-        final Img< FloatType > tensor = factory.create( tensorSize );
-        Cursor<FloatType> tensorCursor = tensor.cursor();
-        while (tensorCursor.hasNext()) {
-        	tensorCursor.fwd();
-        	long[] position = tensorCursor.positionAsLongArray();
-        	for (int i = 0; i < position.length; i ++) {
-        		auxCounter[i] = (int) position[i];
-        	}
-        	// TODO remove
-        	int[] icyInd = {auxCounter[orderCorrespondence[0]], auxCounter[orderCorrespondence[1]], auxCounter[orderCorrespondence[2]], auxCounter[orderCorrespondence[3]], auxCounter[orderCorrespondence[4]]};
-        	
-        	img.setPositionWithoutUpdate(icyInd[2] + 1, icyInd[3] + 1, icyInd[4] + 1);
-        	ImageProcessor ip = img.getProcessor();
-        	float val = ip.getPixelValue(icyInd[0], icyInd[1]);
-        	tensorCursor.get().set(val);
+        final ArrayImg< FloatType, FloatArray > tensor = ArrayImgs.floats( tensorSize );
+        float[] data = tensor.update(null).getCurrentStorageArray();
+        // Copy the image plane by plane directly into the array that backs the tensor
+        Kernel[][] kernels = norm == null ? null : norm.getKernels(img);
+        int[] strides = getImageStrides(tensorDims, orderCorrespondence);
+        // ImageJ axes that are not in the tensor are only read at their first position
+        for (int i = 2; i < strides.length; i ++) {
+        	int axis = i;
+        	if (Arrays.stream(tensorDimOrder).noneMatch(dd -> dd == axis))
+        		strides[i] = 0;
         }
+        copyImageToArray(img, data, strides, kernels);
 		return Cast.unchecked(tensor);
     }
 	
+	/**
+	 * Create a tensor from an image, wrapping the pixel arrays of the image instead of 
+	 * copying them whenever it is possible. Only 32-bit images can be wrapped, for 
+	 * any other type the image is copied into a new float tensor.
+	 * @param img
+	 * 	image that is converted into a tensor
+	 * @param form
+	 * 	axes order of the tensor
+	 * @param allowView
+	 * 	whether the tensor can be a view of the pixels of the image or has to be copied
+	 * @return the tensor
+	 */
+	public static < T extends NumericType< T > & RealType< T > >  RandomAccessibleInterval< T > imPlus2tensor(ImagePlus img, String form, boolean allowView){
+		if (!allowView || img.getBitDepth() != 32)
+			return imPlus2tensor(img, form);
+		return Cast.unchecked(wrapImagePlus(img, form));
+	}
+	
+	/**
+	 * Wrap the float planes of an image as an ImgLib2 {@link PlanarImg} and permute its axes
+	 * to follow the axes order of the tensor. No pixel is copied, so changes on the 
+	 * image are visible in the tensor. ImageJ axes that are not in the tensor are sliced
+	 * at their first position, as done when the image is copied.
+	 * @param img
+	 * 	32-bit image to be wrapped
+	 * @param form
+	 * 	axes order of the tensor
+	 * @return a view of the image with the axes order of the tensor
+	 */
+	public static RandomAccessibleInterval<FloatType> wrapImagePlus(ImagePlus img, String form) {
+		ImageStack stack = img.getStack();
+		List<FloatArray> planes = new ArrayList<FloatArray>();
+		// ImageJ stacks and PlanarImgs order the planes in the same way, 
+		// the channels change faster, then the slices and then the frames
+		for (int n = 1; n <= stack.getSize(); n ++)
+			planes.add(new FloatArray((float[]) stack.getPixels(n)));
+		long[] dims = {img.getWidth(), img.getHeight(), img.getNChannels(), img.getNSlices(), img.getNFrames()};
+		PlanarImg<FloatType, FloatArray> planar = new PlanarImg<FloatType, FloatArray>(planes, dims, new Fraction());
+		planar.setLinkedType(new FloatType(planar));
+		
+		int[] tensorDimOrder = Tensor.convertToTensorDimOrder(form);
+		RandomAccessibleInterval<FloatType> view = planar;
+		// Remove the axes that are not in the tensor, starting from the last one
+		// so the position of the remaining axes does not change
+		List<Integer> axes = new ArrayList<Integer>();
+		for (int dd = dims.length - 1; dd >= 0; dd --) {
+			int axis = dd;
+			if (Arrays.stream(tensorDimOrder).noneMatch(i -> i == axis))
+				view = Views.hyperSlice(view, dd, 0);
+			else
+				axes.add(0, dd);
+		}
+		// Move each axis to its position in the tensor
+		for (int i = 0; i < tensorDimOrder.length; i ++) {
+			int current = axes.indexOf(tensorDimOrder[i]);
+			if (current != i) {
+				view = Views.moveAxis(view, current, i);
+				axes.add(i, axes.remove(current));
+			}
+		}
+		return view;
+	}
+	
+	/**
+	 * Copy every pixel of the image into a flat array following the strides given for
+	 * each of the ImageJ axes. The pixels are read directly from the arrays of the
+	 * {@link ImageStack}, applying the calibration table of the image if there is one.
+	 * @param img
+	 * 	image to be copied
+	 * @param data
+	 * 	array where the image is copied
+	 * @param strides
+	 * 	distance in the array between two consecutive pixels along each of the 
+	 * 	axes of the image, in the order XYCZT. Axes with a stride of 0 are not
+	 * 	in the array and only their first position is copied
+	 */
+	public static void copyImageToArray(ImagePlus img, float[] data, int[] strides) {
+		copyImageToArray(img, data, strides, null);
+	}
+	
+	/**
+	 * Copy every pixel of the image into a flat array following the strides given for
+	 * each of the ImageJ axes, applying to each pixel the operation of its frame and channel.
+	 * @param img
+	 * 	image to be copied
+	 * @param data
+	 * 	array where the image is copied
+	 * @param strides
+	 * 	distance in the array between two consecutive pixels along each of the 
+	 * 	axes of the image, in the order XYCZT. Axes with a stride of 0 are not
+	 * 	in the array and only their first position is copied
+	 * @param kernels
+	 * 	operation applied to the pixels of each frame and channel, null to copy 
+	 * 	the pixels as they are
+	 */
+	public static void copyImageToArray(ImagePlus img, float[] data, int[] strides, Kernel[][] kernels) {
+		int nx = img.getWidth();
+		int ny = img.getHeight();
+		ImageStack stack = img.getStack();
+		float[] cTable = img.getCalibration().getCTable();
+		int nc = strides[2] == 0 ? 1 : img.getNChannels();
+		int nz = strides[3] == 0 ? 1 : img.getNSlices();
+		int nt = strides[4] == 0 ? 1 : img.getNFrames();
+		for (int t = 0; t < nt; t ++) {
+			for (int z = 0; z < nz; z ++) {
+				for (int c = 0; c < nc; c ++) {
+					int n = img.getStackIndex(c + 1, z + 1, t + 1);
+					int offset = c * strides[2] + z * strides[3] + t * strides[4];
+					Object pixels = stack.getPixels(n);
+					Kernel kernel = kernels == null ? null : kernels[t][c];
+					if (pixels instanceof float[] && kernel == null) {
+						copyPlane((float[]) pixels, nx, ny, data, offset, strides[0], strides[1]);
+					} else if (pixels instanceof float[]) {
+						copyPlane((float[]) pixels, nx, ny, kernel, data, offset, strides[0], strides[1]);
+					} else if (pixels instanceof short[]) {
+						copyPlane((short[]) pixels, nx, ny, cTable, data, offset, strides[0], strides[1]);
+					} else if (pixels instanceof byte[]) {
+						copyPlane((byte[]) pixels, nx, ny, cTable, data, offset, strides[0], strides[1]);
+					} else {
+						// RGB images are converted to grey levels by the processor
+						ImageProcessor ip = stack.getProcessor(n);
+						for (int y = 0; y < ny; y ++) {
+							for (int x = 0; x < nx; x ++)
+								data[offset + y * strides[1] + x * strides[0]] = ip.getPixelValue(x, y);
+						}
+					}
+					// Integer images are normalized over the values just written, which 
+					// are still in the cache
+					if (!(pixels instanceof float[]) && kernel != null)
+						applyKernel(kernel, nx, ny, data, offset, strides[0], strides[1]);
+				}
+			}
+		}
+	}
+	
+	private static void copyPlane(float[] pixels, int nx, int ny, float[] data, int offset, int sx, int sy) {
+		for (int y = 0; y < ny; y ++) {
+			int pos = offset + y * sy;
+			if (sx == 1) {
+				System.arraycopy(pixels, y * nx, data, pos, nx);
+				continue;
+			}
+			for (int x = y * nx; x < (y + 1) * nx; x ++, pos += sx)
+				data[pos] = pixels[x];
+		}
+	}
+	
+	private static void copyPlane(float[] pixels, int nx, int ny, Kernel kernel, float[] data, int offset, int sx, int sy) {
+		for (int y = 0; y < ny; y ++) {
+			int pos = offset + y * sy;
+			for (int x = y * nx; x < (y + 1) * nx; x ++, pos += sx)
+				data[pos] = kernel.apply(pixels[x]);
+		}
+	}
+	
+	private static void applyKernel(Kernel kernel, int nx, int ny, float[] data, int offset, int sx, int sy) {
+		for (int y = 0; y < ny; y ++) {
+			int pos = offset + y * sy;
+			for (int x = 0; x < nx; x ++, pos += sx)
+				data[pos] = kernel.apply(data[pos]);
+		}
+	}
+	
+	private static void copyPlane(short[] pixels, int nx, int ny, float[] cTable, float[] data, int offset, int sx, int sy) {
+		for (int y = 0; y < ny; y ++) {
+			int pos = offset + y * sy;
+			for (int x = y * nx; x < (y + 1) * nx; x ++, pos += sx)
+				data[pos] = cTable == null ? pixels[x] & 0xffff : cTable[pixels[x] & 0xffff];
+		}
+	}
+	
+	private static void copyPlane(byte[] pixels, int nx, int ny, float[] cTable, float[] data, int offset, int sx, int sy) {
+		for (int y = 0; y < ny; y ++) {
+			int pos = offset + y * sy;
+			for (int x = y * nx; x < (y + 1) * nx; x ++, pos += sx)
+				data[pos] = cTable == null ? pixels[x] & 0xff : cTable[pixels[x] & 0xff];
+		}
+	}
+	
+	/**
+	 * Compute the distance between two consecutive pixels along each of the ImageJ 
+	 * axes (XYCZT) in the flat array of a tensor. ImgLib2 arrays store the first axis
+	 * of the tensor contiguously.
+	 * @param tensorDims
+	 * 	size of the tensor for each of its axes, completed with 1s up to 5 axes
+	 * @param orderCorrespondence
+	 * 	position of each of the ImageJ axes in the tensor
+	 * @return the stride of each of the ImageJ axes
+	 */
+	private static int[] getImageStrides(int[] tensorDims, int[] orderCorrespondence) {
+		int[] tensorStrides = new int[tensorDims.length];
+		int stride = 1;
+		for (int i = 0; i < tensorDims.length; i ++) {
+			tensorStrides[i] = stride;
+			stride *= tensorDims[i];
+		}
+		int[] imageStrides = new int[5];
+		for (int i = 0; i < imageStrides.length; i ++)
+			imageStrides[i] = tensorStrides[orderCorrespondence[i]];
+		return imageStrides;
+	}
+	
 	// TODO make specific for different types
 	public static < T extends NumericType< T > & RealType< T > > ImagePlus tensor2ImagePlus(RandomAccessibleInterval<T> data, String form) {
 		// This method copies the information from the tensor to a matrix. At first only works
@@ -149,22 +363,73 @@ public class ImagePlus2Tensor {
         tensorShape[seqDimOrder[0]] = seqSize[0]; tensorShape[seqDimOrder[1]] = seqSize[1];
         tensorShape[seqDimOrder[2]] = seqSize[2]; tensorShape[seqDimOrder[3]] = seqSize[3];
         tensorShape[seqDimOrder[4]] = seqSize[4];
-		int[] auxInd = {0, 0, 0, 0, 0};
-		Cursor<FloatType> tensorCursor = Cast.unchecked(Views.flatIterable(data).cursor());
-		while (tensorCursor.hasNext()) {
-			tensorCursor.fwd();
-			long[] cursorPos = tensorCursor.positionAsLongArray();
-        	for (int i = 0; i < cursorPos.length; i ++) {
-        		auxInd[i] = (int) cursorPos[i];
-        	}
-        	float val = tensorCursor.get().getRealFloat();
-        	int[] icyInd = {auxInd[seqDimOrder[0]], auxInd[seqDimOrder[1]], auxInd[seqDimOrder[2]], auxInd[seqDimOrder[3]], auxInd[seqDimOrder[4]]};
-        	sequence.setPositionWithoutUpdate(icyInd[2] + 1, icyInd[3] + 1, icyInd[4] + 1);
-        	ImageProcessor ip = sequence.getProcessor();
-        	ip.putPixelValue(icyInd[0], icyInd[1], (float) val);
-        }
+        // Write the flat tensor array directly into the planes of the image
+        float[] flatData = getFloatArray(data);
+        copyArrayToImage(flatData, sequence, getImageStrides(tensorShape, seqDimOrder));
     	return sequence;
 	}
+	
+	/**
+	 * Get the values of the tensor as a flat float array where the first axis is the
+	 * one that changes faster. If the tensor is already backed by a float array, 
+	 * that array is returned without copying it.
+	 * @param data
+	 * 	tensor data
+	 * @return the flat array with the values of the tensor
+	 */
+	private static < T extends NumericType< T > & RealType< T > > float[] getFloatArray(RandomAccessibleInterval<T> data) {
+		if (data instanceof ArrayImg && ((ArrayImg<?, ?>) data).update(null) instanceof FloatArray) {
+			float[] storage = ((FloatArray) ((ArrayImg<?, ?>) data).update(null)).getCurrentStorageArray();
+			if (storage.length == Intervals.numElements(data))
+				return storage;
+		}
+		float[] flatData = new float[(int) Intervals.numElements(data)];
+		Cursor<T> tensorCursor = Views.flatIterable(data).cursor();
+		int i = 0;
+		while (tensorCursor.hasNext())
+			flatData[i ++] = tensorCursor.next().getRealFloat();
+		return flatData;
+	}
+	
+	/**
+	 * Copy a flat array into the planes of a 32-bit image following the strides given
+	 * for each of the ImageJ axes. Rows that are contiguous in the array are copied at once.
+	 * @param data
+	 * 	array with the values of the tensor
+	 * @param img
+	 * 	32-bit image where the values are written
+	 * @param strides
+	 * 	distance in the array between two consecutive pixels along each of the 
+	 * 	axes of the image, in the order XYCZT
+	 */
+	public static void copyArrayToImage(float[] data, ImagePlus img, int[] strides) {
+		int nx = img.getWidth();
+		int ny = img.getHeight();
+		int sx = strides[0];
+		int sy = strides[1];
+		ImageStack stack = img.getStack();
+		for (int t = 0; t < img.getNFrames(); t ++) {
+			for (int z = 0; z < img.getNSlices(); z ++) {
+				for (int c = 0; c < img.getNChannels(); c ++) {
+					float[] pixels = (float[]) stack.getPixels(img.getStackIndex(c + 1, z + 1, t + 1));
+					int offset = c * strides[2] + z * strides[3] + t * strides[4];
+					if (sx == 1 && sy == nx) {
+						System.arraycopy(data, offset, pixels, 0, nx * ny);
+						continue;
+					}
+					for (int y = 0; y < ny; y ++) {
+						int pos = offset + y * sy;
+						if (sx == 1) {
+							System.arraycopy(data, pos, pixels, y * nx, nx);
+							continue;
+						}
+						for (int x = y * nx; x < (y + 1) * nx; x ++, pos += sx)
+							pixels[x] = data[pos];
+					}
+				}
+			}
+		}
+	}
 
 	/**
 	 * Create an array where each position corresponds to the size 
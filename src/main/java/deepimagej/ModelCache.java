@@ -0,0 +1,320 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import ij.Prefs;
+import io.bioimage.modelrunner.model.Model;
+
+/**
+ * Cache of the models loaded by the plugin, shared by every execution in the same
+ * ImageJ/Fiji session. Loading a model can take several seconds, so when the same
+ * model is run several times (for example in a macro that processes a folder) it is
+ * only loaded the first time.
+ * The models are identified by the path to the weights, the weights format and the
+ * version of the engine. When there are more models than allowed, the least recently
+ * used one is closed. The models that have not been used for a while are also closed.
+ * A model is never closed while it is being used. The engines are not thread safe,
+ * so a model is only given to one execution at a time: an execution that finds the
+ * model in use loads its own copy, which is closed when it finishes.
+ * The cache can be configured with the ImageJ preferences:
+ * call("ij.Prefs.set", "deepimagej.cache_size", "2");
+ * call("ij.Prefs.set", "deepimagej.cache_idle_minutes", "10");
+ * A cache size of 0 disables the cache. Every model can be closed with the command
+ * run("DeepImageJ Release Models");
+ */
+public class ModelCache {
+	
+	/*
+	 * Key of the ImageJ preferences used to define the maximum number of models
+	 * kept in memory
+	 */
+	public static final String SIZE_KEY = "deepimagej.cache_size";
+	/*
+	 * Key of the ImageJ preferences used to define the minutes that a model
+	 * that is not used is kept in memory
+	 */
+	public static final String IDLE_KEY = "deepimagej.cache_idle_minutes";
+	/*
+	 * Default maximum number of models kept in memory
+	 */
+	public static final int DEFAULT_SIZE = 2;
+	/*
+	 * Default minutes that a model that is not used is kept in memory
+	 */
+	public static final double DEFAULT_IDLE_MINUTES = 10;
+	
+	/*
+	 * Models loaded, sorted from the least to the most recently used
+	 */
+	private static final LinkedHashMap<String, Entry> models = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	/*
+	 * Timer that closes the models that have not been used for a while
+	 */
+	private static Timer timer = null;
+	
+	private static class Entry {
+		private Model model;
+		private int users = 0;
+		private long lastUse = System.currentTimeMillis();
+		
+		private Entry(Model model) {
+			this.model = model;
+		}
+	}
+	
+	/**
+	 * Create the String that identifies a model in the cache
+	 * @param source
+	 * 	path to the weights of the model
+	 * @param weightsFormat
+	 * 	format of the weights (engine)
+	 * @param engineVersion
+	 * 	version of the engine
+	 * @return the key of the model
+	 */
+	public static String getKey(String source, String weightsFormat, String engineVersion) {
+		return source + "|" + weightsFormat + "|" + engineVersion;
+	}
+	
+	/**
+	 * Whether the cache is enabled or not
+	 * @return true if models can be kept in memory between executions
+	 */
+	public static boolean isEnabled() {
+		return getMaxSize() > 0;
+	}
+	
+	/**
+	 * Get a loaded model from the cache and mark it as being used. Once it is not
+	 * needed anymore, {@link #release(Model)} has to be called.
+	 * @param key
+	 * 	identifier of the model
+	 * @return the model loaded or null if it is not in the cache or another
+	 * 	execution is using it
+	 */
+	public static synchronized Model acquire(String key) {
+		Entry entry = models.get(key);
+		if (entry == null || entry.users > 0)
+			return null;
+		entry.users ++;
+		entry.lastUse = System.currentTimeMillis();
+		return entry.model;
+	}
+	
+	/**
+	 * Add a model that has just been loaded to the cache and mark it as being used. 
+	 * Once it is not needed anymore, {@link #release(Model)} has to be called.
+	 * If the cache is disabled or another execution is using the model cached with
+	 * the same key, the model is not added and it is closed when it is released.
+	 * @param key
+	 * 	identifier of the model
+	 * @param model
+	 * 	model loaded
+	 * @return true if the model has been added to the cache
+	 */
+	public static synchronized boolean add(String key, Model model) {
+		if (!isEnabled())
+			return false;
+		Entry old = models.get(key);
+		if (old != null && old.model != model) {
+			if (old.users > 0)
+				return false;
+			old.model.closeModel();
+		}
+		Entry entry = new Entry(model);
+		entry.users ++;
+		models.put(key, entry);
+		evict();
+		startTimer();
+		return true;
+	}
+	
+	/**
+	 * Mark a model as not being used. The model is kept loaded in the cache,
+	 * unless the cache is full. If the model is not in the cache, it is closed.
+	 * @param model
+	 * 	model that is not needed anymore
+	 */
+	public static synchronized void release(Model model) {
+		Entry entry = find(model);
+		if (entry == null) {
+			model.closeModel();
+			return;
+		}
+		entry.users = Math.max(0, entry.users - 1);
+		entry.lastUse = System.currentTimeMillis();
+		evict();
+	}
+	
+	/**
+	 * Remove a model from the cache and close it. Used when the model cannot be
+	 * used anymore, for example if the execution has been stopped while running it.
+	 * @param model
+	 * 	model to close
+	 */
+	public static synchronized void close(Model model) {
+		Iterator<Map.Entry<String, Entry>> it = models.entrySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().getValue().model == model)
+				it.remove();
+		}
+		model.closeModel();
+	}
+	
+	/**
+	 * Remove a model from the cache and close it if it is not being used. Used to 
+	 * discard the models that have been loaded speculatively and were not needed.
+	 * @param model
+	 * 	model to discard
+	 */
+	public static synchronized void discard(Model model) {
+		Entry entry = find(model);
+		if (entry == null || entry.users > 0)
+			return;
+		close(model);
+		stopTimerIfEmpty();
+	}
+	
+	/**
+	 * Close every model of the cache that is not being used
+	 * @return number of models closed
+	 */
+	public static synchronized int releaseAll() {
+		int closed = 0;
+		Iterator<Entry> it = models.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.users > 0)
+				continue;
+			entry.model.closeModel();
+			it.remove();
+			closed ++;
+		}
+		stopTimerIfEmpty();
+		return closed;
+	}
+	
+	/**
+	 * Close the models that have not been used for longer than the idle time
+	 */
+	public static synchronized void closeIdleModels() {
+		long maxIdle = (long) (Prefs.get(IDLE_KEY, DEFAULT_IDLE_MINUTES) * 60 * 1000);
+		long now = System.currentTimeMillis();
+		Iterator<Entry> it = models.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.users == 0 && now - entry.lastUse > maxIdle) {
+				entry.model.closeModel();
+				it.remove();
+			}
+		}
+		stopTimerIfEmpty();
+	}
+	
+	/**
+	 * Names of the models kept in the cache
+	 * @return the keys of the models, from the least to the most recently used
+	 */
+	public static synchronized List<String> getKeys() {
+		return new ArrayList<String>(models.keySet());
+	}
+	
+	private static int getMaxSize() {
+		return (int) Prefs.get(SIZE_KEY, DEFAULT_SIZE);
+	}
+	
+	/*
+	 * Close the least recently used models that are not being used until
+	 * the size of the cache is the maximum allowed
+	 */
+	private static void evict() {
+		int excess = models.size() - Math.max(0, getMaxSize());
+		Iterator<Entry> it = models.values().iterator();
+		while (excess > 0 && it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.users > 0)
+				continue;
+			entry.model.closeModel();
+			it.remove();
+			excess --;
+		}
+		stopTimerIfEmpty();
+	}
+	
+	private static Entry find(Model model) {
+		for (Entry entry : models.values()) {
+			if (entry.model == model)
+				return entry;
+		}
+		return null;
+	}
+	
+	private static void startTimer() {
+		if (timer != null)
+			return;
+		timer = new Timer("DeepImageJ model cache", true);
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				closeIdleModels();
+			}
+		}, 60 * 1000, 60 * 1000);
+	}
+	
+	private static void stopTimerIfEmpty() {
+		if (timer == null || !models.isEmpty())
+			return;
+		timer.cancel();
+		timer = null;
+	}
+}
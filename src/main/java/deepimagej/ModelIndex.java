@@ -0,0 +1,263 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the models found in the models folder, stored in the file {@link #INDEX_FILE}
+ * of that folder. For each model folder it keeps the result of checking the weights
+ * (which requires computing the SHA-256 of the weights files) together with the size 
+ * and the last modification time of every file in the folder. The next time the models
+ * are listed, the folders that have not changed are not checked again.
+ * The index of each models folder is kept in memory together with the contents
+ * of the yaml file of every model, so the following listings of the session
+ * only parse the yaml files that have changed.
+ */
+public class ModelIndex {
+	
+	/*
+	 * Name of the file where the index is stored inside the models folder
+	 */
+	public static final String INDEX_FILE = ".deepimagej_index";
+	
+	/*
+	 * Indexes already read, with the path of their file as the key
+	 */
+	private static final HashMap<String, ModelIndex> indexes = new HashMap<String, ModelIndex>();
+	
+	/*
+	 * Entries of the index. Properties is synchronized, so the models can
+	 * be checked in parallel
+	 */
+	private Properties entries = new Properties();
+	/*
+	 * File where the index is stored
+	 */
+	private File file;
+	/*
+	 * Whether the index has changed since it was read
+	 */
+	private volatile boolean changed = false;
+	/*
+	 * Contents of the yaml file of each model folder, together with the signature
+	 * of the folder when it was read
+	 */
+	private ConcurrentHashMap<String, Object[]> yamls = new ConcurrentHashMap<String, Object[]>();
+	
+	private ModelIndex(File file) {
+		this.file = file;
+	}
+	
+	/**
+	 * Get the index of a models folder. It is only read from the folder the first
+	 * time. If there is no index or it cannot be read, an empty index is returned
+	 * @param pathModels
+	 * 	folder that contains the models
+	 * @return the index
+	 */
+	public static ModelIndex load(String pathModels) {
+		File file = new File(pathModels, INDEX_FILE).getAbsoluteFile();
+		synchronized (indexes) {
+			ModelIndex index = indexes.get(file.getPath());
+			if (index != null)
+				return index;
+			index = new ModelIndex(file);
+			indexes.put(file.getPath(), index);
+			if (!index.file.isFile())
+				return index;
+			try (InputStream is = new FileInputStream(index.file)) {
+				index.entries.load(is);
+			} catch (IOException ex) {
+				// The folders are checked again and the index is rebuilt
+			}
+			return index;
+		}
+	}
+	
+	/**
+	 * Get the contents of the yaml file of a model folder. The file is only parsed
+	 * if the folder has changed since it was last read. Each call returns a copy, 
+	 * so every {@link Parameters} built from it has its own lists and maps
+	 * @param dp
+	 * 	model whose yaml file is read
+	 * @return the contents of the yaml file, or null if it cannot be read
+	 */
+	public Map<String, Object> getYaml(DeepImageJ dp) {
+		String signature = getSignature(new File(dp.getPath()));
+		Object[] cached = yamls.get(dp.dirname);
+		if (cached == null || !signature.equals(cached[0])) {
+			Map<String, Object> yaml;
+			try {
+				yaml = Parameters.readYaml(dp.getPath());
+			} catch (Exception ex) {
+				// Parameters reads the file again and reports the error
+				return null;
+			}
+			if (yaml == null)
+				return null;
+			cached = new Object[] {signature, yaml};
+			yamls.put(dp.dirname, cached);
+		}
+		return (Map<String, Object>) copy(cached[1]);
+	}
+	
+	/**
+	 * Write the index to the models folder, if something has changed
+	 */
+	public void save() {
+		if (!changed)
+			return;
+		try (OutputStream os = new FileOutputStream(file)) {
+			entries.store(os, "DeepImageJ model index");
+			changed = false;
+		} catch (IOException ex) {
+			// The index is only a cache, the folders are checked again next time
+		}
+	}
+	
+	/**
+	 * Restore the result of checking a model folder if none of its files has 
+	 * changed since it was stored
+	 * @param dp
+	 * 	model whose folder is checked
+	 * @return whether the stored result is still valid and has been restored
+	 */
+	public boolean restore(DeepImageJ dp) {
+		String key = dp.dirname + ".";
+		String signature = entries.getProperty(key + "signature");
+		if (signature == null || !signature.equals(getSignature(new File(dp.getPath()))))
+			return false;
+		dp.params.framework = entries.getProperty(key + "framework", dp.params.framework);
+		dp.params.selectedModelPath = entries.getProperty(key + "selectedModelPath", dp.params.selectedModelPath);
+		dp.params.incorrectSha256 = Boolean.parseBoolean(entries.getProperty(key + "incorrectSha256"));
+		dp.ptName = entries.getProperty(key + "ptName", dp.ptName);
+		dp.tfName = entries.getProperty(key + "tfName", dp.tfName);
+		return true;
+	}
+	
+	/**
+	 * Whether a restored model was valid when it was checked
+	 * @param dp
+	 * 	model restored
+	 * @return whether the model was valid
+	 */
+	public boolean isValid(DeepImageJ dp) {
+		return Boolean.parseBoolean(entries.getProperty(dp.dirname + ".valid"));
+	}
+	
+	/**
+	 * Store the result of checking a model folder
+	 * @param dp
+	 * 	model that has been checked
+	 * @param valid
+	 * 	whether the model is valid
+	 */
+	public void store(DeepImageJ dp, boolean valid) {
+		String key = dp.dirname + ".";
+		entries.setProperty(key + "signature", getSignature(new File(dp.getPath())));
+		entries.setProperty(key + "valid", "" + valid);
+		entries.setProperty(key + "incorrectSha256", "" + dp.params.incorrectSha256);
+		entries.setProperty(key + "ptName", dp.ptName);
+		entries.setProperty(key + "tfName", dp.tfName);
+		if (dp.params.framework != null)
+			entries.setProperty(key + "framework", dp.params.framework);
+		else
+			entries.remove(key + "framework");
+		if (dp.params.selectedModelPath != null)
+			entries.setProperty(key + "selectedModelPath", dp.params.selectedModelPath);
+		else
+			entries.remove(key + "selectedModelPath");
+		changed = true;
+	}
+	
+	/*
+	 * Deep copy of the maps and lists of the contents of a yaml file, the
+	 * rest of the values are not modified by the parameters
+	 */
+	private static Object copy(Object value) {
+		if (value instanceof Map) {
+			Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
+				map.put(entry.getKey(), copy(entry.getValue()));
+			return map;
+		} else if (value instanceof List) {
+			List<Object> list = new ArrayList<Object>();
+			for (Object element : (List<?>) value)
+				list.add(copy(element));
+			return list;
+		}
+		return value;
+	}
+	
+	/*
+	 * Name, size and last modification time of every file of a folder
+	 */
+	private static String getSignature(File dir) {
+		String[] files = dir.list();
+		if (files == null)
+			return "";
+		Arrays.sort(files);
+		StringBuilder signature = new StringBuilder();
+		for (String name : files) {
+			File f = new File(dir, name);
+			signature.append(name).append(':').append(f.length()).append(':').append(f.lastModified()).append(';');
+		}
+		return signature.toString();
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import deepimagej.tools.DijTensor;
+import deepimagej.tools.FileTools;
+import ij.Prefs;
+import io.bioimage.modelrunner.engine.EngineInfo;
+import io.bioimage.modelrunner.model.Model;
+
+/**
+ * Speculative loading of the model selected in the DeepImageJ Run dialog. While the
+ * user reviews the parameters, the engine and the weights of the model are loaded in
+ * a background thread and added to the {@link ModelCache}, so when the user presses OK
+ * the model is already loaded. The warm-up of the model ({@link ModelWarmup}) is also
+ * run in the background with the tile suggested by the model, on a copy of the tensors
+ * taken when the load starts, so it does not read the parameters edited in the dialog.
+ * Only one model is prewarmed at a time: selecting
+ * another model or cancelling the dialog discards the speculative load.
+ * The models are only prewarmed if the cache is enabled. Prewarming can be disabled with:
+ * call("ij.Prefs.set", "deepimagej.prewarm", "false");
+ */
+public class ModelPrewarmer {
+	
+	/*
+	 * Key of the ImageJ preferences used to enable or disable the prewarming
+	 */
+	public static final String ENABLED_KEY = "deepimagej.prewarm";
+	
+	/*
+	 * Thread where the models are loaded
+	 */
+	private static final ExecutorService service = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "DeepImageJ prewarm");
+		thread.setDaemon(true);
+		return thread;
+	});
+	/*
+	 * Key in the cache of the model being prewarmed or prewarmed last
+	 */
+	private static String key = null;
+	/*
+	 * Load of the model being prewarmed
+	 */
+	private static Future<Model> task = null;
+	/*
+	 * Flag used to discard the load of the model being prewarmed
+	 */
+	private static AtomicBoolean discarded = null;
+	
+	/**
+	 * Whether the models are prewarmed or not
+	 * @return true if the models can be loaded speculatively
+	 */
+	public static boolean isEnabled() {
+		return Prefs.get(ENABLED_KEY, true) && ModelCache.isEnabled();
+	}
+	
+	/**
+	 * Start loading a model in the background. Any previous speculative load is discarded.
+	 * If the model is already in the cache nothing is done.
+	 * @param dp
+	 * 	model selected
+	 * @param source
+	 * 	path to the weights
+	 * @param engine
+	 * 	weights format (engine)
+	 * @param version
+	 * 	version of the engine
+	 * @param jarsDir
+	 * 	directory where the engines are installed
+	 * @param loader
+	 * 	class loader used to load the engine
+	 */
+	public static synchronized void prewarm(DeepImageJ dp, String source, String engine, String version, String jarsDir, ClassLoader loader) {
+		String newKey = ModelCache.getKey(source, engine, version);
+		if (newKey.equals(key))
+			return;
+		discard();
+		if (!isEnabled() || ModelCache.getKeys().contains(newKey))
+			return;
+		final AtomicBoolean cancelled = new AtomicBoolean(false);
+		key = newKey;
+		discarded = cancelled;
+		final String path = dp.getPath();
+		final String tfName = dp.tfName;
+		final boolean tensorflow = dp.params.framework.contains("tensorflow");
+		final List<DijTensor> inputs = copyTensors(dp.params.inputList);
+		final List<DijTensor> outputs = copyTensors(dp.params.outputList);
+		final int[] patch = dp.params.inputList.get(0).recommended_patch != null ?
+				dp.params.inputList.get(0).recommended_patch.clone() : inputs.get(0).minimum_size;
+		task = service.submit(() -> {
+			if (cancelled.get())
+				return null;
+			EngineInfo engineInfo = EngineInfo.defineCompatibleDLEngineCPU(engine, version, jarsDir);
+			if (engineInfo == null || cancelled.get())
+				return null;
+			File bundle = new File(path, tfName);
+			if (tensorflow && FileTools.needsUnzip(bundle, path) && !FileTools.unzipBundle(bundle, path))
+				return null;
+			Model model = Model.createDeepLearningModel(path, source, engineInfo, loader);
+			model.loadModel();
+			// Pay the cold start of the model before the user presses OK
+			if (!cancelled.get())
+				ModelWarmup.run(model, inputs, outputs, 0, patch, 1);
+			synchronized (ModelPrewarmer.class) {
+				// The model has been discarded while it was loading
+				if (cancelled.get() || !ModelCache.add(newKey, model)) {
+					model.closeModel();
+					return null;
+				}
+				// The model is kept in the cache, but nobody is using it yet
+				ModelCache.release(model);
+			}
+			return model;
+		});
+	}
+	
+	/**
+	 * Wait until the speculative load of a model finishes, so the model is not loaded 
+	 * twice if the user presses OK while it is being prewarmed
+	 * @param cacheKey
+	 * 	key of the model that is going to be used
+	 */
+	public static void await(String cacheKey) {
+		Future<Model> pending;
+		synchronized (ModelPrewarmer.class) {
+			if (!cacheKey.equals(key) || task == null)
+				return;
+			pending = task;
+		}
+		try {
+			pending.get();
+		} catch (InterruptedException | ExecutionException ex) {
+			// The model is loaded again by the execution
+		}
+		synchronized (ModelPrewarmer.class) {
+			// The model now belongs to the execution, do not discard it
+			if (task == pending) {
+				task = null;
+				key = null;
+				discarded = null;
+			}
+		}
+	}
+	
+	/*
+	 * Copy of the fields of the tensors read by the warm-up
+	 */
+	private static List<DijTensor> copyTensors(List<DijTensor> tensors) {
+		List<DijTensor> copies = new ArrayList<DijTensor>();
+		for (DijTensor tensor : tensors) {
+			DijTensor copy = new DijTensor(tensor);
+			copy.minimum_size = tensor.minimum_size == null ? null : tensor.minimum_size.clone();
+			copy.step = tensor.step == null ? null : tensor.step.clone();
+			copies.add(copy);
+		}
+		return copies;
+	}
+	
+	/**
+	 * Discard the speculative load. If the model is still loading it is closed once it
+	 * finishes, and if it has been loaded and nobody has used it, it is removed from the cache
+	 */
+	public static synchronized void discard() {
+		if (key == null)
+			return;
+		discarded.set(true);
+		if (task != null && !task.cancel(false) && task.isDone()) {
+			try {
+				Model model = task.get();
+				if (model != null)
+					ModelCache.discard(model);
+			} catch (InterruptedException | ExecutionException ex) {
+			}
+		}
+		task = null;
+		key = null;
+		discarded = null;
+	}
+}
@@ -0,0 +1,248 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import deepimagej.tools.DijTensor;
+import ij.IJ;
+import ij.Prefs;
+import io.bioimage.modelrunner.model.Model;
+import io.bioimage.modelrunner.tensor.Tensor;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Warm-up of a model after loading it. The first inferences of a model pay for the
+ * optimisation of the graph and the compilation done by the engines, so the time 
+ * they take does not represent the time taken by the model once it is running.
+ * Before the tiles of an image are run, a number of dummy tiles (filled with zeros) 
+ * with the same tile size and batch size is run, unless the model has already been
+ * warmed up with that shape. The time of the first inference of each model (cold start)
+ * is recorded, so the time of the tiles of the image only measures the steady state.
+ * The number of tiles can be changed with (0 disables the warm-up):
+ * call("ij.Prefs.set", "deepimagej.warmup_tiles", "3");
+ */
+public class ModelWarmup {
+	
+	/*
+	 * Key of the ImageJ preferences used to define the number of dummy tiles
+	 */
+	public static final String TILES_KEY = "deepimagej.warmup_tiles";
+	/*
+	 * Default number of dummy tiles run after loading a model
+	 */
+	public static final int DEFAULT_TILES = 0;
+	
+	/*
+	 * Time in nanoseconds of the first inference of each model loaded
+	 */
+	private static final Map<Model, Long> coldStart = new WeakHashMap<Model, Long>();
+	
+	/*
+	 * Shapes of the dummy tiles already run on each model
+	 */
+	private static final Map<Model, Set<String>> warmedShapes = new WeakHashMap<Model, Set<String>>();
+	
+	/**
+	 * Run the dummy tiles on a model, unless it has already been warmed up with the same
+	 * shapes. The tensors are only read, so copies can be given to run the warm-up while 
+	 * the parameters of the model are being edited.
+	 * @param model
+	 * 	model loaded
+	 * @param inputs
+	 * 	input tensors of the model
+	 * @param outputs
+	 * 	output tensors of the model
+	 * @param ref
+	 * 	position of the input whose tile is given
+	 * @param patch
+	 * 	size of the tile of that input, in the axes order of the input tensor. The tiles
+	 * 	of the other inputs are deduced from it
+	 * @param batch
+	 * 	number of tiles fed to the model at once
+	 * @return the time in nanoseconds of each of the dummy inferences, or an empty array
+	 * 	if the warm-up is disabled, the model has already been warmed up with these shapes
+	 * 	or the model cannot be run with dummy tiles
+	 */
+	public static long[] run(Model model, List<DijTensor> inputs, List<DijTensor> outputs, int ref, int[] patch, int batch) {
+		int nTiles = (int) Prefs.get(TILES_KEY, DEFAULT_TILES);
+		if (nTiles <= 0 || model == null || patch == null)
+			return new long[0];
+		// Only models whose inputs are all images can be fed with dummy tiles
+		for (DijTensor tensor : inputs) {
+			if (!tensor.tensorType.contains("image"))
+				return new long[0];
+		}
+		long[][] shapes = new long[inputs.size()][];
+		for (int i = 0; i < shapes.length; i ++) {
+			shapes[i] = getShape(inputs.get(i), inputs.get(ref), patch, batch);
+			if (shapes[i] == null)
+				return new long[0];
+		}
+		String key = Arrays.deepToString(shapes);
+		synchronized (ModelWarmup.class) {
+			Set<String> warmed = warmedShapes.get(model);
+			if (warmed == null) {
+				warmed = new HashSet<String>();
+				warmedShapes.put(model, warmed);
+			}
+			if (!warmed.add(key))
+				return new long[0];
+		}
+		long[] times = new long[nTiles];
+		try {
+			for (int i = 0; i < nTiles; i ++) {
+				List<Tensor<?>> inputTensors = new ArrayList<Tensor<?>>();
+				for (int j = 0; j < shapes.length; j ++) {
+					DijTensor tensor = inputs.get(j);
+					inputTensors.add(Tensor.build(tensor.name, tensor.form, ArrayImgs.floats(shapes[j])));
+				}
+				List<Tensor<?>> outputTensors = new ArrayList<Tensor<?>>();
+				for (DijTensor tensor : outputs)
+					outputTensors.add(Tensor.buildEmptyTensor(tensor.name, tensor.form));
+				long start = System.nanoTime();
+				model.runModel(inputTensors, outputTensors);
+				times[i] = System.nanoTime() - start;
+				inputTensors.stream().forEach(tt -> tt.close());
+				outputTensors.stream().forEach(tt -> tt.close());
+			}
+		} catch (Exception ex) {
+			IJ.log("DeepImageJ: unable to warm up the model (" + ex.toString() + ")");
+			return new long[0];
+		}
+		recordColdStart(model, times[0]);
+		return times;
+	}
+	
+	/**
+	 * Record the time of the first inference of a model, if it had not been recorded
+	 * @param model
+	 * 	model run
+	 * @param ns
+	 * 	time in nanoseconds of the inference
+	 * @return true if it was the first inference of the model
+	 */
+	public static synchronized boolean recordColdStart(Model model, long ns) {
+		if (coldStart.containsKey(model))
+			return false;
+		coldStart.put(model, ns);
+		return true;
+	}
+	
+	/**
+	 * Time in milliseconds of the first inference of a model
+	 * @param model
+	 * 	model loaded
+	 * @return the time of the first inference or -1 if the model has not been run yet
+	 */
+	public static synchronized double getColdStart(Model model) {
+		Long ns = coldStart.get(model);
+		return ns == null ? -1 : ns * 1e-6;
+	}
+	
+	/**
+	 * Mean of the times given, skipping the first ones
+	 * @param times
+	 * 	times measured
+	 * @param skip
+	 * 	number of times skipped at the beginning
+	 * @return the mean or -1 if there are not enough times
+	 */
+	public static double getMean(long[] times, int skip) {
+		if (times.length <= skip)
+			return -1;
+		double sum = 0;
+		for (int i = skip; i < times.length; i ++)
+			sum += times[i];
+		return sum / (times.length - skip);
+	}
+	
+	/*
+	 * Shape of a dummy tile of an input. The batch axis uses the closest batch size
+	 * allowed by the model that is not smaller than the one given. The other axes use
+	 * the size of the tile of the reference input at the same axis, rounded up to a
+	 * size allowed by the input (minimum_size + n * step), or the minimum size if the
+	 * reference input does not have the axis
+	 */
+	private static long[] getShape(DijTensor input, DijTensor reference, int[] patch, int batch) {
+		String[] form = input.form.toUpperCase().split("");
+		String refForm = reference.form.toUpperCase();
+		long[] shape = new long[form.length];
+		for (int i = 0; i < form.length; i ++) {
+			int min = input.minimum_size[i];
+			int step = input.step[i];
+			int size = form[i].equals("B") ? batch : -1;
+			int ind = refForm.indexOf(form[i]);
+			if (!form[i].equals("B") && ind != -1 && ind < patch.length)
+				size = patch[ind];
+			if (size > 0 && step > 0)
+				shape[i] = min + (long) Math.ceil(Math.max(0, size - min) / (double) step) * step;
+			else if (size > 0 && min <= 0)
+				shape[i] = size;
+			else if (min > 0)
+				shape[i] = min;
+			else
+				return null;
+		}
+		return shape;
+	}
+	
+	/**
+	 * Write a latency in milliseconds
+	 * @param ms
+	 * 	latency in milliseconds, negative if it is not known
+	 * @return the latency as text
+	 */
+	public static String formatMs(double ms) {
+		return ms < 0 ? "n/a" : String.format("%.1f ms", ms);
+	}
+}
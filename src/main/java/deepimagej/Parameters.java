@@ -57,6 +57,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import deepimagej.processing.StandardProcessing;
 import deepimagej.tools.DijTensor;
 import deepimagej.tools.YAMLUtils;
 import deepimagej.tools.weights.ModelWeight;
@@ -163,6 +164,48 @@ public class Parameters {
 	 * always.
 	 */
 	public boolean allowPatching = true;
+	/*
+	 * Number of threads used to extract and reconstruct the patches
+	 * while the model is running
+	 */
+	public int tileWorkers = TileScheduler.getDefaultWorkers();
+	/*
+	 * Maximum number of patches that can wait between two steps of the
+	 * patch processing. Limits the memory used by the patches in flight
+	 */
+	public int tileQueueSize = 4;
+	/*
+	 * Number of patches fed to the model at once if the model allows 
+	 * batches. If it is 0, it is estimated from the free memory
+	 */
+	public int batchSize = 0;
+	/*
+	 * Fraction of the memory not used by the input and output images 
+	 * that can be used by the patches, 
+	 * used to choose the tile size, the batch size and the queue size
+	 */
+	public double memoryFraction = 0.5;
+	/*
+	 * Whether the input tensors can be views of the pixels of the patches
+	 * (only for 32-bit images) or the pixels have to be copied into a new tensor.
+	 * The engines copy the tensors into their own memory anyway
+	 */
+	public boolean tensorViews = true;
+	/*
+	 * Window used to blend the overlapping patches in the output image:
+	 * "none" (only the center of each patch is kept), "linear", "cosine" or "gaussian"
+	 */
+	public String blending = "none";
+	/*
+	 * Time in milliseconds of the first inference of the model after loading
+	 * it (cold start), per tile. -1 if it has not been measured
+	 */
+	public double coldStartLatency = -1;
+	/*
+	 * Mean time in milliseconds of the inferences once the model is running
+	 * (steady state), per tile. -1 if it has not been measured
+	 */
+	public double steadyStateLatency = -1;
 	/*
 	 * Image used to test the model
 	 */
@@ -306,6 +349,22 @@ public class Parameters {
 	public ModelWeight weights;
 	
 	public Parameters(boolean valid, String path, boolean isDeveloper) {
+		this(valid, path, isDeveloper, null);
+	}
+	
+	/**
+	 * Read the parameters of a model
+	 * @param valid
+	 * 	whether the model is valid
+	 * @param path
+	 * 	folder of the model
+	 * @param isDeveloper
+	 * 	whether the model is read by the developer plugins
+	 * @param yaml
+	 * 	contents of the yaml file already read, or null to read the file. The 
+	 * 	parameters keep references to the lists and maps of the contents
+	 */
+	public Parameters(boolean valid, String path, boolean isDeveloper, Map<String, Object> yaml) {
 		// If the model is not valid or we are in the developer plugin,
 		// we cannot read the parameters from anywhere as there is no
 		// config file
@@ -318,12 +377,10 @@ public class Parameters {
 		developer = isDeveloper;
 		if (developer || !(yamlFile.isFile() || rdfFile.isFile()))
 			return;
-		Map<String, Object> obj = new HashMap<String, Object>();
+		Map<String, Object> obj = yaml;
 		try {
-			if (rdfFile.isFile())
-				obj =  YAMLUtils.readConfig(rdfFile.getAbsolutePath());
-			else
-				obj =  YAMLUtils.readConfig(yamlFile.getAbsolutePath());
+			if (obj == null)
+				obj = readYaml(path);
 		} catch (Exception ex) {
 			fieldsMissing = new ArrayList<String>();
 			fieldsMissing.add("Unable to read the yaml file");
@@ -557,6 +614,7 @@ public class Parameters {
 				inpTensor.dataType = (String) "" + inp.get("data_type");
 				//TODO do we assume inputs in the yaml are always images?
 				inpTensor.tensorType = "image";
+				inpTensor.processing = StandardProcessing.getSteps(inp.get("preprocessing"));
 				//TODO List<Object> auxDataRange = (ArrayList<Object>) inp.get("data_range");
 				//TODO inpTensor.dataRange = castListToDoubleArray(auxDataRange);
 				// Find by trial and error if the shape of the input is fixed or not
@@ -642,6 +700,7 @@ public class Parameters {
 				if (outTensor.form == null || outTensor.form.contains("R") || (outTensor.form.length() <= 2 && (outTensor.form.contains("B") || outTensor.form.contains("C"))))
 					outTensor.tensorType = "list";
 				outTensor.dataType = (String) "" + out.get("data_type");
+				outTensor.processing = StandardProcessing.getSteps(out.get("postprocessing"));
 				// Halo is an optional field
 				if (outTensor.tensorType.contains("image") && !pyramidalNetwork && out.get("halo") != null) {
 					List auxHalo = (List) out.get("halo");
@@ -789,6 +848,20 @@ public class Parameters {
 		
 	}
 	
+	/**
+	 * Read the yaml file of a model folder, the rdf.yaml or, if there is none, 
+	 * the deprecated model.yaml
+	 * @param path
+	 * 	folder of the model
+	 * @return the contents of the file
+	 */
+	public static Map<String, Object> readYaml(String path) {
+		File rdfFile = new File(path + File.separator + "rdf.yaml");
+		if (rdfFile.isFile())
+			return YAMLUtils.readConfig(rdfFile.getAbsolutePath());
+		return YAMLUtils.readConfig(new File(path + File.separator + "model.yaml").getAbsolutePath());
+	}
+	
 	/*
 	 * Method that checks which required fields of the yaml file are missing in the provided
 	 * file. It returns a list with the missing fields.
@@ -46,13 +46,17 @@ package deepimagej;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.Callable;
 
 import deepimagej.exceptions.BatchSizeBiggerThanOne;
 import deepimagej.exceptions.IncorrectNumberOfDimensions;
+import deepimagej.processing.StandardProcessing;
+import deepimagej.processing.StandardProcessing.Normalization;
 import deepimagej.tools.ArrayOperations;
+import deepimagej.tools.BlendedReconstructor;
 import deepimagej.tools.CompactMirroring;
 import deepimagej.tools.DijTensor;
 import deepimagej.tools.Index;
@@ -77,6 +81,11 @@ public class RunnerDL < T extends RealType< T > & NativeType< T > > implements C
 	private int						currentPatch = 0;
 	private int						totalPatch = 0;
 	public String					error = "";
+	/*
+	 * Maximum number of patches processed at once when the batch size is
+	 * estimated automatically
+	 */
+	public static final int			MAX_AUTO_BATCH_SIZE = 16;
 
 	public RunnerDL(DeepImageJ dp, RunnerProgress rp,HashMap<String,Object> inputMap, Log log) {
 		this.dp = dp;
@@ -113,6 +122,8 @@ public class RunnerDL < T extends RealType< T > & NativeType< T > > implements C
 		// Auxiliary array with the same number of images as output tensors
 		int c = 0;
 		int inputImageInd = 0;
+		// Normalization of the input image applied while it is copied into the tensor
+		Normalization normalization = null;
 		for (DijTensor tensor : params.inputList) {
 			if (tensor.tensorType.contains("image")) {
 				imp = getImageFromMap(inputMap, tensor);
@@ -130,6 +141,8 @@ public class RunnerDL < T extends RealType< T > & NativeType< T > > implements C
 				params.inputList.get(c).inputPixelSizeY = inputPixelSizeY;
 				params.inputList.get(c).inputPixelSizeZ = inputPixelSizeZ;
 				inputImageInd = c;
+				if (inputMap.get(StandardProcessing.getMapKey(tensor.name)) instanceof Normalization)
+					normalization = (Normalization) inputMap.get(StandardProcessing.getMapKey(tensor.name));
 			} else if (tensor.tensorType.contains("parameter")){
 				Object tensorVal = getTensorFromMap(inputMap, tensor);
 				if (tensorVal == null) {
@@ -217,9 +230,6 @@ public class RunnerDL < T extends RealType< T > & NativeType< T > > implements C
 		
 		// To define the runtime for config.xml. Starting time
 		long startingTime = System.nanoTime();
-		// Create the image that is going to be fed to the graph
-		ImagePlus[] impatch = new ImagePlus[outputImages.length];
-		
 		String[] outputTitles = new String[params.outputList.size()];
 		// Reset the counter to 0 use it again
 		c = 0;
@@ -262,22 +272,17 @@ public class RunnerDL < T extends RealType< T > & NativeType< T > > implements C
 
 		int[] roi = {roiX, roiY, roiC, roiZ};
 		int[] size = {nx, ny, nc, nz};
+		// The input and output images stay in memory while the patches are processed
+		final long residentBytes = getImageBytes(params, size);
 		int[][] mirrorPixels = ArrayOperations.findAddedPixels(size, padding, roi);
-		int mirrorDim = 0;
-		for (int i = 0; i < mirrorPixels.length; i ++) {
-			for (int j = 0; j < mirrorPixels[0].length; j ++) {
-				mirrorDim += mirrorPixels[i][j];
-			}
-		}
-		ImagePlus mirrorImage;
-		if (mirrorDim > 0) {
-		mirrorImage = CompactMirroring.mirrorXY(imp, mirrorPixels[0][0], mirrorPixels[1][0],
-														  	   mirrorPixels[0][1], mirrorPixels[1][1],
-														       mirrorPixels[0][3], mirrorPixels[1][3]);
-		} else {
-			mirrorImage = imp;
-		}
+		// The image extended by mirroring is never created. The patches read the 
+		// mirrored pixels directly from the input image
+		final int[] extendedSize = {nx + mirrorPixels[0][0] + mirrorPixels[1][0], ny + mirrorPixels[0][1] + mirrorPixels[1][1],
+									nc, nz + mirrorPixels[0][3] + mirrorPixels[1][3], imp.getNFrames()};
 		if (log.getLevel() == 2) {
+			ImagePlus mirrorImage = CompactMirroring.mirrorXY(imp, mirrorPixels[0][0], mirrorPixels[1][0],
+															  mirrorPixels[0][1], mirrorPixels[1][1],
+															  mirrorPixels[0][3], mirrorPixels[1][3]);
 			mirrorImage.setTitle("Extended image");
 			mirrorImage.getProcessor().resetMinAndMax();
 			mirrorImage.show();
@@ -309,274 +314,317 @@ public class RunnerDL < T extends RealType< T > & NativeType< T > > implements C
 
 		if (log.getLevel() >= 1)
 			log.print("start " + npx + "x" + npy);
-		for (int i = 0; i < npx; i++) {
-			for (int j = 0; j < npy; j++) {
-				for (int z = 0; z < npz; z++) {
-					// TODO reduce this mega big loop to something more modular
-					currentPatch++;
-					System.out.println("[DEBUG] (Inference) Patch " + currentPatch + "/" + totalPatch);
-					if (log.getLevel() >= 1)
-						log.print("currentPatch " + currentPatch);
-					if (rp != null && rp.isStopped()) {
-						rp.stop();
-						return null;
-					}
-					// Variables to track when the roi starts in the mirror image
-					int xMirrorStartPatch;
-					int yMirrorStartPatch;
-					int zMirrorStartPatch;
-					
-					// Variables to track when the roi starts in the patch
-					int xImageStartPatch;
-					int xImageEndPatch;
-					int yImageStartPatch;
-					int yImageEndPatch;
-					int zImageStartPatch;
-					int zImageEndPatch;
-					int leftoverPixelsX;
-					int leftoverPixelsY;
-					int leftoverPixelsZ;
-					if (i < npx -1 || npx == 1) {
-						xMirrorStartPatch = padding[0] + roiX*i;
-	
-						xImageStartPatch = roiX*i;
-						xImageEndPatch = roiX*(i + 1);
-						leftoverPixelsX = overlapX;
-					} else {
-						xMirrorStartPatch = nx + padding[0] - roiX;
-	
-						xImageStartPatch = roiX*i;
-						xImageEndPatch = nx;
-						leftoverPixelsX = overlapX + roiX - (xImageEndPatch - xImageStartPatch);
-					}
-					
-					if (j < npy - 1 || npy == 1) {
-						yMirrorStartPatch = padding[1] + roiY*j;
-	
-						yImageStartPatch = roiY*j;
-						yImageEndPatch = roiY*(j + 1);
-						leftoverPixelsY = overlapY;
-					} else {
-						yMirrorStartPatch = ny + padding[1] - roiY;
-	
-						yImageStartPatch = roiY*j;
-						yImageEndPatch = ny;
-						leftoverPixelsY = overlapY + roiY - (yImageEndPatch - yImageStartPatch);
-					}
-					
-					if (z < npz - 1 || npz == 1) {
-						zMirrorStartPatch = padding[3] + roiZ*z;
-	
-						zImageStartPatch = roiZ*z;
-						zImageEndPatch = roiZ*(z + 1);
-						leftoverPixelsZ = overlapZ;
-					} else {
-						zMirrorStartPatch = nz + padding[3] - roiZ;
-	
-						zImageStartPatch = roiZ*z;
-						zImageEndPatch = nz;
-						leftoverPixelsZ = overlapZ + roiZ- (zImageEndPatch - zImageStartPatch);
+		final int[] overlap = {overlapX, overlapY, 0, overlapZ};
+		// Create the list of patches in the order they are fed to the model
+		List<Tile> tiles = createTiles(new int[] {npx, npy, npc, npz}, size, new int[] {roiX, roiY, roiC, roiZ}, padding, overlap);
+		// Position of the first pixel of the input image in the extended image
+		final int[] mirrorStart = {mirrorPixels[0][0], mirrorPixels[0][1], 0, mirrorPixels[0][3]};
+		// The stack of the image is retrieved before starting the workers so
+		// all of them share the same stack
+		final ImagePlus inputImage = imp;
+		inputImage.getStack();
+		final float[][] allOffsets = findOutputOffset(params.outputList);
+		// If the patches are blended, the whole output of each patch is added to the
+		// output image weighted by a window instead of pasting only its center
+		final boolean blend = BlendedReconstructor.isBlending(params.blending) && !params.pyramidalNetwork && params.allowPatching;
+		final BlendedReconstructor[] blenders = new BlendedReconstructor[outputImages.length];
+		
+		TileScheduler.Stage extract = (tile) -> {
+			tile.patch = ArrayOperations.extractMirroredPatch(inputImage, patchSize, tile.xMirrorStart - overlap[0] - mirrorStart[0],
+																tile.yMirrorStart - overlap[1] - mirrorStart[1], tile.zMirrorStart - overlap[3] - mirrorStart[3]);
+			if (log.getLevel() >= 1)
+				log.print("Extract Patch (" + (tile.i + 1) + ", " + (tile.j + 1) + ") patch size: " + tile.patch.getWidth() + "x" + tile.patch.getHeight() + " pixels");
+			if (log.getLevel() == 2) {
+				tile.patch.setTitle("Patch (" + tile.i + "," + tile.j + ")");
+			}
+			return true;
+		};
+		
+		// Number of patches that are fed to the model at once
+		final int batchSize = getBatchSize(params, inputImageInd, patchSize, tiles.size(), residentBytes);
+		// Warm up the model with the tile and the batch size that are going to be run
+		int[] tensorPatch = params.inputList.get(inputImageInd).minimum_size.clone();
+		for (int i = 0; i < indices.length; i ++) {
+			if (indices[i] != -1)
+				tensorPatch[indices[i]] = patchSize[i];
+		}
+		ModelWarmup.run(model, params.inputList, params.outputList, inputImageInd, tensorPatch, batchSize);
+		final Normalization inputNormalization = normalization;
+		// Time of each inference per tile, without the first inference of the model
+		final List<Long> inferenceTimes = Collections.synchronizedList(new ArrayList<Long>());
+		if (log.getLevel() >= 1)
+			log.print("batch size " + batchSize);
+		
+		TileScheduler.BatchStage infer = (batch) -> {
+			for (int k = 0; k < batch.size(); k ++) {
+				currentPatch++;
+				System.out.println("[DEBUG] (Inference) Patch " + currentPatch + "/" + totalPatch);
+				if (log.getLevel() >= 1)
+					log.print("currentPatch " + currentPatch);
+			}
+			// The patches of the batch are stacked along the batch axis. If the batch is
+			// not complete, the last patch is repeated and its extra outputs are discarded
+			ImagePlus batchPatch = batch.get(0).patch;
+			if (batchSize > 1) {
+				List<ImagePlus> patches = new ArrayList<ImagePlus>();
+				for (Tile tile : batch)
+					patches.add(tile.patch);
+				batchPatch = ArrayOperations.concatenateFrames(patches, batchSize);
+			}
+			List<Tensor<?>> inputTensors = getInputTensors(params.inputList, parameterMap,
+											batchPatch, params.pytorchVersion, params.tensorViews, inputNormalization);
+			// TODO make easier to understand
+			if (inputTensors == null) {
+				error = "Error retrieving inputs to tensors for the model.";
+				IJ.error(error);
+				return false;
+			}
+
+			// The thread cannot be stopped while loading a model, thus block the button
+			// while executing the task
+			if (rp != null)
+				rp.allowStopping(false);
+			List<Tensor<?>> outputTensorList = new ArrayList<Tensor<?>>();
+			for (DijTensor outTensor : params.outputList)
+				outputTensorList.add(Tensor.buildEmptyTensor(outTensor.name, outTensor.form));
+			
+			long inferenceStart = System.nanoTime();
+			model.runModel(inputTensors, outputTensorList);
+			long inferenceTime = (System.nanoTime() - inferenceStart) / batchSize;
+			// The first inference of a model includes the optimisations done by the engine
+			if (!ModelWarmup.recordColdStart(model, inferenceTime))
+				inferenceTimes.add(inferenceTime);
+			// Close inputTensors to avoid memory leak
+			inputTensors.stream().forEach(tt -> tt.close());
+			if (rp != null)
+				rp.allowStopping(true);
+			// Check if the user has tried to stop the execution while loading the model
+			// If they have return false and stop
+			if(rp != null && rp.isStopped())
+				return false;
+			
+			for (Tile tile : batch)
+				tile.outputs = new ImagePlus[outputImages.length];
+			int outCounter = 0;
+			int imCounter = 0;
+			for (DijTensor outTensor : params.outputList) {
+				if (log.getLevel() >= 1)
+					log.print("Session run " + (outCounter+1) + "/"  + params.outputList.size());
+				Tensor<T> result = (Tensor<T>) outputTensorList.get(outCounter);
+				if (outTensor.tensorType.contains("image") && !params.pyramidalNetwork && batchSize > 1) {
+					// Split the batch back into one output per patch
+					ImagePlus[] batchOutputs = ArrayOperations.splitFrames(ImagePlus2Tensor.tensor2ImagePlus(result.getData(), outTensor.form));
+					if (batchOutputs.length != batchSize) {
+						outputTensorList.stream().forEach(tt -> tt.close());
+						error = "The output tensor '" + outTensor.name + "' has a batch size of " + batchOutputs.length
+								+ " but " + batchSize + " patches were fed to the model.";
+						IJ.error(error);
+						return false;
 					}
-					
-					ImagePlus patch = ArrayOperations.extractPatch(mirrorImage, patchSize, xMirrorStartPatch, yMirrorStartPatch,
-																	zMirrorStartPatch, overlapX, overlapY, overlapZ);
-					if (log.getLevel() >= 1)
-						log.print("Extract Patch (" + (i + 1) + ", " + (j + 1) + ") patch size: " + patch.getWidth() + "x" + patch.getHeight() + " pixels");
-					if (log.getLevel() == 2) {
-						patch.setTitle("Patch (" + i + "," + j + ")");
-						patch.getProcessor().resetMinAndMax();
+					for (int k = 0; k < batch.size(); k ++)
+						batch.get(k).outputs[imCounter] = batchOutputs[k];
+					imCounter ++;
+					outCounter ++;
+				} else if (outTensor.tensorType.contains("image") && !params.pyramidalNetwork) {
+					batch.get(0).outputs[imCounter] = ImagePlus2Tensor.tensor2ImagePlus(result.getData(), outTensor.form);
+					imCounter ++;
+					outCounter ++;
+				} else if (outTensor.tensorType.contains("image") && (params.pyramidalNetwork || !params.allowPatching)) {
+					outputImages[imCounter] = ImagePlus2Tensor.tensor2ImagePlus(result.getData(), outTensor.form);
+					outputImages[imCounter].setTitle(outputTitles[imCounter]);
+					outputImages[imCounter].show();
+					imCounter ++;
+					outCounter ++;
+				} else if (outTensor.tensorType.contains("list")){
+					ResultsTable table = Table2Tensor.tensorToTable(result);
+					outputTables.add(table);
+					table.show(outputTitles[outCounter ++]);
+				}
+				// Check if the user has tried to stop the execution while loading the model
+				// If they have return false and stop
+				if (rp != null && rp.isStopped()) {
+					ModelCache.close(model);
+					// The model is closed, so it must not be released again when the plugin finishes
+					dp.setModel(null);
+					outputTensorList.stream().forEach(tt -> tt.close());
+					return false;
+				}
+			}
+			outputTensorList.stream().forEach(tt -> tt.close());
+			// The output images are created with the first patch. This is done in the 
+			// inference thread so the workers always find them created
+			Tile tile = batch.get(0);
+			imCounter = 0;
+			for (int counter = 0; counter < params.outputList.size(); counter++) {
+				if (!params.outputList.get(counter).tensorType.contains("image"))
+					continue;
+				if (!params.pyramidalNetwork && params.allowPatching && outputImages[imCounter] == null) {
+					float[] outSize = findOutputSize(size, params.outputList.get(counter), params.inputList, tile.outputs[imCounter].getDimensions());
+					int[] dims = tile.outputs[imCounter].getDimensions();
+					outputImages[imCounter] = IJ.createHyperStack(outputTitles[imCounter], (int)outSize[0], (int)outSize[1], (int)outSize[2], (int)outSize[3], dims[4], 32);
+					outputImages[imCounter].getProcessor().resetMinAndMax();
+					outputImages[imCounter].getStack();
+					if (blend)
+						blenders[imCounter] = new BlendedReconstructor(outputImages[imCounter], params.blending);
+					outputImages[imCounter].show();
+				}
+				imCounter ++;
+			}
+			return true;
+		};
+		
+		TileScheduler.Stage reconstruct = (tile) -> {
+			int imCounter = 0;
+			for (int counter = 0; counter < params.outputList.size(); counter++) {
+				// TODO decide what to do when pyramidal && !allowPatching
+				if (params.outputList.get(counter).tensorType.contains("image") && !params.pyramidalNetwork && params.allowPatching) {
+					float[] outSize = findOutputSize(size, params.outputList.get(counter), params.inputList, tile.outputs[imCounter].getDimensions());
+					float scaleX = outSize[0] / nx; float scaleY = outSize[1] / ny; float scaleZ = outSize[3] / nz;
+					if (blend) {
+						// Position of the first pixel of the patch in the output image
+						int xStart = (int) (tile.xImageStart * scaleX) - (int)(tile.leftoverX * scaleX + Math.ceil(allOffsets[imCounter][0]));
+						int yStart = (int) (tile.yImageStart * scaleY) - (int)(tile.leftoverY * scaleY + Math.ceil(allOffsets[imCounter][1]));
+						int zStart = (int) (tile.zImageStart * scaleZ) - (int)(tile.leftoverZ * scaleZ + Math.ceil(allOffsets[imCounter][3]));
+						blenders[imCounter].addPatch(tile.outputs[imCounter], xStart, yStart, zStart);
+						imCounter ++;
+						continue;
 					}
-
-					// TODO optimise (take the try out of the loop) 
-					try {
-						List<Tensor<?>> inputTensors = getInputTensors(params.inputList, parameterMap,
-														patch, params.pytorchVersion);
-						// TODO make easier to understand
-						if (inputTensors == null) {
-							error = "Error retrieving inputs to tensors for the model.";
-							IJ.error(error);
-							return null;
+					ArrayOperations.imagePlusReconstructor(outputImages[imCounter], tile.outputs[imCounter], (int) (tile.xImageStart * scaleX),
+							(int) (tile.xImageEnd * scaleX), (int) (tile.yImageStart * scaleY), (int) (tile.yImageEnd * scaleY),
+							(int) (tile.zImageStart * scaleZ), (int) (tile.zImageEnd * scaleZ),(int)(tile.leftoverX * scaleX + Math.ceil(allOffsets[imCounter][0])),
+							(int)(tile.leftoverY * scaleY + Math.ceil(allOffsets[imCounter][1])), (int)(tile.leftoverZ * scaleZ + Math.ceil(allOffsets[imCounter][3])));
+					if (rp != null && rp.isStopped())
+						return false;
+					imCounter ++;
+				} else if (params.outputList.get(counter).tensorType.contains("image") && params.pyramidalNetwork) {
+					// TODO improve
+					int[] outPatchDims = outputImages[imCounter].getDimensions();
+					String[] ijForm = "XYCZB".split("");
+					String dijForm = params.outputList.get(counter).form;
+					int[] pyramidOut = params.outputList.get(counter).sizeOutputPyramid;
+					for (int dd = 0; dd < ijForm.length; dd ++) {
+						int idx = dijForm.indexOf(ijForm[dd]);
+						if (idx == -1 && outPatchDims[dd] == 1) {
+							continue;
+						} else if (idx != -1 && outPatchDims[dd] == pyramidOut[idx]) {
+							continue;
 						}
-
-						// The thread cannot be stopped while loading a model, thus block the button
-						// while executing the task
-						if (rp != null)
-							rp.allowStopping(false);
-						List<Tensor<?>> outputTensorList = new ArrayList<Tensor<?>>();
-						for (DijTensor outTensor : params.outputList)
-							outputTensorList.add(Tensor.buildEmptyTensor(outTensor.name, outTensor.form));
-						
-						model.runModel(inputTensors, outputTensorList);
-						// Close inputTensors to avoid memory leak
-						inputTensors.stream().forEach(tt -> tt.close());
-						if (rp != null)
-							rp.allowStopping(true);
-						// Check if the user has tried to stop the execution while loading the model
-						// If they have return false and stop
-						if(rp != null && rp.isStopped())
-							return null;
-						
-						c = 0;
-						int imCounter = 0;
-						for (DijTensor outTensor : params.outputList) {
-							if (log.getLevel() >= 1)
-								log.print("Session run " + (c+1) + "/"  + params.outputList.size());
-							Tensor<T> result = (Tensor<T>) outputTensorList.get(c);
-							if (outTensor.tensorType.contains("image") && !params.pyramidalNetwork) {
-								impatch[imCounter] = ImagePlus2Tensor.tensor2ImagePlus(result.getData(), outTensor.form);
-								imCounter ++;
-								c ++;
-							} else if (outTensor.tensorType.contains("image") && (params.pyramidalNetwork || !params.allowPatching)) {
-								outputImages[imCounter] = ImagePlus2Tensor.tensor2ImagePlus(result.getData(), outTensor.form);
-								outputImages[imCounter].setTitle(outputTitles[imCounter]);
-								outputImages[imCounter].show();
-								imCounter ++;
-								c ++;
-							} else if (outTensor.tensorType.contains("list")){
-								ResultsTable table = Table2Tensor.tensorToTable(result);
-								outputTables.add(table);
-								table.show(outputTitles[c ++]);
-							}
-							// Check if the user has tried to stop the execution while loading the model
-							// If they have return false and stop
-							if (rp != null && rp.isStopped()) {
-								model.closeModel();
-								outputTensorList.stream().forEach(tt -> tt.close());
-								return null;
-							}
-						}
-						outputTensorList.stream().forEach(tt -> tt.close());
-					} catch (IncorrectNumberOfDimensions ex) {
-						ex.printStackTrace();	
-						
-						error = "The dimensions specified for the '" + ex.getName() 
-						+ "' (" + ex.getDims() + ") should match the number of dimensions"
-						+ " output tensor " + Arrays.toString(ex.getShape());
-						error += "\n";
-						error += dimensionsMismatch(ex.getMessage());
-						IJ.log("Error applying the model");
-						IJ.log(error);
-						commentAboutPytorchVersions();
-						return null;
-					} catch(BatchSizeBiggerThanOne ex) {
-						ex.printStackTrace();	
-						error = "Output batch size bigger than 1 for tensor '" + ex.getName() + "'.\n Batch_size > 1 not supported by this version of DeepImageJ";
-						IJ.log("Error applying the model");
-						IJ.log(error);
-						IJ.log(ex.toString());
-						IJ.log("\n");
-						commentAboutPytorchVersions();
-						return null;
-					} catch (Exception ex) {
-						ex.printStackTrace();	
-						error = dimensionsMismatch(ex.getMessage());
-						IJ.log("Error applying the model");
-						IJ.log(error);
-						commentAboutPytorchVersions();
-						return null;
+						IJ.error("The dimensions of the output image do not coincide\n"
+								+ "with the dimensions specified previously:\n"
+								+ "Specified output dimensions: dimension order -> " + dijForm + ", dimension size -> " + Arrays.toString(pyramidOut) 
+								+ "Actual output dimensions: dimension order -> XYCZB, dimension size -> " + Arrays.toString(outPatchDims));
+						error = "Error specifying output dimensions.";
+						return false;
 					}
-					float[][] allOffsets = findOutputOffset(params.outputList);
-					int imCounter = 0;
-					for (int counter = 0; counter < params.outputList.size(); counter++) {
-						// TODO decide what to do when pyramidal && !allowPatching
-						if (params.outputList.get(counter).tensorType.contains("image") && !params.pyramidalNetwork && params.allowPatching) {
-							float[] outSize = findOutputSize(size, params.outputList.get(counter), params.inputList, impatch[imCounter].getDimensions());
-							if (outputImages[imCounter] == null) {
-								int[] dims = impatch[imCounter].getDimensions();
-								outputImages[imCounter] = IJ.createHyperStack(outputTitles[imCounter], (int)outSize[0], (int)outSize[1], (int)outSize[2], (int)outSize[3], dims[4], 32);
-								outputImages[imCounter].getProcessor().resetMinAndMax();
-								outputImages[imCounter].show();
-							}
-							float scaleX = outSize[0] / nx; float scaleY = outSize[1] / ny; float scaleZ = outSize[3] / nz;
-							ArrayOperations.imagePlusReconstructor(outputImages[imCounter], impatch[imCounter], (int) (xImageStartPatch * scaleX),
-									(int) (xImageEndPatch * scaleX), (int) (yImageStartPatch * scaleY), (int) (yImageEndPatch * scaleY),
-									(int) (zImageStartPatch * scaleZ), (int) (zImageEndPatch * scaleZ),(int)(leftoverPixelsX * scaleX + Math.ceil(allOffsets[imCounter][0])),
-									(int)(leftoverPixelsY * scaleY + Math.ceil(allOffsets[imCounter][1])), (int)(leftoverPixelsZ * scaleZ + Math.ceil(allOffsets[imCounter][3])));
-							if (outputImages[imCounter] != null)
-								outputImages[imCounter].getProcessor().resetMinAndMax();
-							if (rp != null && rp.isStopped()) {
-								rp.stop();
-								return null;
-							}
-							imCounter ++;
-						} else if (params.outputList.get(counter).tensorType.contains("image") && params.pyramidalNetwork) {
-							// TODO improve
-							int[] outPatchDims = outputImages[imCounter].getDimensions();
-							String[] ijForm = "XYCZB".split("");
-							String dijForm = params.outputList.get(counter).form;
-							int[] pyramidOut = params.outputList.get(counter).sizeOutputPyramid;
-							for (int dd = 0; dd < ijForm.length; dd ++) {
-								int idx = dijForm.indexOf(ijForm[dd]);
-								if (idx == -1 && outPatchDims[dd] == 1) {
-									continue;
-								} else if (idx != -1 && outPatchDims[dd] == pyramidOut[idx]) {
-									continue;
-								}
-								IJ.error("The dimensions of the output image do not coincide\n"
-										+ "with the dimensions specified previously:\n"
-										+ "Specified output dimensions: dimension order -> " + dijForm + ", dimension size -> " + Arrays.toString(pyramidOut) 
-										+ "Actual output dimensions: dimension order -> XYCZB, dimension size -> " + Arrays.toString(outPatchDims));
-								error = "Error specifying output dimensions.";
-								return null;
-							}
-							if (rp != null && rp.isStopped()) {
-								rp.stop();
-								return null;
-							}
-							imCounter ++;
-						} else if (params.outputList.get(counter).tensorType.contains("image") && !params.pyramidalNetwork && !params.allowPatching) {
-							// TODO improve
-							int[] outPatchDims = outputImages[imCounter].getDimensions();
-							String[] ijForm = "XYCZB".split("");
-							String dijForm = params.outputList.get(counter).form;
-							float[] scale = params.outputList.get(counter).scale;
-							float[] offset = params.outputList.get(counter).offset;
-							// TODO adapt for more inputs
-							// We take the mirrored image as the reference, because that is what ends
-							// up going into the model
-							int[] refSize = mirrorImage.getDimensions();
-							String thSizeStr = "[";
-							for (int dd = 0; dd < ijForm.length; dd ++) {
-								int idx = dijForm.indexOf(ijForm[dd]);
-								if (idx == -1 && outPatchDims[dd] == scale[idx]) {
-									thSizeStr += scale[idx] + ",";
-									continue;
-								} else if (idx != -1 && outPatchDims[dd] == (int)(refSize[dd] * scale[idx]) + 2 * offset[idx]) {
-									thSizeStr += ((int)(refSize[dd] * scale[idx]) + 2 * offset[idx]) + ",";
-									continue;
-								}
-								for (dd ++; dd < ijForm.length;) {
-									idx = dijForm.indexOf(ijForm[dd]);
-									if (idx == -1) {
-										thSizeStr += scale[idx] + ",";
-									} else if (idx != -1) {
-										thSizeStr += ((int)(refSize[dd] * scale[idx]) + 2 * offset[idx]) + ",";
-									}
-								}
-								thSizeStr = thSizeStr.substring(0, thSizeStr.length() - 1) + "]";
-								IJ.error("The dimensions of the output image do not coincide\n"
-										+ "with the dimensions specified previously:\n"
-										+ "Specified output dimensions: dimension order -> XYCZB, dimension size -> " + thSizeStr 
-										+ "Actual output dimensions: dimension order -> XYCZB, dimension size -> " + Arrays.toString(outPatchDims));
-								error = "Error specifying output dimensions.";
-								return null;
-							}
-							if (rp != null && rp.isStopped()) {
-								rp.stop();
-								return null;
+					if (rp != null && rp.isStopped())
+						return false;
+					imCounter ++;
+				} else if (params.outputList.get(counter).tensorType.contains("image") && !params.pyramidalNetwork && !params.allowPatching) {
+					// TODO improve
+					int[] outPatchDims = outputImages[imCounter].getDimensions();
+					String[] ijForm = "XYCZB".split("");
+					String dijForm = params.outputList.get(counter).form;
+					float[] scale = params.outputList.get(counter).scale;
+					float[] offset = params.outputList.get(counter).offset;
+					// TODO adapt for more inputs
+					// We take the mirrored image as the reference, because that is what ends
+					// up going into the model
+					int[] refSize = extendedSize;
+					String thSizeStr = "[";
+					for (int dd = 0; dd < ijForm.length; dd ++) {
+						int idx = dijForm.indexOf(ijForm[dd]);
+						if (idx == -1 && outPatchDims[dd] == scale[idx]) {
+							thSizeStr += scale[idx] + ",";
+							continue;
+						} else if (idx != -1 && outPatchDims[dd] == (int)(refSize[dd] * scale[idx]) + 2 * offset[idx]) {
+							thSizeStr += ((int)(refSize[dd] * scale[idx]) + 2 * offset[idx]) + ",";
+							continue;
+						}
+						for (dd ++; dd < ijForm.length;) {
+							idx = dijForm.indexOf(ijForm[dd]);
+							if (idx == -1) {
+								thSizeStr += scale[idx] + ",";
+							} else if (idx != -1) {
+								thSizeStr += ((int)(refSize[dd] * scale[idx]) + 2 * offset[idx]) + ",";
 							}
-							imCounter ++;
 						}
+						thSizeStr = thSizeStr.substring(0, thSizeStr.length() - 1) + "]";
+						IJ.error("The dimensions of the output image do not coincide\n"
+								+ "with the dimensions specified previously:\n"
+								+ "Specified output dimensions: dimension order -> XYCZB, dimension size -> " + thSizeStr 
+								+ "Actual output dimensions: dimension order -> XYCZB, dimension size -> " + Arrays.toString(outPatchDims));
+						error = "Error specifying output dimensions.";
+						return false;
 					}
-					if (log.getLevel() >= 1)
-						log.print("Create Output ");
+					if (rp != null && rp.isStopped())
+						return false;
+					imCounter ++;
 				}
 			}
+			// Release the outputs of the patch once they are in the final image
+			tile.clear();
+			if (log.getLevel() >= 1)
+				log.print("Create Output ");
+			return true;
+		};
+		
+		// Shorten the queues if the patches in memory would exceed the budget
+		long budget = TilePlanner.getMemoryBudget(params.memoryFraction, residentBytes);
+		int queueSize = TilePlanner.getQueueSize(getPatchBytes(params, patchSize), batchSize, params.tileQueueSize, budget);
+		TileScheduler scheduler = new TileScheduler(params.tileWorkers, Math.max(1, queueSize), batchSize, rp);
+		try {
+			if (!scheduler.run(tiles, extract, infer, reconstruct)) {
+				if (rp != null && rp.isStopped())
+					rp.stop();
+				return null;
+			}
+		} catch (IncorrectNumberOfDimensions ex) {
+			ex.printStackTrace();	
+			
+			error = "The dimensions specified for the '" + ex.getName() 
+			+ "' (" + ex.getDims() + ") should match the number of dimensions"
+			+ " output tensor " + Arrays.toString(ex.getShape());
+			error += "\n";
+			error += dimensionsMismatch(ex.getMessage());
+			IJ.log("Error applying the model");
+			IJ.log(error);
+			commentAboutPytorchVersions();
+			return null;
+		} catch(BatchSizeBiggerThanOne ex) {
+			ex.printStackTrace();	
+			error = "Output batch size bigger than 1 for tensor '" + ex.getName() + "'.\n Batch_size > 1 is only supported for image outputs by this version of DeepImageJ";
+			IJ.log("Error applying the model");
+			IJ.log(error);
+			IJ.log(ex.toString());
+			IJ.log("\n");
+			commentAboutPytorchVersions();
+			return null;
+		} catch (Exception ex) {
+			ex.printStackTrace();	
+			error = dimensionsMismatch(ex.getMessage());
+			IJ.log("Error applying the model");
+			IJ.log(error);
+			commentAboutPytorchVersions();
+			return null;
+		}
+		for (BlendedReconstructor blender : blenders) {
+			if (blender != null)
+				blender.normalize();
+		}
+		for (ImagePlus im : outputImages) {
+			if (im != null)
+				im.getProcessor().resetMinAndMax();
 		}
 		
 		// To define the runtime. End time
 		long endTime = System.nanoTime();
 		params.runtime = NumFormat.seconds(endTime - startingTime);
+		params.coldStartLatency = ModelWarmup.getColdStart(model);
+		if (inferenceTimes.size() > 0)
+			params.steadyStateLatency = ModelWarmup.getMean(inferenceTimes.stream().mapToLong(Long::longValue).toArray(), 0) * 1e-6;
+		if (log.getLevel() >= 1)
+			log.print("cold start " + ModelWarmup.formatMs(params.coldStartLatency) + ", steady state " 
+						+ ModelWarmup.formatMs(params.steadyStateLatency) + " per tile");
 		// Set Parameter params.memoryPeak
 		if (rp != null) 
 			params.memoryPeak = NumFormat.bytes(rp.getPeakmem());
@@ -610,6 +658,194 @@ public class RunnerDL < T extends RealType< T > & NativeType< T > > implements C
 		
 	}
 	
+	/**
+	 * Find the number of patches that are fed to the model at once. Patches can only
+	 * be batched if the input image tensor has a batch axis of variable size, every
+	 * output is an image with batch axis and there are no other input tensors.
+	 * If the batch size defined in the parameters is 0 or smaller, it is estimated
+	 * from the memory available.
+	 * The batch size returned is always valid for the model (minimum + N * step).
+	 * @param params
+	 * 	parameters of the model
+	 * @param inputImageInd
+	 * 	position of the input image tensor in the list of inputs
+	 * @param patchSize
+	 * 	size of the patch in the order XYCZ
+	 * @param nTiles
+	 * 	total number of patches
+	 * @param residentBytes
+	 * 	memory used by the whole input and output images
+	 * @return the number of patches processed at once by the model
+	 */
+	public static int getBatchSize(Parameters params, int inputImageInd, int[] patchSize, int nTiles, long residentBytes) {
+		int batch = params.batchSize;
+		if (batch <= 0)
+			batch = estimateBatchSize(params, patchSize, params.memoryFraction, residentBytes);
+		return getBatchSize(params, inputImageInd, nTiles, batch);
+	}
+	
+	/**
+	 * Get the closest valid batch size to the one requested that is not bigger than it, 
+	 * unless the model requires more patches at once.
+	 * If the model cannot process several patches at once, the batch size is 1.
+	 * @param params
+	 * 	parameters of the model
+	 * @param inputImageInd
+	 * 	position of the input image tensor in the list of inputs
+	 * @param nTiles
+	 * 	total number of patches
+	 * @param batch
+	 * 	number of patches that would be processed at once
+	 * @return the number of patches processed at once by the model
+	 */
+	public static int getBatchSize(Parameters params, int inputImageInd, int nTiles, int batch) {
+		DijTensor input = params.inputList.get(inputImageInd);
+		int bInd = input.form.indexOf("B");
+		if (bInd == -1 || input.step[bInd] <= 0 || params.pyramidalNetwork || !params.allowPatching
+				|| params.inputList.size() != 1 || nTiles < 2)
+			return 1;
+		for (DijTensor out : params.outputList) {
+			if (!out.tensorType.contains("image") || !out.form.contains("B"))
+				return 1;
+		}
+		batch = Math.min(batch, nTiles);
+		int min = Math.max(1, input.minimum_size[bInd]);
+		int step = input.step[bInd];
+		if (batch <= min)
+			return min;
+		return min + ((batch - min) / step) * step;
+	}
+	
+	/**
+	 * Estimate the number of patches that can be processed at once with the 
+	 * fraction of the memory of the JVM given. Each patch needs to be kept in
+	 * memory as an image and as a tensor, both at the input and the output of the model,
+	 * and the queues of the {@link TileScheduler} keep several batches at the same time.
+	 * @param params
+	 * 	parameters of the model
+	 * @param patchSize
+	 * 	size of the patch in the order XYCZ
+	 * @param memoryFraction
+	 * 	fraction of the memory that can be used by the patches
+	 * @param residentBytes
+	 * 	memory used by the whole input and output images
+	 * @return the number of patches that fit in the memory budget
+	 */
+	public static int estimateBatchSize(Parameters params, int[] patchSize, double memoryFraction, long residentBytes) {
+		long bytesPerPatch = getPatchBytes(params, patchSize);
+		long budget = TilePlanner.getMemoryBudget(memoryFraction, residentBytes);
+		long inFlight = TilePlanner.getInFlightPatches(1, params.tileQueueSize);
+		int batch = (int) Math.min(MAX_AUTO_BATCH_SIZE, budget / Math.max(1, bytesPerPatch * inFlight));
+		return Math.max(1, batch);
+	}
+	
+	/**
+	 * Memory needed to process one patch. Each patch needs to be kept in
+	 * memory as an image and as a tensor, both at the input and the output of the model.
+	 * @param params
+	 * 	parameters of the model
+	 * @param patchSize
+	 * 	size of the patch in the order XYCZ
+	 * @return the number of bytes used by one patch
+	 */
+	public static long getPatchBytes(Parameters params, int[] patchSize) {
+		long inputBytes = 4L * patchSize[0] * patchSize[1] * patchSize[2] * patchSize[3];
+		long outputBytes = 0;
+		for (DijTensor out : params.outputList) {
+			if (!out.tensorType.contains("image"))
+				continue;
+			float[] outSize = findOutputSize(patchSize, out, params.inputList, patchSize);
+			outputBytes += 4L * (long) outSize[0] * (long) outSize[1] * (long) outSize[2] * (long) outSize[3];
+		}
+		return 2 * (inputBytes + outputBytes);
+	}
+	
+	/**
+	 * Memory used by the whole input image, as float after the pre-processing,
+	 * and by the whole output images, which are kept in memory while the patches
+	 * are processed.
+	 * @param params
+	 * 	parameters of the model
+	 * @param imageSize
+	 * 	size of the input image in the order XYCZ
+	 * @return the number of bytes used by the input and output images
+	 */
+	public static long getImageBytes(Parameters params, int[] imageSize) {
+		long bytes = 4L * imageSize[0] * imageSize[1] * imageSize[2] * imageSize[3];
+		for (DijTensor out : params.outputList) {
+			if (!out.tensorType.contains("image"))
+				continue;
+			float[] outSize = findOutputSize(imageSize, out, params.inputList, imageSize);
+			bytes += 4L * (long) outSize[0] * (long) outSize[1] * (long) outSize[2] * (long) outSize[3];
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Create the list of patches needed to process the whole image. The patches are
+	 * ordered as they were traversed by the original serial loop: X, then Y and then Z.
+	 * @param nPatches
+	 * 	number of patches along each of the axes, in the order XYCZ
+	 * @param size
+	 * 	size of the input image, in the order XYCZ
+	 * @param roi
+	 * 	size of the region of each patch that is kept in the output, in the order XYCZ
+	 * @param padding
+	 * 	padding added to each side of the image, in the order XYCZ
+	 * @param overlap
+	 * 	number of pixels at the beginning of each patch that do not belong to the roi
+	 * @return the list of patches
+	 */
+	public static List<Tile> createTiles(int[] nPatches, int[] size, int[] roi, int[] padding, int[] overlap) {
+		List<Tile> tiles = new ArrayList<Tile>();
+		int npx = nPatches[0]; int npy = nPatches[1]; int npz = nPatches[3];
+		for (int i = 0; i < npx; i++) {
+			for (int j = 0; j < npy; j++) {
+				for (int z = 0; z < npz; z++) {
+					Tile tile = new Tile(i, j, z);
+					tile.index = tiles.size();
+					if (i < npx -1 || npx == 1) {
+						tile.xMirrorStart = padding[0] + roi[0]*i;
+						tile.xImageStart = roi[0]*i;
+						tile.xImageEnd = roi[0]*(i + 1);
+						tile.leftoverX = overlap[0];
+					} else {
+						tile.xMirrorStart = size[0] + padding[0] - roi[0];
+						tile.xImageStart = roi[0]*i;
+						tile.xImageEnd = size[0];
+						tile.leftoverX = overlap[0] + roi[0] - (tile.xImageEnd - tile.xImageStart);
+					}
+					
+					if (j < npy - 1 || npy == 1) {
+						tile.yMirrorStart = padding[1] + roi[1]*j;
+						tile.yImageStart = roi[1]*j;
+						tile.yImageEnd = roi[1]*(j + 1);
+						tile.leftoverY = overlap[1];
+					} else {
+						tile.yMirrorStart = size[1] + padding[1] - roi[1];
+						tile.yImageStart = roi[1]*j;
+						tile.yImageEnd = size[1];
+						tile.leftoverY = overlap[1] + roi[1] - (tile.yImageEnd - tile.yImageStart);
+					}
+					
+					if (z < npz - 1 || npz == 1) {
+						tile.zMirrorStart = padding[3] + roi[3]*z;
+						tile.zImageStart = roi[3]*z;
+						tile.zImageEnd = roi[3]*(z + 1);
+						tile.leftoverZ = overlap[3];
+					} else {
+						tile.zMirrorStart = size[3] + padding[3] - roi[3];
+						tile.zImageStart = roi[3]*z;
+						tile.zImageEnd = size[3];
+						tile.leftoverZ = overlap[3] + roi[3] - (tile.zImageEnd - tile.zImageStart);
+					}
+					tiles.add(tile);
+				}
+			}
+		}
+		return tiles;
+	}
+	
 	private static ImagePlus getImageFromMap(HashMap<String, Object> inputMap, DijTensor tensor) {
 		if (!inputMap.containsKey(tensor.name)){
 			IJ.error("Preprocessing should provide a HashMap with\n"
@@ -637,15 +873,36 @@ public class RunnerDL < T extends RealType< T > & NativeType< T > > implements C
 		return inputMap.get(tensor.name);
 	}
 	
+	/**
+	 * Create the list of tensors that are fed to the model
+	 * @param inputTensors
+	 * 	description of the inputs of the model
+	 * @param paramsMap
+	 * 	tensors produced by the pre-processing that are given to the model as they are
+	 * @param im
+	 * 	image (patch) that is fed to the model
+	 * @param pytorchVersion
+	 * 	version of Pytorch
+	 * @param allowView
+	 * 	whether the image tensors can wrap the pixels of the image instead of copying them
+	 * @param normalization
+	 * 	normalization applied to the image while it is copied into the tensor, null if 
+	 * 	the image has already been processed
+	 * @return the list of input tensors
+	 */
 	private static < T extends RealType< T > & NativeType< T > > List<Tensor<?>> getInputTensors(List<DijTensor> inputTensors, HashMap<String, Object> paramsMap,
-												ImagePlus im, String pytorchVersion){
+												ImagePlus im, String pytorchVersion, boolean allowView, Normalization normalization){
 		List<Tensor<?>> tensorsArray = new ArrayList<Tensor<?>>();
 		for (DijTensor tensor : inputTensors) {
 			if (tensor.tensorType.contains("parameter") && (paramsMap.get(tensor.name) instanceof Tensor)) {
 				Tensor<T> tt = (Tensor<T>) paramsMap.get(tensor.name);
 				tensorsArray.add(tt);
 			} else if (tensor.tensorType.contains("image")) {
-				RandomAccessibleInterval<T> tt = ImagePlus2Tensor.imPlus2tensor(im, tensor.form);
+				RandomAccessibleInterval<T> tt;
+				if (normalization != null)
+					tt = ImagePlus2Tensor.imPlus2tensor(im, tensor.form, normalization);
+				else
+					tt = ImagePlus2Tensor.imPlus2tensor(im, tensor.form, allowView);
 				tensorsArray.add(Tensor.build(tensor.name, tensor.form, tt));
 			}
 		}
@@ -0,0 +1,113 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej;
+
+import ij.ImagePlus;
+
+/**
+ * Description of one of the patches in which the input image is divided
+ * to be processed by the model. It contains the position of the patch in the
+ * (mirrored) input image, the position of its valid region in the output image
+ * and the images produced by each of the steps applied to it
+ */
+public class Tile {
+
+	/*
+	 * Position of the patch in the grid of patches along the X, Y and Z axes
+	 */
+	public int i;
+	public int j;
+	public int z;
+	/*
+	 * Position of the patch in the sequence of patches that the 
+	 * RunnerDL processes
+	 */
+	public int index;
+	/*
+	 * First pixel of the roi of the patch in the mirrored image
+	 */
+	public int xMirrorStart;
+	public int yMirrorStart;
+	public int zMirrorStart;
+	/*
+	 * Region of the image that is filled by the roi of the patch
+	 */
+	public int xImageStart;
+	public int xImageEnd;
+	public int yImageStart;
+	public int yImageEnd;
+	public int zImageStart;
+	public int zImageEnd;
+	/*
+	 * Number of pixels at the beginning of the patch that do not
+	 * belong to the roi
+	 */
+	public int leftoverX;
+	public int leftoverY;
+	public int leftoverZ;
+	/*
+	 * Patch extracted from the input image that is fed to the model
+	 */
+	public ImagePlus patch;
+	/*
+	 * Images produced by the model for this patch, one per
+	 * image output tensor
+	 */
+	public ImagePlus[] outputs;
+	
+	public Tile(int i, int j, int z) {
+		this.i = i;
+		this.j = j;
+		this.z = z;
+	}
+	
+	/**
+	 * Release the images of the patch once they are not needed anymore
+	 */
+	public void clear() {
+		patch = null;
+		outputs = null;
+	}
+}
@@ -0,0 +1,332 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej;
+
+import ij.ImagePlus;
+
+import deepimagej.tools.DijTensor;
+
+/**
+ * Class that chooses the size of the patches and the number of patches processed
+ * at once for an image, given the memory that the patches can use.
+ * Every valid patch size (minimum size + N * step, bigger than two times the halo) is
+ * evaluated and the one with the smallest cost is selected. The cost is the number of
+ * pixels processed by the model, halos included, plus a fixed cost for each call to the
+ * model. Bigger patches waste less pixels in the halos and need less calls, but they
+ * also need more memory, so the best patch is usually the biggest one that fits in the
+ * memory budget. The budget covers every patch kept in memory by the {@link TileScheduler}:
+ * the ones waiting to be fed to the model, the batch being processed and the ones waiting
+ * to be written in the output image.
+ */
+public class TilePlanner {
+	
+	/*
+	 * Cost of a call to the model, in number of pixels processed
+	 */
+	public static final long CALL_COST = 1 << 16;
+	/*
+	 * Maximum number of patch sizes evaluated per axis
+	 */
+	public static final int MAX_CANDIDATES = 32;
+	
+	/*
+	 * Size of the patch with the same axes order as the input tensor.
+	 * The batch axis is always 1
+	 */
+	public int[] patch;
+	/*
+	 * Number of patches processed at once by the model
+	 */
+	public int batch;
+	/*
+	 * Number of batches that can wait between two steps of the patch
+	 * processing without exceeding the memory budget
+	 */
+	public int queueSize;
+	/*
+	 * Number of patches needed to process the whole image
+	 */
+	public int nTiles;
+	/*
+	 * Estimated cost of processing the whole image
+	 */
+	public double cost;
+	/*
+	 * Memory needed by all the patches in memory at the same time
+	 */
+	public long bytes;
+	
+	private String form;
+	
+	private TilePlanner(String form) {
+		this.form = form;
+	}
+	
+	/**
+	 * Find the patch size and batch size with the smallest cost to process the image
+	 * with the batch size, queue size and memory budget defined in the parameters.
+	 * @param imp
+	 * 	image that is going to be processed
+	 * @param params
+	 * 	parameters of the model
+	 * @return the plan selected or null if the model cannot be tiled or no patch
+	 * 	fits in the memory budget
+	 */
+	public static TilePlanner plan(ImagePlus imp, Parameters params) {
+		return plan(imp, params, params.batchSize, params.tileQueueSize, getMemoryBudget(params.memoryFraction, getResidentBytes(imp, params)));
+	}
+	
+	/**
+	 * Find the patch size and batch size with the smallest cost to process the image
+	 * with the memory budget given. The parameters are not modified.
+	 * @param imp
+	 * 	image that is going to be processed
+	 * @param params
+	 * 	parameters of the model
+	 * @param batchSize
+	 * 	number of patches processed at once, 0 or less to choose it from the budget
+	 * @param queueSize
+	 * 	maximum number of batches waiting between two steps of the patch processing
+	 * @param budget
+	 * 	number of bytes that can be used by all the patches in memory
+	 * @return the plan selected or null if the model cannot be tiled or no patch
+	 * 	fits in the memory budget
+	 */
+	public static TilePlanner plan(ImagePlus imp, Parameters params, int batchSize, int queueSize, long budget) {
+		if (imp == null || params.pyramidalNetwork || !params.allowPatching)
+			return null;
+		DijTensor input = params.inputList.get(0);
+		String[] dimLetters = "XYCZ".split("");
+		int[] imageSize = {imp.getWidth(), imp.getHeight(), imp.getNChannels(), imp.getNSlices()};
+		int[] padding = RunnerDL.findTotalPadding(params.outputList);
+		int[][] candidates = new int[4][];
+		for (int i = 0; i < dimLetters.length; i ++) {
+			int ind = input.form.indexOf(dimLetters[i]);
+			if (ind == -1) {
+				candidates[i] = new int[] {1};
+			} else if (input.step[ind] == 0) {
+				candidates[i] = new int[] {input.minimum_size[ind]};
+			} else if (dimLetters[i].equals("C")) {
+				// Channels are never tiled
+				int min = input.minimum_size[ind];
+				int step = input.step[ind];
+				candidates[i] = new int[] {(int) Math.ceil((double) Math.max(0, imageSize[i] - min) / step) * step + min};
+			} else {
+				candidates[i] = getCandidateSizes(imageSize[i], input.minimum_size[ind], input.step[ind], padding[i]);
+			}
+			if (candidates[i].length == 0)
+				return null;
+		}
+		
+		TilePlanner best = null;
+		int[] patchSize = new int[4];
+		for (int px : candidates[0]) {
+			for (int py : candidates[1]) {
+				for (int pz : candidates[3]) {
+					patchSize[0] = px; patchSize[1] = py; patchSize[2] = candidates[2][0]; patchSize[3] = pz;
+					long bytesPerPatch = RunnerDL.getPatchBytes(params, patchSize);
+					if (bytesPerPatch * getInFlightPatches(1, 1) > budget)
+						continue;
+					long nTiles = 1;
+					long pixels = 1;
+					for (int i = 0; i < patchSize.length; i ++) {
+						pixels *= patchSize[i];
+						if (i == 2)
+							continue;
+						int roi = Math.max(1, patchSize[i] - 2 * padding[i]);
+						nTiles *= (int) Math.ceil((double) imageSize[i] / roi);
+					}
+					int batch = batchSize;
+					if (batch <= 0)
+						batch = (int) Math.min(RunnerDL.MAX_AUTO_BATCH_SIZE, budget / (bytesPerPatch * getInFlightPatches(1, queueSize)));
+					batch = RunnerDL.getBatchSize(params, 0, (int) nTiles, batch);
+					// The model may need more patches at once than the budget allows
+					int queue = getQueueSize(bytesPerPatch, batch, queueSize, budget);
+					if (queue == 0)
+						continue;
+					double cost = (double) nTiles * pixels + Math.ceil((double) nTiles / batch) * CALL_COST;
+					long bytes = bytesPerPatch * getInFlightPatches(batch, queue);
+					if (best == null || cost < best.cost || (cost == best.cost && bytes < best.bytes)) {
+						if (best == null)
+							best = new TilePlanner(input.form);
+						best.patch = toTensorOrder(input.form, patchSize);
+						best.batch = batch;
+						best.queueSize = queue;
+						best.nTiles = (int) nTiles;
+						best.cost = cost;
+						best.bytes = bytes;
+					}
+				}
+			}
+		}
+		return best;
+	}
+	
+	/**
+	 * Get the valid patch sizes for an axis, from the smallest one that is bigger
+	 * than two times the halo to the smallest one that covers the whole axis.
+	 * The patch cannot be bigger than 3 times the image because of the mirroring.
+	 * If there are too many sizes, they are sampled uniformly keeping both limits.
+	 * @param size
+	 * 	size of the image at the axis
+	 * @param min
+	 * 	minimum size of the patch
+	 * @param step
+	 * 	step between valid patch sizes
+	 * @param halo
+	 * 	pixels discarded at each side of the patch
+	 * @return the patch sizes that can be used
+	 */
+	public static int[] getCandidateSizes(int size, int min, int step, int halo) {
+		int first = 0;
+		if (min <= 2 * halo)
+			first = (2 * halo - min) / step + 1;
+		int last = Math.max(first, (int) Math.ceil((double) (size + 2 * halo - min) / step));
+		while (last > first && min + last * step > 3 * size + 1)
+			last --;
+		if (min + last * step > 3 * size + 1)
+			return new int[0];
+		int n = last - first + 1;
+		int[] sizes = new int[Math.min(n, MAX_CANDIDATES)];
+		for (int i = 0; i < sizes.length; i ++) {
+			int k = sizes.length == 1 ? last : first + (int) Math.round((double) i * (n - 1) / (sizes.length - 1));
+			sizes[i] = min + k * step;
+		}
+		return sizes;
+	}
+	
+	/**
+	 * Maximum number of patches kept in memory by the {@link TileScheduler}: a queue
+	 * of extracted patches, the batch fed to the model and a queue of patches being
+	 * written in the output, each queue holding up to queueSize batches.
+	 * @param batch
+	 * 	number of patches processed at once
+	 * @param queueSize
+	 * 	maximum number of batches in each queue
+	 * @return the number of patches in memory at the same time
+	 */
+	public static long getInFlightPatches(int batch, int queueSize) {
+		return (long) batch * (2L * Math.max(1, queueSize) + 1);
+	}
+	
+	/**
+	 * Largest queue size, up to the one requested, for which all the patches in
+	 * memory fit in the budget.
+	 * @param bytesPerPatch
+	 * 	memory needed by one patch
+	 * @param batch
+	 * 	number of patches processed at once
+	 * @param maxQueueSize
+	 * 	queue size requested
+	 * @param budget
+	 * 	number of bytes that can be used by the patches
+	 * @return the queue size or 0 if not even a queue of one batch fits
+	 */
+	public static int getQueueSize(long bytesPerPatch, int batch, int maxQueueSize, long budget) {
+		for (int queue = Math.max(1, maxQueueSize); queue >= 1; queue --) {
+			if (bytesPerPatch * getInFlightPatches(batch, queue) <= budget)
+				return queue;
+		}
+		return 0;
+	}
+	
+	/**
+	 * Memory that the patches can use, as a fraction of the maximum memory of the JVM 
+	 * that is not taken by the images that stay in memory while the patches are 
+	 * processed. It does not depend on the memory in use at the moment, which includes
+	 * garbage that has not been collected yet
+	 * @param fraction
+	 * 	fraction of the memory that can be used
+	 * @param residentBytes
+	 * 	memory used by the whole input and output images
+	 * @return number of bytes available
+	 */
+	public static long getMemoryBudget(double fraction, long residentBytes) {
+		long available = Runtime.getRuntime().maxMemory() - residentBytes;
+		return (long) (Math.max(0, available) * fraction);
+	}
+	
+	/**
+	 * Memory used by the whole input image and the whole output images of
+	 * the model for an image, see {@link RunnerDL#getImageBytes(Parameters, int[])}
+	 * @param imp
+	 * 	image that is going to be processed
+	 * @param params
+	 * 	parameters of the model
+	 * @return number of bytes of the input and output images
+	 */
+	public static long getResidentBytes(ImagePlus imp, Parameters params) {
+		if (imp == null)
+			return 0;
+		return RunnerDL.getImageBytes(params, new int[] {imp.getWidth(), imp.getHeight(), imp.getNChannels(), imp.getNSlices()});
+	}
+	
+	/**
+	 * Patch size as a comma separated String, with the axes order used by the 
+	 * plugin (the tensor axes without the batch)
+	 * @return the patch size, for example "256,256,1"
+	 */
+	public String getPatchString() {
+		String patchString = "";
+		for (int i = 0; i < patch.length; i ++) {
+			if (form.charAt(i) == 'B')
+				continue;
+			patchString += patch[i] + ",";
+		}
+		return patchString.substring(0, patchString.length() - 1);
+	}
+	
+	/*
+	 * Reorder a patch size from XYCZ to the axes of the tensor
+	 */
+	private static int[] toTensorOrder(String form, int[] patchSize) {
+		int[] patch = new int[form.length()];
+		for (int i = 0; i < patch.length; i ++) {
+			int ind = "XYCZ".indexOf(form.charAt(i));
+			patch[i] = ind == -1 ? 1 : patchSize[ind];
+		}
+		return patch;
+	}
+}
@@ -0,0 +1,238 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Class that processes the patches of an image as a pipeline of three stages:
+ * extraction of the patch from the input image, inference with the model and
+ * reconstruction of the output images.
+ * Extraction and reconstruction are run by a pool of workers while the inference
+ * is always run sequentially in the calling thread, as the Deep Learning engines
+ * are not thread safe. The model can process several patches at once (batch).
+ * The number of batches waiting between stages is bounded by the queue size, so 
+ * the memory used does not depend on the number of patches.
+ * Patches are always sent to the model in the same order as in the serial loop.
+ * Without blending, each patch writes a different region of the output, so the
+ * result is identical to processing the patches one by one. With a
+ * {@link deepimagej.tools.BlendedReconstructor} the halos of neighbouring patches
+ * overlap and are accumulated under the locks of the bands of rows in the order
+ * in which the reconstructions finish, so the overlapping pixels can differ in
+ * the last bits of the floating point sums between runs.
+ */
+public class TileScheduler {
+	
+	/*
+	 * Key of the ImageJ preferences used to define the number of workers
+	 */
+	public static final String WORKERS_KEY = "deepimagej.tile_workers";
+	/*
+	 * Key of the ImageJ preferences used to define the size of the queues
+	 */
+	public static final String QUEUE_KEY = "deepimagej.tile_queue";
+	/*
+	 * Key of the ImageJ preferences used to define the batch size
+	 */
+	public static final String BATCH_KEY = "deepimagej.batch_size";
+	/*
+	 * Key of the ImageJ preferences used to define the fraction of the
+	 * memory that can be used by the patches
+	 */
+	public static final String MEMORY_KEY = "deepimagej.memory_fraction";
+	/*
+	 * Key of the ImageJ preferences used to define whether the input tensors
+	 * can be views of the patches instead of copies
+	 */
+	public static final String VIEWS_KEY = "deepimagej.tensor_views";
+	
+	/*
+	 * Number of threads used to extract and to reconstruct patches
+	 */
+	private int 			workers;
+	/*
+	 * Maximum number of batches waiting between two stages
+	 */
+	private int 			queueSize;
+	/*
+	 * Number of patches sent to the model at once
+	 */
+	private int 			batchSize;
+	private RunnerProgress	rp;
+
+	/**
+	 * Step of the pipeline applied to a patch
+	 */
+	public interface Stage {
+		/**
+		 * Process the patch
+		 * @param tile
+		 * 	patch to be processed
+		 * @return false if the execution has to be stopped, true otherwise
+		 * @throws Exception if there is any error processing the patch
+		 */
+		public boolean process(Tile tile) throws Exception;
+	}
+	
+	/**
+	 * Step of the pipeline applied to a batch of patches at once
+	 */
+	public interface BatchStage {
+		/**
+		 * Process the patches of the batch
+		 * @param tiles
+		 * 	patches that form the batch
+		 * @return false if the execution has to be stopped, true otherwise
+		 * @throws Exception if there is any error processing the batch
+		 */
+		public boolean process(List<Tile> tiles) throws Exception;
+	}
+	
+	public TileScheduler(int workers, int queueSize, RunnerProgress rp) {
+		this(workers, queueSize, 1, rp);
+	}
+	
+	public TileScheduler(int workers, int queueSize, int batchSize, RunnerProgress rp) {
+		this.workers = Math.max(1, workers);
+		this.queueSize = Math.max(1, queueSize);
+		this.batchSize = Math.max(1, batchSize);
+		this.rp = rp;
+	}
+	
+	/**
+	 * Number of workers used by default, one per available core
+	 * @return default number of workers
+	 */
+	public static int getDefaultWorkers() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+	
+	/**
+	 * Run the three stages over every patch of the list.
+	 * @param tiles
+	 * 	patches to be processed, in the order they are fed to the model
+	 * @param extract
+	 * 	stage that creates the patch from the input image
+	 * @param infer
+	 * 	stage that runs the model on a batch of patches. It is always executed by the calling thread
+	 * @param reconstruct
+	 * 	stage that writes the outputs of the model into the final images
+	 * @return true if every patch has been processed, false if the execution was stopped
+	 * @throws Exception the first exception thrown by any of the stages
+	 */
+	public boolean run(List<Tile> tiles, Stage extract, BatchStage infer, Stage reconstruct) throws Exception {
+		ExecutorService extractService = Executors.newFixedThreadPool(workers);
+		ExecutorService reconstructService = Executors.newFixedThreadPool(workers);
+		ArrayDeque<Future<Boolean>> extracted = new ArrayDeque<Future<Boolean>>();
+		ArrayDeque<Future<Boolean>> reconstructed = new ArrayDeque<Future<Boolean>>();
+		int maxInFlight = queueSize * batchSize;
+		try {
+			int nextToExtract = 0;
+			for (int start = 0; start < tiles.size(); start += batchSize) {
+				List<Tile> batch = tiles.subList(start, Math.min(start + batchSize, tiles.size()));
+				for (int i = 0; i < batch.size(); i ++) {
+					// Keep the queue of extracted patches full
+					while (nextToExtract < tiles.size() && extracted.size() < maxInFlight) {
+						extracted.add(submit(extractService, extract, tiles.get(nextToExtract ++)));
+					}
+					if (!get(extracted.poll()) || isStopped())
+						return false;
+				}
+				if (!infer.process(batch) || isStopped())
+					return false;
+				for (Tile tile : batch) {
+					// The patch fed to the model is not needed anymore
+					tile.patch = null;
+					// Wait for the oldest reconstruction if the queue is full
+					while (reconstructed.size() >= maxInFlight) {
+						if (!get(reconstructed.poll()))
+							return false;
+					}
+					reconstructed.add(submit(reconstructService, reconstruct, tile));
+				}
+			}
+			while (!reconstructed.isEmpty()) {
+				if (!get(reconstructed.poll()))
+					return false;
+			}
+			return !isStopped();
+		} finally {
+			for (Future<Boolean> ff : extracted)
+				ff.cancel(true);
+			for (Future<Boolean> ff : reconstructed)
+				ff.cancel(true);
+			extractService.shutdownNow();
+			reconstructService.shutdownNow();
+		}
+	}
+	
+	private static Future<Boolean> submit(ExecutorService service, Stage stage, Tile tile) {
+		return service.submit(() -> stage.process(tile));
+	}
+	
+	/**
+	 * Wait for the result of a stage, throwing the original exception if
+	 * the stage failed
+	 */
+	private static boolean get(Future<Boolean> future) throws Exception {
+		try {
+			return future.get();
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof Exception)
+				throw (Exception) ex.getCause();
+			throw ex;
+		}
+	}
+	
+	private boolean isStopped() {
+		return rp != null && rp.isStopped();
+	}
+
+}
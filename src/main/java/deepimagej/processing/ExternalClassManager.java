@@ -45,6 +45,7 @@
 package deepimagej.processing;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
@@ -57,11 +58,52 @@ import ij.IJ;
 
 public class ExternalClassManager {
 	
+	/*
+	 * Maximum number of processing classes kept loaded between executions
+	 */
+	private static final int CACHE_SIZE = 8;
+	/*
+	 * Class loaders and processing classes already loaded, sorted from the least to the
+	 * most recently used. They are identified by the processing file, the dependencies
+	 * and the last time each file was modified, so a modified file is loaded again.
+	 * A manager that leaves the cache while an execution still uses it is closed when
+	 * the execution releases it
+	 */
+	private static final LinkedHashMap<String, ExternalClassManager> loaded = new LinkedHashMap<String, ExternalClassManager>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ExternalClassManager> eldest) {
+			if (size() <= CACHE_SIZE)
+				return false;
+			eldest.getValue().evict();
+			return true;
+		}
+	};
+	
 	/*
 	 * URLClassLoader that contains all the classes needed to run the pre- or post-processing 
 	 */
 	URLClassLoader processingClassLoader;
 	
+	/*
+	 * Class loaders created for this processing, closed when it leaves the cache.
+	 * The class loader of ImageJ/Fiji is never among them
+	 */
+	private ArrayList<URLClassLoader> createdClassLoaders = new ArrayList<URLClassLoader>();
+	
+	/*
+	 * Key of the manager in the cache, null if it is not cached
+	 */
+	private String cacheKey;
+	
+	/*
+	 * Number of executions that are using the manager and whether it has left the
+	 * cache. Both are guarded by the lock of the cache
+	 */
+	private int users = 0;
+	private boolean evicted = false;
+	
 	/*
 	 * The directory where we keep the plugin classes
 	 */
@@ -88,6 +130,122 @@ public class ExternalClassManager {
 	 */
 	boolean preprocessing;
 
+	/**
+	 * Get the class that runs the pre- or post-processing of a file. The class loader
+	 * and the processing class are created the first time and reused by the following
+	 * executions, as long as neither the file nor its dependencies change.
+	 * Every manager obtained has to be released with {@link #release()} once the
+	 * processing has been run.
+	 * @param jarDir: path to the .jar or .class file that contains the processing
+	 * @param preProc: whether the processing is a preprocessing or a postprocessing
+	 * @param params: model parameters
+	 * @return the manager of the processing class
+	 * @throws JavaProcessingError
+	 */
+	public static ExternalClassManager getManager(String jarDir, boolean preProc, Parameters params) throws JavaProcessingError {
+		String key = getCacheKey(jarDir, preProc, params.attachments);
+		ExternalClassManager manager;
+		synchronized (loaded) {
+			manager = loaded.get(key);
+			if (manager != null)
+				manager.users ++;
+		}
+		if (manager == null) {
+			manager = new ExternalClassManager(jarDir, preProc, params);
+			synchronized (loaded) {
+				manager.users = 1;
+				// Only keep the files that contain a processing class
+				if (manager.preProcessingClass != null || manager.postProcessingClass != null) {
+					manager.cacheKey = key;
+					loaded.put(key, manager);
+				} else {
+					manager.evicted = true;
+				}
+			}
+		} else if (preProc) {
+			params.javaPreprocessingClass.add(manager.preProcessingClass.getClass().getName());
+		} else {
+			params.javaPostprocessingClass.add(manager.postProcessingClass.getClass().getName());
+		}
+		return manager;
+	}
+	
+	/**
+	 * Forget every processing class loaded and close their class loaders, so they
+	 * are loaded again the next time they are used. The class loaders of the
+	 * processing being run are closed when it finishes
+	 */
+	public static void clearCache() {
+		synchronized (loaded) {
+			for (ExternalClassManager manager : loaded.values())
+				manager.evict();
+			loaded.clear();
+		}
+	}
+	
+	/**
+	 * Release the manager after running the processing. If it has left the
+	 * cache and no other execution uses it, its class loaders are closed
+	 */
+	public void release() {
+		synchronized (loaded) {
+			users --;
+			if (evicted && users == 0)
+				close();
+		}
+	}
+	
+	/*
+	 * Mark the manager as out of the cache and close its class loaders if no
+	 * execution is using it. Called with the lock of the cache
+	 */
+	private void evict() {
+		evicted = true;
+		if (users == 0)
+			close();
+	}
+	
+	/*
+	 * Remove the manager from the cache, its class loaders are closed once it is
+	 * released. Used when the processing fails, as the processing class keeps its
+	 * error message and state
+	 */
+	private void discard() {
+		synchronized (loaded) {
+			if (cacheKey != null)
+				loaded.remove(cacheKey, this);
+			cacheKey = null;
+			evicted = true;
+		}
+	}
+	
+	/*
+	 * Close the class loaders created for this processing
+	 */
+	private void close() {
+		for (URLClassLoader loader : createdClassLoaders) {
+			try {
+				loader.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		createdClassLoaders.clear();
+	}
+	
+	/*
+	 * Key that identifies a processing file together with its dependencies
+	 */
+	private static String getCacheKey(String jarDir, boolean preProc, ArrayList<String> attachments) {
+		String key = (preProc ? "pre:" : "post:") + jarDir + "@" + new File(jarDir).lastModified();
+		TreeSet<String> files = new TreeSet<String>();
+		if (attachments != null) {
+			for (String file : attachments)
+				files.add(file + "@" + new File(file).lastModified());
+		}
+		return key + files.toString();
+	}
+
 	public ExternalClassManager (String jarDir, boolean preProc, Parameters params) throws JavaProcessingError {
 		processingDir = jarDir;
 		preprocessing = preProc;
@@ -108,14 +266,19 @@ public class ExternalClassManager {
 		else 
 			processingClassLoader = (URLClassLoader) IJ.getClassLoader();
 		createProcessingClassLoader(params);
+		createdClassLoaders.add(processingClassLoader);
 		if (jarDir.contains(".jar") && (preProc == true)) {
 			processingClassLoader = LoadJar.loadSingleJarToExistingURLClassLoader(jarDir, processingClassLoader);
+			createdClassLoaders.add(processingClassLoader);
 			preProcessingClass = LoadJar.loadPreProcessingInterface(jarDir, params, processingClassLoader);
 		} else if (jarDir.contains(".jar") && (preProc == false)) {
 			processingClassLoader = LoadJar.loadSingleJarToExistingURLClassLoader(jarDir, processingClassLoader);
+			createdClassLoaders.add(processingClassLoader);
 			postProcessingClass = LoadJar.loadPostProcessingInterface(jarDir, params, processingClassLoader);
 		} else {
 			processingClassLoader = LoadJar.loadClassFileIntoURLClassLoader(jarDir, new File(jarDir).getParent(), processingClassLoader);
+			if (!createdClassLoaders.contains(processingClassLoader))
+				createdClassLoaders.add(processingClassLoader);
 			getInterface(jarDir, params);
 		}
 	}
@@ -153,6 +316,10 @@ public class ExternalClassManager {
 					}
 				}
 			}
+			if (preProcessingClass != null || postProcessingClass != null)
+				return;
+			ex.setJavaError("The class " + className + " in file " + new File(classFile).getName() + " does not implement\n"
+					+ "the DeepImageJ pre- or post-processing interface.");
 		} catch (ClassNotFoundException e) {
 			ex.setJavaError("Cannot load Java class " + className + " from file " + new File(classFile).getName() + ".\n"
 					+ "Check that the file exists and that ImageJ/Fiji has the permissions to open the it.");
@@ -188,6 +355,24 @@ public class ExternalClassManager {
 	}
 
 	public HashMap<String, Object> javaPreprocess(HashMap<String, Object> map, ArrayList<String> config) throws JavaProcessingError {
+		try {
+			return runPreprocess(map, config);
+		} catch (JavaProcessingError ex) {
+			discard();
+			throw ex;
+		}
+	}
+
+	public HashMap<String, Object> javaPostprocess(HashMap<String, Object> map, ArrayList<String> config) throws JavaProcessingError {
+		try {
+			return runPostprocess(map, config);
+		} catch (JavaProcessingError ex) {
+			discard();
+			throw ex;
+		}
+	}
+
+	private HashMap<String, Object> runPreprocess(HashMap<String, Object> map, ArrayList<String> config) throws JavaProcessingError {
 		try {
 			preProcessingClass.setConfigFiles(config);
 			map = preProcessingClass.deepimagejPreprocessing(map);
@@ -225,7 +410,7 @@ public class ExternalClassManager {
 		return map;
 	}
 
-	public HashMap<String, Object> javaPostprocess(HashMap<String, Object> map, ArrayList<String> config) throws JavaProcessingError {
+	private HashMap<String, Object> runPostprocess(HashMap<String, Object> map, ArrayList<String> config) throws JavaProcessingError {
 		try {
 			postProcessingClass.setConfigFiles(config);
 			map = postProcessingClass.deepimagejPostprocessing(map);
@@ -49,7 +49,10 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 
 import deepimagej.Parameters;
 import deepimagej.exceptions.JavaProcessingError;
@@ -57,6 +60,7 @@ import deepimagej.exceptions.MacrosError;
 import deepimagej.tools.DijTensor;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.Prefs;
 import ij.WindowManager;
 import ij.measure.ResultsTable;
 import ij.text.TextWindow;
@@ -73,8 +77,8 @@ public class ProcessingBridge {
 		// Assume that the image selected will result in the input image to the model
 		// Assumes 'im' will be the input to the model
 		if (params.firstPreprocessing != null && (params.firstPreprocessing.contains(".txt") || params.firstPreprocessing.contains(".ijm"))) {
-			System.out.println("[DEBUG] Run Macro pre-processing");
-			im = runProcessingMacro(im, params.firstPreprocessing, params.developer);
+			im = runPreprocessingMacro(im, params.firstPreprocessing, params.inputList.get(inputImageInd), params.developer,
+										map, params.secondPreprocessing == null);
 			map = manageInputs(map, false, params, im);
 		} else if (params.firstPreprocessing != null && (params.firstPreprocessing.contains(".jar") || params.firstPreprocessing.contains(".class") || new File(params.firstPreprocessing).isDirectory())) {
 			System.out.println("[DEBUG] Run Java pre-processing");
@@ -84,8 +88,8 @@ public class ProcessingBridge {
 		
 
 		if (params.secondPreprocessing != null && (params.secondPreprocessing.contains(".txt") || params.secondPreprocessing.contains(".ijm"))) {
-			System.out.println("[DEBUG] Run Macro pre-processing");
-			im = runProcessingMacro(im, params.secondPreprocessing, params.developer);
+			im = runPreprocessingMacro(im, params.secondPreprocessing, params.inputList.get(inputImageInd), params.developer,
+										map, true);
 			map = manageInputs(map, true,  params, im);
 		} else if (params.secondPreprocessing != null && (params.secondPreprocessing.contains(".jar") || params.secondPreprocessing.contains(".class") || new File(params.secondPreprocessing).isDirectory())) {
 			System.out.println("[DEBUG] Run Java pre-processing");
@@ -164,11 +168,41 @@ public class ProcessingBridge {
 	 */
 	private static HashMap<String, Object> runPreprocessingJava(HashMap<String, Object> map, String processingPath, ArrayList<String> config, Parameters params) throws JavaProcessingError, NoSuchMethodException, SecurityException, IllegalAccessException, IllegalArgumentException, InvocationTargetException, ClassNotFoundException, InstantiationException, IOException {
 		boolean preprocessing = true;
-		ExternalClassManager processingRunner = new ExternalClassManager (processingPath, preprocessing, params);
-		map = processingRunner.javaPreprocess(map, config);
+		ExternalClassManager processingRunner = ExternalClassManager.getManager(processingPath, preprocessing, params);
+		try {
+			map = processingRunner.javaPreprocess(map, config);
+		} finally {
+			processingRunner.release();
+		}
 		return map;
 	}
 
+	/*
+	 * Run a macro preprocessing on the image. If the macro corresponds to the standard
+	 * Bioimage.io preprocessing of the input tensor, the Java implementation is used
+	 * instead of the macro. If it is also the last preprocessing step, the image is not
+	 * modified: the normalization is stored in the map and applied when the image is
+	 * copied into the input tensor
+	 */
+	private static ImagePlus runPreprocessingMacro(ImagePlus img, String macroPath, DijTensor tensor, boolean developer,
+													HashMap<String, Object> map, boolean lastStep) throws MacrosError {
+		if (StandardProcessing.replacesMacro(macroPath, tensor) && lastStep) {
+			boolean perTile = Prefs.getBoolean(StandardProcessing.TILE_KEY, false);
+			StandardProcessing.Normalization norm = StandardProcessing.prepare(img, tensor.processing, perTile);
+			if (norm != null) {
+				System.out.println("[DEBUG] Fuse Java standard pre-processing with the input tensor instead of " + new File(macroPath).getName());
+				map.put(StandardProcessing.getMapKey(tensor.name), norm);
+				return img;
+			}
+		}
+		if (StandardProcessing.replacesMacro(macroPath, tensor)) {
+			System.out.println("[DEBUG] Run Java standard pre-processing instead of " + new File(macroPath).getName());
+			return StandardProcessing.run(img, tensor.processing);
+		}
+		System.out.println("[DEBUG] Run Macro pre-processing");
+		return runProcessingMacro(img, macroPath, developer);
+	}
+
 	private static ImagePlus runProcessingMacro(ImagePlus img, String macroPath, boolean developer) throws MacrosError {
 		WindowManager.setTempCurrentImage(img);
 		String aborted = "";
@@ -213,11 +247,20 @@ public class ProcessingBridge {
 														IOException {
 
 		params.javaPostprocessingClass = new ArrayList<String>();
+		// Images and tables already open, such as the inputs of the next image in
+		// a batch, are not outputs of the postprocessing
+		HashSet<Integer> openImages = new HashSet<Integer>();
+		int[] ids = WindowManager.getIDList();
+		for (int i = 0; ids != null && i < ids.length; i ++)
+			openImages.add(ids[i]);
+		List<Frame> openWindows = Arrays.asList(WindowManager.getNonImageWindows());
 		
 		if (params.firstPostprocessing != null && (params.firstPostprocessing.contains(".txt") || params.firstPostprocessing.contains(".ijm"))) {
-			System.out.println("[DEBUG] Run Macro post-processing");
-			runPostprocessingMacro(params.firstPostprocessing);
-			map = manageOutputs(map);
+			if (!runStandardPostprocessing(params.firstPostprocessing, params, map)) {
+				System.out.println("[DEBUG] Run Macro post-processing");
+				runPostprocessingMacro(params.firstPostprocessing);
+				map = manageOutputs(map, openImages, openWindows);
+			}
 		} else if (params.firstPostprocessing != null && (params.firstPostprocessing.contains(".jar") || params.firstPostprocessing.contains(".class") || new File(params.firstPostprocessing).isDirectory())) {
 			System.out.println("[DEBUG] Run Java post-processing");
 			map = runPostprocessingJava(map, params.firstPostprocessing, params.attachments, params);
@@ -225,8 +268,10 @@ public class ProcessingBridge {
 		
 
 		if (params.secondPostprocessing != null && (params.secondPostprocessing.contains(".txt") || params.secondPostprocessing.contains(".ijm"))) {
-			System.out.println("[DEBUG] Run Macro post-processing");
-			runPostprocessingMacro(params.secondPostprocessing);
+			if (!runStandardPostprocessing(params.secondPostprocessing, params, map)) {
+				System.out.println("[DEBUG] Run Macro post-processing");
+				runPostprocessingMacro(params.secondPostprocessing);
+			}
 		} else if (params.secondPostprocessing != null && (params.secondPostprocessing.contains(".jar") || params.secondPostprocessing.contains(".class") || new File(params.secondPostprocessing).isDirectory())) {
 			System.out.println("[DEBUG] Run Java post-processing");
 			map = runPostprocessingJava(map, params.secondPostprocessing, params.attachments, params);
@@ -261,11 +306,36 @@ public class ProcessingBridge {
 																 IllegalArgumentException, InvocationTargetException,
 																 ClassNotFoundException, InstantiationException, IOException {
 		boolean preprocessing = false;
-		ExternalClassManager processingRunner = new ExternalClassManager (processingPath, preprocessing, params);
-		map = processingRunner.javaPostprocess(map, config);
+		ExternalClassManager processingRunner = ExternalClassManager.getManager(processingPath, preprocessing, params);
+		try {
+			map = processingRunner.javaPostprocess(map, config);
+		} finally {
+			processingRunner.release();
+		}
 		return map;
 	}
 
+	/***************************
+	 * Method to run the Java implementation of the standard Bioimage.io postprocessing
+	 * instead of a macro, on every output image whose postprocessing corresponds to the macro.
+	 * @param macroPath: path to the macro file
+	 * @param params: model parameters
+	 * @param map: outputs of the model, they are modified in place
+	 * @return true if the Java implementation has replaced the macro
+	 */
+	private static boolean runStandardPostprocessing(String macroPath, Parameters params, HashMap<String, Object> map) {
+		boolean replaced = false;
+		for (DijTensor tensor : params.outputList) {
+			Object out = map.get(tensor.name);
+			if (!(out instanceof ImagePlus) || !StandardProcessing.replacesMacro(macroPath, tensor))
+				continue;
+			System.out.println("[DEBUG] Run Java standard post-processing instead of " + new File(macroPath).getName());
+			StandardProcessing.run((ImagePlus) out, tensor.processing);
+			replaced = true;
+		}
+		return replaced;
+	}
+
 	/***************************
 	 * Method to run a macro processing routine over the outputs of the model. 
 	 * @param macroPath: path to the macro file
@@ -281,18 +351,22 @@ public class ProcessingBridge {
 	}
 	
 	/**************************
-	 * Method that puts all the images and results tables with their names
-	 * in a hashmap.
+	 * Method that puts all the images and results tables opened by the postprocessing
+	 * with their names in a hashmap.
+	 * @param openImages: IDs of the images that were open before the postprocessing
+	 * @param openWindows: tables and other windows that were open before the postprocessing
 	 * @return map: hashmap containing all the images and results tables.
 	 */
-	private static HashMap<String, Object> manageOutputs(HashMap<String, Object> map) {
+	private static HashMap<String, Object> manageOutputs(HashMap<String, Object> map, HashSet<Integer> openImages, List<Frame> openWindows) {
 		Frame[] nonImageWindows = WindowManager.getNonImageWindows();
-		String[] imageTitles = WindowManager.getImageTitles();
-		for (String title : imageTitles) {
-			map.put(title, WindowManager.getImage(title));
+		int[] ids = WindowManager.getIDList();
+		for (int i = 0; ids != null && i < ids.length; i ++) {
+			ImagePlus imp = WindowManager.getImage(ids[i]);
+			if (imp != null && !openImages.contains(ids[i]))
+				map.put(imp.getTitle(), imp);
 		}
 		for (Frame f : nonImageWindows) {
-	        if (f!=null && (f instanceof TextWindow)) {
+	        if (f!=null && (f instanceof TextWindow) && !openWindows.contains(f)) {
 	        	String tableTitle = f.getTitle();
 	        	ResultsTable table = ((TextWindow)f).getResultsTable();
 				map.put(tableTitle, table);
@@ -0,0 +1,612 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej.processing;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import deepimagej.tools.DijTensor;
+import deepimagej.tools.PercentileHistogram;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.process.ImageConverter;
+import ij.process.StackConverter;
+
+/**
+ * Java implementation of the standard pre- and post-processing operations of the
+ * Bioimage.io specification: zero_mean_unit_variance, scale_range, scale_linear, clip,
+ * binarize and sigmoid.
+ * The operations are applied directly on the pixel arrays of the image, plane by plane
+ * and in parallel, instead of running the equivalent ImageJ macro. Consecutive
+ * operations that do not need statistics of the image are applied in a single pass.
+ * The image is converted to 32 bits, as the macros do.
+ * When the processing is the last step before the model, it can also be fused with the
+ * conversion of the image into the input tensor: the statistics are computed before
+ * running the model and the operations are applied while the pixels are copied into
+ * the tensor, so the image is only read once and never rewritten (see {@link Normalization}).
+ * The Java implementation can be disabled with:
+ * call("ij.Prefs.set", "deepimagej.java_processing", "false");
+ */
+public class StandardProcessing {
+	
+	/*
+	 * Key of the ImageJ preferences used to enable the Java implementation
+	 * of the standard processing
+	 */
+	public static final String ENABLED_KEY = "deepimagej.java_processing";
+	/*
+	 * Operations of the Bioimage.io specification implemented
+	 */
+	public static final String[] OPERATIONS = {"zero_mean_unit_variance", "scale_range", "scale_linear",
+											   "clip", "binarize", "sigmoid"};
+	/*
+	 * Key of the ImageJ preferences used to compute the statistics of the
+	 * normalization on each tile instead of on the whole image
+	 */
+	public static final String TILE_KEY = "deepimagej.tile_normalization";
+	/*
+	 * Default epsilon used by the operations that divide
+	 */
+	private static final double EPS = 1e-6;
+	/*
+	 * Number of rows of the blocks in which each plane is split to be processed
+	 * in parallel. It does not depend on the number of threads, so the sums are
+	 * always added in the same order
+	 */
+	private static final int BLOCK_ROWS = 64;
+	
+	/**
+	 * Operation applied to each pixel of a group of planes
+	 */
+	public interface Kernel {
+		public float apply(float v);
+	}
+	
+	/**
+	 * Processing steps of an input that are applied while the image is copied into
+	 * the tensor. The statistics are either computed once on the whole image, or on 
+	 * each of the tiles (each frame of the image given) if the normalization is per tile.
+	 */
+	public static class Normalization {
+		private List<Map<String, Object>> steps;
+		private boolean perTile;
+		private Kernel[] channelKernels = null;
+		
+		private Normalization(List<Map<String, Object>> steps, boolean perTile) {
+			this.steps = steps;
+			this.perTile = perTile;
+		}
+		
+		/**
+		 * Get the operation applied to each channel of each frame of the image
+		 * @param imp
+		 * 	image (tile or batch of tiles) copied into the tensor
+		 * @return the operations, indexed by frame and then by channel
+		 */
+		public Kernel[][] getKernels(ImagePlus imp) {
+			Kernel[][] kernels = new Kernel[imp.getNFrames()][];
+			for (int t = 0; t < kernels.length; t ++) {
+				if (!perTile) {
+					kernels[t] = channelKernels;
+					continue;
+				}
+				ImagePlus frame = imp;
+				if (imp.getNFrames() > 1)
+					frame = new ImagePlus("", getFrame(imp, t));
+				frame.setDimensions(imp.getNChannels(), imp.getNSlices(), 1);
+				kernels[t] = getChannelKernels(frame, steps);
+			}
+			return kernels;
+		}
+		
+		/**
+		 * Whether the statistics are computed on each tile
+		 * @return true if the statistics are computed for each tile
+		 */
+		public boolean isPerTile() {
+			return perTile;
+		}
+	}
+	
+	/*
+	 * Operation of a processing step for each group of planes. The planes are
+	 * grouped by the axes that are not reduced when computing statistics
+	 */
+	private static class Step {
+		private Kernel[] kernels;
+		private boolean perChannel;
+		private boolean perSlice;
+		private int nc;
+		private int nz;
+		
+		private Step(ImagePlus imp, Map<String, Object> kwargs) {
+			String axes = getAxes(kwargs);
+			perChannel = !axes.contains("c");
+			perSlice = !axes.contains("z");
+			nc = perChannel ? imp.getNChannels() : 1;
+			nz = perSlice ? imp.getNSlices() : 1;
+			kernels = new Kernel[nc * nz * imp.getNFrames()];
+		}
+		
+		/*
+		 * Group of a plane of the image. Every frame is always a different sample
+		 */
+		private int getGroup(ImagePlus imp, int plane) {
+			int[] czt = imp.convertIndexToPosition(plane + 1);
+			int c = perChannel ? czt[0] - 1 : 0;
+			int z = perSlice ? czt[1] - 1 : 0;
+			return ((czt[2] - 1) * nz + z) * nc + c;
+		}
+		
+		/*
+		 * Channel of a group, used to select the parameters given per channel
+		 */
+		private int getChannel(int group) {
+			return perChannel ? group % nc : 0;
+		}
+	}
+	
+	/**
+	 * Read the processing steps of a tensor from the rdf.yaml. Each step is a map with
+	 * the name of the operation ('name' or 'id') and its parameters ('kwargs').
+	 * @param spec
+	 * 	object read from the 'preprocessing' or 'postprocessing' field of the tensor
+	 * @return the list of steps or null if there are none
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<Map<String, Object>> getSteps(Object spec) {
+		if (!(spec instanceof List) || ((List<?>) spec).size() == 0)
+			return null;
+		List<Map<String, Object>> steps = new ArrayList<Map<String, Object>>();
+		for (Object step : (List<?>) spec) {
+			if (!(step instanceof Map))
+				return null;
+			steps.add((Map<String, Object>) step);
+		}
+		return steps;
+	}
+	
+	/**
+	 * Whether the processing file selected can be replaced by the Java implementation
+	 * of the processing steps of the tensor. This is the case when the file is a macro
+	 * named after one of the operations of the tensor (for example 'zero_mean_unit_variance.ijm'
+	 * or 'per_sample_scale_range.ijm') and every operation of the tensor is implemented.
+	 * @param processingPath
+	 * 	path to the processing file selected
+	 * @param tensor
+	 * 	tensor whose steps are checked
+	 * @return true if the Java implementation can be used
+	 */
+	public static boolean replacesMacro(String processingPath, DijTensor tensor) {
+		if (processingPath == null || tensor == null || tensor.processing == null || !Prefs.get(ENABLED_KEY, true))
+			return false;
+		if (!processingPath.endsWith(".ijm") && !processingPath.endsWith(".txt"))
+			return false;
+		String macroName = new File(processingPath).getName();
+		macroName = macroName.substring(0, macroName.lastIndexOf(".")).toLowerCase();
+		boolean named = false;
+		for (Map<String, Object> step : tensor.processing) {
+			String op = getName(step);
+			if (!isSupported(op, getKwargs(step)))
+				return false;
+			named = named || macroName.equals(op) || macroName.endsWith("_" + op);
+		}
+		return named;
+	}
+	
+	/**
+	 * Apply the processing steps to the image. The image is converted to 32 bits
+	 * and modified in place.
+	 * @param imp
+	 * 	image to process
+	 * @param steps
+	 * 	operations applied in order
+	 * @return the image processed
+	 */
+	public static ImagePlus run(ImagePlus imp, List<Map<String, Object>> steps) {
+		if (imp.getBitDepth() != 32) {
+			if (imp.getStackSize() > 1)
+				new StackConverter(imp).convertToGray32();
+			else
+				new ImageConverter(imp).convertToGray32();
+		}
+		List<Step> pending = new ArrayList<Step>();
+		for (Map<String, Object> step : steps) {
+			String op = getName(step);
+			Map<String, Object> kwargs = getKwargs(step);
+			if (op.equals("zero_mean_unit_variance") || op.equals("scale_range")) {
+				// Statistics are computed on the image modified by the previous steps
+				apply(imp, pending);
+				pending.clear();
+			}
+			pending.add(createKernels(op, kwargs, imp, pending));
+		}
+		apply(imp, pending);
+		imp.resetDisplayRange();
+		return imp;
+	}
+	
+	/**
+	 * Prepare the processing steps to be applied while the image is copied into the
+	 * tensor. The image is not modified. The statistics needed are computed now on the
+	 * whole image, unless the normalization is done per tile.
+	 * The steps can only be fused if the same operation is applied to every slice of 
+	 * the image, as the tiles are not aligned with the slices.
+	 * @param imp
+	 * 	image that is going to be fed to the model
+	 * @param steps
+	 * 	operations applied in order
+	 * @param perTile
+	 * 	whether the statistics are computed on each tile or on the whole image
+	 * @return the normalization or null if the steps cannot be fused with the copy
+	 */
+	public static Normalization prepare(ImagePlus imp, List<Map<String, Object>> steps, boolean perTile) {
+		if (imp.getNFrames() != 1)
+			return null;
+		for (Map<String, Object> step : steps) {
+			if (imp.getNSlices() > 1 && !getAxes(getKwargs(step)).contains("z"))
+				return null;
+		}
+		Normalization norm = new Normalization(steps, perTile);
+		if (!perTile)
+			norm.channelKernels = getChannelKernels(imp, steps);
+		return norm;
+	}
+	
+	/**
+	 * Key used to store the normalization of an input in the map of inputs
+	 * produced by the preprocessing
+	 * @param tensorName
+	 * 	name of the input tensor
+	 * @return the key of the map
+	 */
+	public static String getMapKey(String tensorName) {
+		return "deepimagej.normalization." + tensorName;
+	}
+	
+	/*
+	 * Compute the statistics of the steps on the image and fuse the operations
+	 * of each channel. The image must have only one frame
+	 */
+	private static Kernel[] getChannelKernels(ImagePlus imp, List<Map<String, Object>> steps) {
+		List<Step> chain = new ArrayList<Step>();
+		for (Map<String, Object> step : steps)
+			chain.add(createKernels(getName(step), getKwargs(step), imp, chain));
+		Kernel[] kernels = new Kernel[imp.getNChannels()];
+		for (int c = 0; c < kernels.length; c ++) {
+			int plane = imp.getStackIndex(c + 1, 1, 1) - 1;
+			final Kernel[] seq = new Kernel[chain.size()];
+			for (int k = 0; k < seq.length; k ++)
+				seq[k] = chain.get(k).kernels[chain.get(k).getGroup(imp, plane)];
+			kernels[c] = v -> {
+				for (Kernel op : seq)
+					v = op.apply(v);
+				return v;
+			};
+		}
+		return kernels;
+	}
+	
+	/*
+	 * Planes of a frame of the image
+	 */
+	private static ImageStack getFrame(ImagePlus imp, int t) {
+		ImageStack stack = new ImageStack(imp.getWidth(), imp.getHeight());
+		for (int z = 0; z < imp.getNSlices(); z ++) {
+			for (int c = 0; c < imp.getNChannels(); c ++) {
+				int n = imp.getStackIndex(c + 1, z + 1, t + 1);
+				stack.addSlice(null, imp.getStack().getPixels(n));
+			}
+		}
+		return stack;
+	}
+	
+	/*
+	 * Whether an operation with its parameters is implemented
+	 */
+	private static boolean isSupported(String op, Map<String, Object> kwargs) {
+		if (!Arrays.asList(OPERATIONS).contains(op))
+			return false;
+		Object mode = kwargs.get("mode");
+		if (mode != null && !mode.equals("per_sample") && !mode.equals("fixed"))
+			return false;
+		if (op.equals("scale_range") && (mode != null && mode.equals("fixed") || kwargs.get("reference_tensor") != null))
+			return false;
+		return true;
+	}
+	
+	/*
+	 * Create the pixel operation of each group of planes
+	 */
+	private static Step createKernels(String op, Map<String, Object> kwargs, ImagePlus imp, List<Step> pre) {
+		Step step = new Step(imp, kwargs);
+		Kernel[] kernels = step.kernels;
+		int nGroups = kernels.length;
+		double eps = getNumber(kwargs, "eps", 0, EPS);
+		switch (op) {
+		case "zero_mean_unit_variance": {
+			double[][] stats = null;
+			if (!"fixed".equals(kwargs.get("mode")))
+				stats = computeMeanStd(imp, pre, step);
+			for (int g = 0; g < nGroups; g ++) {
+				int c = step.getChannel(g);
+				double mean = stats == null ? getNumber(kwargs, "mean", c, 0) : stats[g][0];
+				double std = stats == null ? getNumber(kwargs, "std", c, 1) : stats[g][1];
+				final float m = (float) mean;
+				final float s = (float) (1.0 / (std + eps));
+				kernels[g] = v -> (v - m) * s;
+			}
+			break;
+		}
+		case "scale_range": {
+			double minP = getNumber(kwargs, "min_percentile", 0, 0);
+			double maxP = getNumber(kwargs, "max_percentile", 0, 100);
+			double[][] range = computePercentiles(imp, pre, step, minP, maxP);
+			for (int g = 0; g < nGroups; g ++) {
+				final float lo = (float) range[g][0];
+				final float s = (float) (1.0 / (range[g][1] - range[g][0] + eps));
+				kernels[g] = v -> (v - lo) * s;
+			}
+			break;
+		}
+		case "scale_linear":
+			for (int g = 0; g < nGroups; g ++) {
+				int c = step.getChannel(g);
+				final float gain = (float) getNumber(kwargs, "gain", c, 1);
+				final float offset = (float) getNumber(kwargs, "offset", c, 0);
+				kernels[g] = v -> v * gain + offset;
+			}
+			break;
+		case "clip": {
+			final float min = (float) getNumber(kwargs, "min", 0, Double.NEGATIVE_INFINITY);
+			final float max = (float) getNumber(kwargs, "max", 0, Double.POSITIVE_INFINITY);
+			Arrays.fill(kernels, (Kernel) v -> Math.min(max, Math.max(min, v)));
+			break;
+		}
+		case "binarize": {
+			final float threshold = (float) getNumber(kwargs, "threshold", 0, 0.5);
+			Arrays.fill(kernels, (Kernel) v -> v > threshold ? 1f : 0f);
+			break;
+		}
+		case "sigmoid":
+			Arrays.fill(kernels, (Kernel) v -> (float) (1.0 / (1.0 + Math.exp(-v))));
+			break;
+		}
+		return step;
+	}
+	
+	/*
+	 * Apply the pending operations to every plane in a single pass. The blocks of
+	 * rows of every plane are processed in parallel
+	 */
+	private static void apply(ImagePlus imp, List<Step> pending) {
+		if (pending.size() == 0)
+			return;
+		ImageStack stack = imp.getStack();
+		int nx = imp.getWidth();
+		int nBlocks = getBlocks(imp);
+		IntStream.range(0, imp.getStackSize() * nBlocks).parallel().forEach(t -> {
+			int p = t / nBlocks;
+			int b = t % nBlocks;
+			float[] pixels = (float[]) stack.getPixels(p + 1);
+			Kernel[] chain = new Kernel[pending.size()];
+			for (int k = 0; k < chain.length; k ++)
+				chain[k] = pending.get(k).kernels[pending.get(k).getGroup(imp, p)];
+			int end = Math.min(imp.getHeight(), (b + 1) * BLOCK_ROWS) * nx;
+			for (int i = b * BLOCK_ROWS * nx; i < end; i ++) {
+				float v = pixels[i];
+				for (Kernel op : chain)
+					v = op.apply(v);
+				pixels[i] = v;
+			}
+		});
+	}
+	
+	/*
+	 * Mean and standard deviation of each group of planes, after applying the previous
+	 * steps. The sums of each block of rows of each plane are computed in parallel and
+	 * added in order, so the result does not depend on the number of threads
+	 */
+	private static double[][] computeMeanStd(ImagePlus imp, List<Step> pre, Step step) {
+		int nPlanes = imp.getStackSize();
+		int nBlocks = getBlocks(imp);
+		double[][] sums = new double[nPlanes * nBlocks][3];
+		IntStream.range(0, nPlanes * nBlocks).parallel().forEach(t -> {
+			int b = t % nBlocks;
+			double s = 0;
+			double s2 = 0;
+			float[] values = readRows(imp, t / nBlocks, pre, b * BLOCK_ROWS, Math.min(imp.getHeight(), (b + 1) * BLOCK_ROWS));
+			for (float v : values) {
+				s += v;
+				s2 += (double) v * v;
+			}
+			sums[t][0] = s;
+			sums[t][1] = s2;
+			sums[t][2] = values.length;
+		});
+		double[][] stats = new double[step.kernels.length][3];
+		for (int t = 0; t < sums.length; t ++) {
+			int g = step.getGroup(imp, t / nBlocks);
+			stats[g][0] += sums[t][0];
+			stats[g][1] += sums[t][1];
+			stats[g][2] += sums[t][2];
+		}
+		for (double[] st : stats) {
+			double mean = st[0] / st[2];
+			double var = Math.max(0, st[1] / st[2] - mean * mean);
+			st[0] = mean;
+			st[1] = Math.sqrt(var);
+		}
+		return stats;
+	}
+	
+	/*
+	 * Percentiles of each group of planes after applying the previous steps, 
+	 * interpolated linearly between the closest values. The planes are read one by one
+	 * with {@link PercentileHistogram}, so the image is not copied
+	 */
+	private static double[][] computePercentiles(ImagePlus imp, List<Step> pre, Step step, double minP, double maxP) {
+		int nPlanes = imp.getStackSize();
+		double[][] range = new double[step.kernels.length][];
+		for (int g = 0; g < range.length; g ++) {
+			final int group = g;
+			int[] groupPlanes = IntStream.range(0, nPlanes).filter(p -> step.getGroup(imp, p) == group).toArray();
+			range[g] = PercentileHistogram.getPercentiles(groupPlanes.length, 
+											i -> readPlane(imp, groupPlanes[i], pre), minP, maxP);
+		}
+		return range;
+	}
+	
+	/*
+	 * Values of a plane of the image as floats, after applying the previous steps.
+	 * If there are no previous steps and the image is 32-bit, the pixels of the image
+	 * are returned without copying them
+	 */
+	private static float[] readPlane(ImagePlus imp, int p, List<Step> pre) {
+		Object pixels = imp.getStack().getPixels(p + 1);
+		if (pixels instanceof float[] && pre.size() == 0)
+			return (float[]) pixels;
+		return readRows(imp, p, pre, 0, imp.getHeight());
+	}
+	
+	/*
+	 * Values of the rows from y0 (included) to y1 (excluded) of a plane of the image
+	 * as floats, after applying the previous steps. They are always a copy
+	 */
+	private static float[] readRows(ImagePlus imp, int p, List<Step> pre, int y0, int y1) {
+		Object pixels = imp.getStack().getPixels(p + 1);
+		int from = y0 * imp.getWidth();
+		int to = y1 * imp.getWidth();
+		float[] values = new float[to - from];
+		float[] cTable = imp.getCalibration().getCTable();
+		if (pixels instanceof float[]) {
+			System.arraycopy((float[]) pixels, from, values, 0, values.length);
+		} else if (pixels instanceof short[]) {
+			short[] px = (short[]) pixels;
+			for (int i = from; i < to; i ++)
+				values[i - from] = cTable == null ? px[i] & 0xffff : cTable[px[i] & 0xffff];
+		} else if (pixels instanceof byte[]) {
+			byte[] px = (byte[]) pixels;
+			for (int i = from; i < to; i ++)
+				values[i - from] = cTable == null ? px[i] & 0xff : cTable[px[i] & 0xff];
+		} else {
+			float[] px = (float[]) imp.getStack().getProcessor(p + 1).convertToFloat().getPixels();
+			System.arraycopy(px, from, values, 0, values.length);
+		}
+		if (pre.size() == 0)
+			return values;
+		Kernel[] chain = new Kernel[pre.size()];
+		for (int k = 0; k < chain.length; k ++)
+			chain[k] = pre.get(k).kernels[pre.get(k).getGroup(imp, p)];
+		for (int i = 0; i < values.length; i ++) {
+			float v = values[i];
+			for (Kernel op : chain)
+				v = op.apply(v);
+			values[i] = v;
+		}
+		return values;
+	}
+	
+	/*
+	 * Number of blocks of rows of each plane
+	 */
+	private static int getBlocks(ImagePlus imp) {
+		return (imp.getHeight() + BLOCK_ROWS - 1) / BLOCK_ROWS;
+	}
+	
+	private static String getAxes(Map<String, Object> kwargs) {
+		Object axes = kwargs.get("axes");
+		if (axes == null)
+			return "xyzc";
+		if (axes instanceof List) {
+			String str = "";
+			for (Object ax : (List<?>) axes)
+				str += ("" + ax).toLowerCase();
+			return str;
+		}
+		return ("" + axes).toLowerCase();
+	}
+	
+	/*
+	 * Get a parameter that can be either a number or a list of numbers, one per channel
+	 */
+	private static double getNumber(Map<String, Object> kwargs, String key, int channel, double defaultValue) {
+		Object value = kwargs.get(key);
+		if (value instanceof List) {
+			List<?> list = (List<?>) value;
+			if (list.size() == 0)
+				return defaultValue;
+			value = list.get(Math.min(channel, list.size() - 1));
+		}
+		if (value instanceof Number)
+			return ((Number) value).doubleValue();
+		if (value == null)
+			return defaultValue;
+		try {
+			return Double.parseDouble("" + value);
+		} catch (NumberFormatException ex) {
+			return defaultValue;
+		}
+	}
+	
+	private static String getName(Map<String, Object> step) {
+		Object name = step.get("name") != null ? step.get("name") : step.get("id");
+		return ("" + name).trim().toLowerCase();
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> getKwargs(Map<String, Object> step) {
+		Object kwargs = step.get("kwargs");
+		if (kwargs instanceof Map)
+			return (Map<String, Object>) kwargs;
+		return new HashMap<String, Object>();
+	}
+}
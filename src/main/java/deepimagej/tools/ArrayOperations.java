@@ -52,6 +52,7 @@ import java.util.List;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.WindowManager;
 import ij.gui.ImageWindow;
 import ij.macro.Interpreter;
@@ -87,28 +88,78 @@ public class ArrayOperations {
 		// This method obtains a patch with the wanted size, starting at 'x_start' and
 		// 'y_start' and returns it as RandomAccessibleInterval with the dimensions
 		// already adjusted
+		// The actual patch with false and true information goes from patch_size/2
+		// number of pixels before the actual start of the patch until patch_size/2 number of pixels after
+		return extractMirroredPatch(image, sPatch, xStart - overlapX, yStart - overlapY, zStart - overlapZ);
+	}
+
+	/**
+	 * Extract a patch from an image as if the image was extended by mirroring
+	 * at its borders. The mirrored image is never created, the position of each pixel 
+	 * of the patch in the original image is computed on the fly, so the patch can start 
+	 * before the beginning of the image or finish after its end.
+	 * The processors are obtained from the stacks and not from the ImagePlus
+	 * so several patches can be extracted at the same time from the same image
+	 * @param image
+	 * 	image from which the patch is extracted
+	 * @param sPatch
+	 * 	size of the patch in the order XYCZ
+	 * @param xStart
+	 * 	first position of the patch along X in the coordinates of the image, it can be negative
+	 * @param yStart
+	 * 	first position of the patch along Y in the coordinates of the image, it can be negative
+	 * @param zStart
+	 * 	first position of the patch along Z in the coordinates of the image, it can be negative
+	 * @return the patch as a 32-bit image
+	 */
+	public static ImagePlus extractMirroredPatch(ImagePlus image, int[] sPatch, int xStart, int yStart, int zStart) {
 		ImagePlus patchImage = IJ.createImage("aux", "32-bit", sPatch[0], sPatch[1], sPatch[2], sPatch[3], 1);
-		int zi = -1;
-		for (int z = zStart - overlapZ; z < zStart - overlapZ + sPatch[3]; z++) {
-			zi ++; 
+		ImageStack stack = image.getStack();
+		ImageStack patchStack = patchImage.getStack();
+		int nx = image.getWidth();
+		int[] xMap = CompactMirroring.mirrorIndices(xStart, sPatch[0], nx);
+		int[] yMap = CompactMirroring.mirrorIndices(yStart, sPatch[1], image.getHeight());
+		int[] zMap = CompactMirroring.mirrorIndices(zStart, sPatch[3], image.getNSlices());
+		// Part of each row of the patch that is inside the image. It can be copied
+		// at once, only the mirrored borders need to be read pixel by pixel
+		int inStart = Math.min(sPatch[0], Math.max(0, -xStart));
+		int inEnd = Math.max(inStart, Math.min(sPatch[0], nx - xStart));
+		float[] cTable = image.getCalibration().getCTable();
+		for (int zi = 0; zi < sPatch[3]; zi++) {
 			for (int c = 0; c < sPatch[2]; c++) {
-				image.setPositionWithoutUpdate(c + 1, z + 1, 1);
-				patchImage.setPositionWithoutUpdate(c + 1, zi + 1, 1);
-				ImageProcessor ip = image.getProcessor();
-				ImageProcessor op = patchImage.getProcessor();
-				// The actual patch with false and true information goes from patch_size/2
-				// number of pixels before the actual start of the patch until patch_size/2 number of pixels after
-				int xi = -1;
-				int yi = -1;
-				for (int x = xStart - overlapX; x < xStart - overlapX + sPatch[0]; x++) {
-					xi++;
-					yi = -1;
-					for (int y = yStart - overlapY; y < yStart - overlapY + sPatch[1]; y++) {
-						yi++;
-						op.putPixelValue(xi, yi, (double) ip.getPixelValue(x, y));
+				int n = image.getStackIndex(c + 1, zMap[zi] + 1, 1);
+				Object pixels = stack.getPixels(n);
+				float[] op = (float[]) patchStack.getPixels(patchImage.getStackIndex(c + 1, zi + 1, 1));
+				for (int yi = 0; yi < sPatch[1]; yi++) {
+					int srcRow = yMap[yi] * nx;
+					int dstRow = yi * sPatch[0];
+					if (pixels instanceof float[]) {
+						float[] ip = (float[]) pixels;
+						for (int xi = 0; xi < inStart; xi ++)
+							op[dstRow + xi] = ip[srcRow + xMap[xi]];
+						if (inEnd > inStart)
+							System.arraycopy(ip, srcRow + xStart + inStart, op, dstRow + inStart, inEnd - inStart);
+						for (int xi = inEnd; xi < sPatch[0]; xi ++)
+							op[dstRow + xi] = ip[srcRow + xMap[xi]];
+					} else if (pixels instanceof short[]) {
+						short[] ip = (short[]) pixels;
+						for (int xi = 0; xi < sPatch[0]; xi ++) {
+							int v = ip[srcRow + xMap[xi]] & 0xffff;
+							op[dstRow + xi] = cTable == null ? v : cTable[v];
+						}
+					} else if (pixels instanceof byte[]) {
+						byte[] ip = (byte[]) pixels;
+						for (int xi = 0; xi < sPatch[0]; xi ++) {
+							int v = ip[srcRow + xMap[xi]] & 0xff;
+							op[dstRow + xi] = cTable == null ? v : cTable[v];
+						}
+					} else {
+						// RGB images are converted to grey levels by the processor
+						ImageProcessor ip = stack.getProcessor(n);
+						for (int xi = 0; xi < sPatch[0]; xi ++)
+							op[dstRow + xi] = ip.getPixelValue(xMap[xi], yMap[yi]);
 					}
 				}
-				patchImage.setProcessor(op);
 			}
 		}
 		return patchImage;
@@ -121,39 +172,58 @@ public class ArrayOperations {
 											   int leftoverX, int leftoverY, int leftoverZ) {
 		// This method inserts the pixel values of the true part of the patch into its corresponding location
 		// in the image
+		// The pixel arrays are obtained from the stacks and not from the ImagePlus
+		// so several patches can be written at the same time in the same image
 		int[] patchDimensions = patch.getDimensions();
 		int channels = patchDimensions[2];
-		ImageProcessor patchIp;
-		ImageProcessor imIp;
+		ImageStack patchStack = patch.getStack();
+		ImageStack imStack = fImage.getStack();
+		int pw = patch.getWidth();
+		int ph = patch.getHeight();
+		int iw = fImage.getWidth();
+		int ih = fImage.getHeight();
 		// Horizontal size of the roi
 		int roiX = xImageEndPatch - xImageStartPatch;
 		// Vertical size of the roi
 		int roiY = yImageEndPatch - yImageStartPatch;
 		// Transversal size of the roi
 		int roiZ = zImageEndPatch - zImageStartPatch;
+		// Part of each row of the roi that falls inside the image (kStart to kEnd) and
+		// part of it that can be read from the patch (sStart to sEnd). Pixels inside the 
+		// image but outside the patch are set to NaN, as getPixelValue does
+		int kStart = Math.max(0, -xImageStartPatch);
+		int kEnd = Math.min(roiX, iw - xImageStartPatch);
+		int sStart = Math.min(kEnd, Math.max(kStart, -leftoverX));
+		int sEnd = Math.max(sStart, Math.min(kEnd, pw - leftoverX));
+		if (kEnd <= kStart)
+			return;
 		
 		int zImage = zImageStartPatch - 1;
 		for (int zMirror = leftoverZ; zMirror < leftoverZ + roiZ; zMirror ++) {
 			zImage ++;
+			if (zImage < 0 || zImage >= fImage.getNSlices() || zMirror < 0 || zMirror >= patch.getNSlices())
+				continue;
 			for (int c = 0; c < channels; c ++) {
-				int xImage = xImageStartPatch - 1;
-				int yImage = yImageStartPatch - 1;
-				patch.setPositionWithoutUpdate(c + 1, zMirror + 1, 1);
-				fImage.setPositionWithoutUpdate(c + 1, zImage + 1, 1);
-				patchIp = patch.getProcessor();
-				imIp = fImage.getProcessor();
+				float[] patchPixels = (float[]) patchStack.getPixels(patch.getStackIndex(c + 1, zMirror + 1, 1));
+				float[] imPixels = (float[]) imStack.getPixels(fImage.getStackIndex(c + 1, zImage + 1, 1));
 				// The information non affected by 'the edge effect' is the one important to us. 
 				// This is why we only take the center of the patch. The size of this center is 
 				// the size of the patch minus the distorted number of pixels at each side (overlap)
-				for (int xMirror = leftoverX; xMirror < leftoverX + roiX; xMirror ++) {
-					xImage ++;
-					yImage = yImageStartPatch - 1;
-					for (int yMirror = leftoverY; yMirror < leftoverY + roiY; yMirror ++) {
-						yImage ++;
-						imIp.putPixelValue(xImage, yImage, (double) patchIp.getPixelValue(xMirror, yMirror));
+				int yImage = yImageStartPatch - 1;
+				for (int yMirror = leftoverY; yMirror < leftoverY + roiY; yMirror ++) {
+					yImage ++;
+					if (yImage < 0 || yImage >= ih)
+						continue;
+					int dstRow = yImage * iw + xImageStartPatch;
+					if (yMirror < 0 || yMirror >= ph) {
+						Arrays.fill(imPixels, dstRow + kStart, dstRow + kEnd, Float.NaN);
+						continue;
 					}
+					int srcRow = yMirror * pw + leftoverX;
+					Arrays.fill(imPixels, dstRow + kStart, dstRow + sStart, Float.NaN);
+					System.arraycopy(patchPixels, srcRow + sStart, imPixels, dstRow + sStart, sEnd - sStart);
+					Arrays.fill(imPixels, dstRow + sEnd, dstRow + kEnd, Float.NaN);
 				}
-				fImage.setProcessor(imIp);
 			}
 		}
 	}
@@ -179,6 +249,54 @@ public class ArrayOperations {
 		return extraPixels;
 	}
 	
+	/**
+	 * Stack several images with the same dimensions along the frames (batch) axis.
+	 * The pixel arrays are not copied, the resulting image references the arrays
+	 * of the original images. If there are less images than frames, the last image
+	 * is repeated until all the frames are filled.
+	 * @param images
+	 * 	images to stack, all of them with only one frame
+	 * @param nFrames
+	 * 	number of frames of the resulting image
+	 * @return an image whose frames are the images provided
+	 */
+	public static ImagePlus concatenateFrames(List<ImagePlus> images, int nFrames) {
+		ImagePlus first = images.get(0);
+		int nc = first.getNChannels();
+		int nz = first.getNSlices();
+		ImageStack stack = new ImageStack(first.getWidth(), first.getHeight());
+		for (int t = 0; t < nFrames; t ++) {
+			ImageStack frameStack = images.get(Math.min(t, images.size() - 1)).getStack();
+			for (int s = 1; s <= nc * nz; s ++)
+				stack.addSlice(frameStack.getProcessor(s));
+		}
+		ImagePlus batch = new ImagePlus("batch", stack);
+		batch.setDimensions(nc, nz, nFrames);
+		return batch;
+	}
+	
+	/**
+	 * Split an image into one image per frame (batch). The pixel arrays are not copied.
+	 * @param image
+	 * 	image to split
+	 * @return an array with an image for each of the frames
+	 */
+	public static ImagePlus[] splitFrames(ImagePlus image) {
+		int nc = image.getNChannels();
+		int nz = image.getNSlices();
+		int nt = image.getNFrames();
+		ImageStack stack = image.getStack();
+		ImagePlus[] frames = new ImagePlus[nt];
+		for (int t = 0; t < nt; t ++) {
+			ImageStack frameStack = new ImageStack(image.getWidth(), image.getHeight());
+			for (int s = 1; s <= nc * nz; s ++)
+				frameStack.addSlice(stack.getProcessor(t * nc * nz + s));
+			frames[t] = new ImagePlus(image.getTitle(), frameStack);
+			frames[t].setDimensions(nc, nz, 1);
+		}
+		return frames;
+	}
+	
 	public static String findPixelSize(ImagePlus im) {
 		// Time the model run lasted (child of "ModelTest")
 		float pixDepth = (float) im.getCalibration().pixelDepth;
@@ -0,0 +1,229 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej.tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Reconstruction of an image from overlapping patches. Instead of keeping only the
+ * center of each patch, the whole output of every patch is added to the image weighted
+ * by a window that decreases towards the borders of the patch. At the end, every pixel
+ * is divided by the sum of the weights it has received. This hides the seams between
+ * patches without needing big halos.
+ * Patches can be added from several threads at the same time. The image is divided in 
+ * bands of rows and only one patch can write on a band at the same time.
+ */
+public class BlendedReconstructor {
+	
+	/*
+	 * Windows available to weight the patches
+	 */
+	public static final String NONE = "none";
+	public static final String LINEAR = "linear";
+	public static final String COSINE = "cosine";
+	public static final String GAUSSIAN = "gaussian";
+	
+	/*
+	 * Key of the ImageJ preferences used to select the window
+	 */
+	public static final String WINDOW_KEY = "deepimagej.blending";
+	
+	/*
+	 * Number of rows of each of the bands in which the image is divided
+	 */
+	private static final int 	BAND = 32;
+	
+	private ImagePlus 			image;
+	private String 				window;
+	/*
+	 * Sum of the weights received by each pixel, one array per slice
+	 */
+	private float[][]			weights;
+	/*
+	 * Objects used to lock each band of rows of each slice
+	 */
+	private Object[][]			locks;
+	
+	/**
+	 * Create a reconstructor that blends the patches into the image provided.
+	 * The image has to be a 32-bit image filled with zeros
+	 * @param image
+	 * 	image where the patches are added
+	 * @param window
+	 * 	window used to weight the patches: linear, cosine or gaussian
+	 */
+	public BlendedReconstructor(ImagePlus image, String window) {
+		this.image = image;
+		this.window = window;
+		int nz = image.getNSlices();
+		int nBands = (int) Math.ceil((double) image.getHeight() / BAND);
+		weights = new float[nz][image.getWidth() * image.getHeight()];
+		locks = new Object[nz][nBands];
+		for (int z = 0; z < nz; z ++) {
+			for (int b = 0; b < nBands; b ++)
+				locks[z][b] = new Object();
+		}
+		// Make sure the stack exists before the workers access it
+		image.getStack();
+	}
+	
+	/**
+	 * Whether the name corresponds to one of the blending windows
+	 * @param window
+	 * 	name of the window
+	 * @return true if the patches are blended, false if they are cropped and pasted
+	 */
+	public static boolean isBlending(String window) {
+		return window != null && (window.equals(LINEAR) || window.equals(COSINE) || window.equals(GAUSSIAN));
+	}
+	
+	/**
+	 * Add a whole patch to the image
+	 * @param patch
+	 * 	32-bit patch produced by the model
+	 * @param xStart
+	 * 	position of the first column of the patch in the image. It can be negative
+	 * @param yStart
+	 * 	position of the first row of the patch in the image. It can be negative
+	 * @param zStart
+	 * 	position of the first slice of the patch in the image. It can be negative
+	 */
+	public void addPatch(ImagePlus patch, int xStart, int yStart, int zStart) {
+		int pw = patch.getWidth();
+		int ph = patch.getHeight();
+		int pz = patch.getNSlices();
+		int nc = Math.min(patch.getNChannels(), image.getNChannels());
+		int nt = Math.min(patch.getNFrames(), image.getNFrames());
+		int iw = image.getWidth();
+		int ih = image.getHeight();
+		float[] wx = createWindow(pw);
+		float[] wy = createWindow(ph);
+		float[] wz = createWindow(pz);
+		ImageStack patchStack = patch.getStack();
+		ImageStack imStack = image.getStack();
+		// Columns of the patch that fall inside the image
+		int x0 = Math.max(0, -xStart);
+		int x1 = Math.min(pw, iw - xStart);
+		if (x1 <= x0)
+			return;
+		float[] rowWeights = new float[pw];
+		for (int zp = Math.max(0, -zStart); zp < Math.min(pz, image.getNSlices() - zStart); zp ++) {
+			int z = zp + zStart;
+			int yp = Math.max(0, -yStart);
+			int yEnd = Math.min(ph, ih - yStart);
+			while (yp < yEnd) {
+				int band = (yp + yStart) / BAND;
+				int bandEnd = Math.min(yEnd, (band + 1) * BAND - yStart);
+				synchronized (locks[z][band]) {
+					for (; yp < bandEnd; yp ++) {
+						int dstRow = (yp + yStart) * iw + xStart;
+						int srcRow = yp * pw;
+						for (int x = x0; x < x1; x ++) {
+							rowWeights[x] = wx[x] * wy[yp] * wz[zp];
+							weights[z][dstRow + x] += rowWeights[x];
+						}
+						for (int t = 0; t < nt; t ++) {
+							for (int c = 0; c < nc; c ++) {
+								float[] src = (float[]) patchStack.getPixels(patch.getStackIndex(c + 1, zp + 1, t + 1));
+								float[] dst = (float[]) imStack.getPixels(image.getStackIndex(c + 1, z + 1, t + 1));
+								for (int x = x0; x < x1; x ++)
+									dst[dstRow + x] += rowWeights[x] * src[srcRow + x];
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Divide every pixel of the image by the sum of the weights it has received.
+	 * Pixels that have not been covered by any patch are left to zero
+	 */
+	public void normalize() {
+		ImageStack imStack = image.getStack();
+		for (int t = 0; t < image.getNFrames(); t ++) {
+			for (int z = 0; z < image.getNSlices(); z ++) {
+				float[] w = weights[z];
+				for (int c = 0; c < image.getNChannels(); c ++) {
+					float[] pixels = (float[]) imStack.getPixels(image.getStackIndex(c + 1, z + 1, t + 1));
+					for (int i = 0; i < pixels.length; i ++) {
+						if (w[i] > 0)
+							pixels[i] /= w[i];
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Create the 1D window along one of the axes of the patch. The 3D window
+	 * is the product of the windows of each axis. None of the windows reaches 0, so 
+	 * every pixel covered by a patch has a positive weight.
+	 * @param n
+	 * 	size of the patch along the axis
+	 * @return the weight of each position along the axis
+	 */
+	private float[] createWindow(int n) {
+		float[] w = new float[n];
+		double center = n / 2.0;
+		for (int i = 0; i < n; i ++) {
+			double d = i + 0.5;
+			if (n == 1) {
+				w[i] = 1;
+			} else if (window.equals(LINEAR)) {
+				w[i] = (float) (1 - Math.abs(d - center) / center);
+			} else if (window.equals(COSINE)) {
+				w[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * d / n));
+			} else {
+				double sigma = n / 8.0;
+				w[i] = (float) Math.exp(- (d - center) * (d - center) / (2 * sigma * sigma));
+			}
+			w[i] = Math.max(w[i], 1e-4f);
+		}
+		return w;
+	}
+}
@@ -109,6 +109,8 @@ public class CompactMirroring {
 	}
 	
 	private static int mirror(int a, int n, int period) {
+		if (n == 1)
+			return 0;
 		while (a < 0)
 			a += period;
 		while (a >= n) {
@@ -117,4 +119,38 @@ public class CompactMirroring {
 		}
 		return a;
 	}
+	
+	/**
+	 * Find the position inside an axis of size n that corresponds to any position
+	 * of the infinite mirrored axis. The border pixel is not repeated, that is,
+	 * -1 corresponds to 1 and n corresponds to n - 2.
+	 * @param a
+	 * 	position in the mirrored axis
+	 * @param n
+	 * 	size of the axis
+	 * @return position in the axis
+	 */
+	public static int mirror(int a, int n) {
+		return mirror(a, n, 2 * n - 2);
+	}
+	
+	/**
+	 * Compute, for a range of consecutive positions of the mirrored axis, the 
+	 * position inside the axis of size n where each of them is read from.
+	 * This way images can be read as if they were mirrored without creating the 
+	 * mirrored image.
+	 * @param start
+	 * 	first position of the range, it can be negative
+	 * @param length
+	 * 	number of positions of the range
+	 * @param n
+	 * 	size of the axis
+	 * @return array with the position in the axis for each of the positions of the range
+	 */
+	public static int[] mirrorIndices(int start, int length, int n) {
+		int[] indices = new int[length];
+		for (int i = 0; i < length; i ++)
+			indices[i] = mirror(start + i, n);
+		return indices;
+	}
 }
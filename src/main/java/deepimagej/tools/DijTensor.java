@@ -46,6 +46,7 @@ package deepimagej.tools;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 public class DijTensor {
 	// For the moment only consider images as input
@@ -133,6 +134,12 @@ public class DijTensor {
 	 * R (rows) and C (columns)
 	 */
 	public String auxForm;
+	/*
+	 * Standard Bioimage.io processing steps of the tensor, preprocessing for the
+	 * inputs and postprocessing for the outputs. Each step is a map with the name
+	 * of the operation and its 'kwargs'
+	 */
+	public List<Map<String, Object>> processing = null;
 	
 	/*
 	 * Contructor to create a tensor
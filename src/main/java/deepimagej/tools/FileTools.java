@@ -52,26 +52,66 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 import ij.IJ;
+import ij.Prefs;
 
 public class FileTools {
+	
+	/*
+	 * Size of the buffer used to read the files whose checksum is computed
+	 */
+	private static final int SHA_BUFFER_SIZE = 1 << 20;
+	/*
+	 * Folder inside the ImageJ preferences directory where the checksums are stored
+	 */
+	public static final String SHA_CACHE_DIR = "deepimagej_sha256";
+	/*
+	 * File written in the folder of an extracted model bundle once the extraction is complete
+	 */
+	public static final String UNZIP_MARKER = ".deepimagej_unzipped";
+	/*
+	 * Prefix of the temporary folders where the model bundles are extracted
+	 */
+	private static final String UNZIP_TMP_PREFIX = ".unzip-";
+	/*
+	 * Size of the buffer used to extract each entry of a zip file
+	 */
+	private static final int UNZIP_BUFFER_SIZE = 1 << 16;
+	/*
+	 * Checksums computed in this session, identified by the path and the metadata of the file
+	 */
+	private static final ConcurrentHashMap<String, String> shaCache = new ConcurrentHashMap<String, String>();
 
 	static public String getFolderSizeKb(String dir) {
 		return String.format("%3.2f Mb", (getFolderSize(dir) / (1024 * 1024.0)));
@@ -234,63 +274,157 @@ public class FileTools {
     }
 	
     /*
-     * Unzip zip file 'source' into a file in the path 'outPath'
+     * Unzip zip file 'source' into a file in the path 'outPath'. The entries are
+     * extracted in parallel, reading them with the random access of ZipFile
      */
     public static boolean unzipFolder(File source, String outPath) throws IOException, InterruptedException {
- 	    
-    	FileInputStream fis = new FileInputStream(source);
-    	ZipInputStream zis = new ZipInputStream(fis);
-
-        ZipEntry entry = zis.getNextEntry();
-
-        while (entry != null) {
-
-            File file = new File(outPath, entry.getName());
-            
-
-            // Check if entry is directory (if the entry name ends with '\' or '/'
-            if (entry.isDirectory()) {
-                file.mkdirs();
-            } else {
-                File parent = file.getParentFile();
-
-                if (!parent.exists()) {
-                    parent.mkdirs();
-                }
-
-                try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(file))) {
-
-                    int bufferSize = Math.toIntExact(entry.getSize());
-                    byte[] buffer = new byte[bufferSize > 0 ? bufferSize : 4096];
-                    int location;
-                    
-                    while ((location = zis.read(buffer)) != -1 && !Thread.interrupted()) {
-                        bos.write(buffer, 0, location);
-                    }
-                    
-                    // If the exit of the while loo has been due to a
-                    // thread interruption, throw exception
-     	           if ((location = zis.read(buffer)) != -1) {
-     	        	    throw new InterruptedException();
-     	        	}
-     	           bos.close();
-                } catch (ZipException e) {
-    				e.printStackTrace();
-    				IJ.error("Error unzipping: " + source.getName() + "\n"
-    						+ "It seems that the zipped file was corrupted\n"
-    						+ " while zipping and cannot be unzipped correctly.");
-    		 	    zis.close();
-    		 	    fis.close();
-    				return false;
+    	File outDir = new File(outPath).getCanonicalFile();
+    	try (ZipFile zip = new ZipFile(source)) {
+    		List<? extends ZipEntry> entries = Collections.list(zip.entries());
+    		// Create the folders first so the entries can be written in any order
+    		for (ZipEntry entry : entries) {
+    			File file = getZipEntryFile(outDir, entry);
+    			if (entry.isDirectory())
+    				file.mkdirs();
+    			else
+    				file.getParentFile().mkdirs();
+    		}
+    		int nThreads = Math.max(1, Math.min(entries.size(), Runtime.getRuntime().availableProcessors()));
+    		ExecutorService service = Executors.newFixedThreadPool(nThreads);
+    		List<Future<Boolean>> extracted = new ArrayList<Future<Boolean>>();
+    		for (ZipEntry entry : entries) {
+    			if (entry.isDirectory())
+    				continue;
+    			extracted.add(service.submit(() -> {
+    				try (InputStream is = zip.getInputStream(entry);
+    						OutputStream os = new FileOutputStream(getZipEntryFile(outDir, entry))) {
+    					byte[] buffer = new byte[UNZIP_BUFFER_SIZE];
+    					int read;
+    					while ((read = is.read(buffer)) != -1) {
+    						if (Thread.currentThread().isInterrupted())
+    							return false;
+    						os.write(buffer, 0, read);
+    					}
+    				}
+    				return true;
+    			}));
+    		}
+    		service.shutdown();
+    		try {
+    			for (Future<Boolean> future : extracted) {
+    				if (!future.get())
+    					throw new InterruptedException();
     			}
-            }
-            entry = zis.getNextEntry();
-        }
- 	    zis.close();
- 	    fis.close();
+    		} catch (InterruptedException ex) {
+    			service.shutdownNow();
+    			throw ex;
+    		} catch (ExecutionException ex) {
+    			service.shutdownNow();
+    			ex.printStackTrace();
+    			IJ.error("Error unzipping: " + source.getName() + "\n"
+    					+ "It seems that the zipped file was corrupted\n"
+    					+ " while zipping and cannot be unzipped correctly.");
+    			return false;
+    		}
+    	} catch (ZipException e) {
+			e.printStackTrace();
+			IJ.error("Error unzipping: " + source.getName() + "\n"
+					+ "It seems that the zipped file was corrupted\n"
+					+ " while zipping and cannot be unzipped correctly.");
+			return false;
+    	}
  	    return true;
  	}
     
+    /*
+     * File where an entry of a zip file is extracted. Entries that would be
+     * written outside of the output folder are rejected
+     */
+    private static File getZipEntryFile(File outDir, ZipEntry entry) throws IOException {
+    	File file = new File(outDir, entry.getName()).getCanonicalFile();
+    	if (!file.toPath().startsWith(outDir.toPath()))
+    		throw new ZipException("Entry outside of the output folder: " + entry.getName());
+    	return file;
+    }
+    
+    /**
+     * Unzip a zipped model bundle (for example the Tensorflow saved model bundle) into a folder
+     * so it can be reused by the following executions. The bundle is first extracted into a 
+     * temporary folder and then moved to its final location, the 'variables' folder last, and
+     * finally a marker with the SHA-256 of the bundle is written ({@link #UNZIP_MARKER}). An 
+     * interrupted extraction never leaves a partial bundle in the output folder.
+     * @param source: zipped bundle
+     * @param outPath: folder where the bundle is extracted
+     * @return whether the bundle has been extracted
+     * @throws IOException
+     * @throws InterruptedException if the thread is interrupted while extracting
+     */
+    public static boolean unzipBundle(File source, String outPath) throws IOException, InterruptedException {
+    	File outDir = new File(outPath);
+    	// Remove the temporary folders of extractions that were interrupted
+    	File[] stale = outDir.listFiles((dir, name) -> name.startsWith(UNZIP_TMP_PREFIX));
+    	if (stale != null) {
+    		for (File f : stale)
+    			deleteDir(f);
+    	}
+    	File tmpDir = Files.createTempDirectory(outDir.toPath(), UNZIP_TMP_PREFIX).toFile();
+    	try {
+    		if (!unzipFolder(source, tmpDir.getAbsolutePath()))
+    			return false;
+    		File[] children = tmpDir.listFiles();
+    		Arrays.sort(children, Comparator.comparing((File f) -> f.getName().equals("variables")));
+    		for (File child : children) {
+    			File target = new File(outDir, child.getName());
+    			if (target.exists())
+    				deleteDir(target);
+    			Files.move(child.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    		}
+    		writeUnzipMarker(source, outDir);
+    		return true;
+    	} finally {
+    		deleteDir(tmpDir);
+    	}
+    }
+    
+    /**
+     * Check whether a zipped model bundle needs to be extracted: the bundle has never been 
+     * extracted (there is no 'variables' folder) or it has changed since it was extracted
+     * @param source: zipped bundle
+     * @param outPath: folder where the bundle is extracted
+     * @return whether the bundle has to be extracted
+     * @throws IOException
+     */
+    public static boolean needsUnzip(File source, String outPath) throws IOException {
+    	File outDir = new File(outPath);
+    	if (!new File(outDir, "variables").exists())
+    		return true;
+    	File marker = new File(outDir, UNZIP_MARKER);
+    	// Bundles extracted by previous versions do not have a marker
+    	if (!marker.isFile() || !source.isFile())
+    		return false;
+    	Properties props = new Properties();
+    	try (InputStream is = new FileInputStream(marker)) {
+    		props.load(is);
+    	}
+    	return !getSHA256(source.getAbsolutePath()).equals(props.getProperty("sha256"));
+    }
+    
+    /*
+     * Write the marker of an extracted bundle through a temporary file, so the
+     * marker is either complete or missing
+     */
+    private static void writeUnzipMarker(File source, File outDir) throws IOException {
+    	Properties props = new Properties();
+    	props.setProperty("source", source.getName());
+    	props.setProperty("sha256", getSHA256(source.getAbsolutePath()));
+    	File tmp = new File(outDir, UNZIP_MARKER + ".tmp");
+    	try (OutputStream os = new FileOutputStream(tmp)) {
+    		props.store(os, "Extracted model bundle");
+    	}
+    	Files.move(tmp.toPath(), new File(outDir, UNZIP_MARKER).toPath(), 
+    				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
     /**
      * Compresses a list of files to a destination zip file
      * @param listFiles A collection of files and directories
@@ -377,9 +511,70 @@ public class FileTools {
         bis.close();
     }
     
+    /**
+     * Get the SHA-256 of a file, reusing the one computed previously if the file has not
+     * changed. The checksum is stored in a sidecar file in the folder {@link #SHA_CACHE_DIR} of the
+     * ImageJ preferences directory, together with the path, the size, the last modification time
+     * and the identifier (inode) of the file. If any of them changes, the checksum is computed again.
+     * The sidecars are not written next to the weights because the model folders are searched
+     * by file name. If the sidecar cannot be written, the checksum is only kept in memory.
+     * @param fileName: path to the file
+     * @return the SHA-256 of the file
+     * @throws IOException if the file cannot be read
+     */
+    public static String getSHA256(String fileName) throws IOException {
+    	File file = new File(fileName);
+    	String metadata = getFileMetadata(file);
+    	String sha256 = shaCache.get(file.getAbsolutePath() + "|" + metadata);
+    	if (sha256 != null)
+    		return sha256;
+    	File sidecar = new File(new File(Prefs.getPrefsDir(), SHA_CACHE_DIR),
+    							Integer.toHexString(file.getAbsolutePath().hashCode()) + ".sha256");
+    	Properties props = new Properties();
+    	if (sidecar.isFile()) {
+    		try (InputStream is = new FileInputStream(sidecar)) {
+    			props.load(is);
+    		} catch (IOException ex) {
+    			props.clear();
+    		}
+    	}
+    	sha256 = props.getProperty("sha256");
+    	if (sha256 == null || !metadata.equals(props.getProperty("metadata")) 
+    			|| !file.getAbsolutePath().equals(props.getProperty("path"))) {
+    		sha256 = createSHA256(fileName);
+    		props.setProperty("path", file.getAbsolutePath());
+    		props.setProperty("metadata", metadata);
+    		props.setProperty("sha256", sha256);
+    		sidecar.getParentFile().mkdirs();
+    		try (OutputStream os = new FileOutputStream(sidecar)) {
+    			props.store(os, file.getName());
+    		} catch (IOException ex) {
+    			// The checksum is still valid, it is just computed again next time
+    		}
+    	}
+    	shaCache.put(file.getAbsolutePath() + "|" + metadata, sha256);
+    	return sha256;
+    }
+    
+    /*
+     * Size, last modification time and identifier (inode) of a file
+     */
+    private static String getFileMetadata(File file) throws IOException {
+    	BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+    	Object key = attrs.fileKey();
+    	return attrs.size() + ":" + attrs.lastModifiedTime().toMillis() + ":" + (key == null ? "" : key.toString());
+    }
+    
+    /**
+     * Compute the SHA-256 of a file. The file is read through its channel with a large
+     * direct buffer, which avoids copying every byte to the Java heap. Memory mapping
+     * the file is not used because mapped files cannot be deleted or replaced on
+     * Windows until the mapping is garbage collected.
+     * @param fileName: path to the file
+     * @return the SHA-256 of the file
+     * @throws IOException if the file cannot be read
+     */
     public static String createSHA256(String fileName) throws  IOException {
-        byte[] buffer= new byte[8192];
-        int count;
         MessageDigest digest;
         String sha256 = "error";
 		try {
@@ -388,11 +583,14 @@ public class FileTools {
 			e.printStackTrace();
 			return "";
 		}
-        BufferedInputStream bis = new BufferedInputStream(new FileInputStream(fileName));
-        while ((count = bis.read(buffer)) > 0) {
-            digest.update(buffer, 0, count);
-        }
-        bis.close();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(SHA_BUFFER_SIZE);
+		try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+	        while (channel.read(buffer) > 0 || buffer.position() > 0) {
+	        	buffer.flip();
+	            digest.update(buffer);
+	            buffer.clear();
+	        }
+		}
 
         byte[] hash = digest.digest();
         sha256 = bytesToHex(hash);
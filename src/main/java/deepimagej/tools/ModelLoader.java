@@ -75,15 +75,15 @@ public class ModelLoader implements Callable<Boolean>{
 
 	@Override
 	public Boolean call()  {
-		if (dp.params.framework.contains("tensorflow") && !(new File(dp.getPath() + File.separator + "variables").exists())) {
+		String fileName = dp.getPath() + File.separator + dp.tfName;
+		if (dp.params.framework.contains("tensorflow") && needsUnzip(fileName)) {
 			if (rp != null) {
 				rp.setUnzipping(true);
 				rp.setVisible(this.show);
 			}
-			String fileName = dp.getPath() + File.separator + dp.tfName;
 			boolean unzipped = true;
 			try {
-				unzipped = FileTools.unzipFolder(new File(fileName), dp.getPath());
+				unzipped = FileTools.unzipBundle(new File(fileName), dp.getPath());
 				// If the file was not unzipped correctly, stop and warn the user
 				if (!unzipped) {
 					IJ.error("Error unzipping the model\n"
@@ -157,5 +157,18 @@ public class ModelLoader implements Callable<Boolean>{
 		}
 		return true;
 	}
+	
+	/*
+	 * Whether the Tensorflow bundle has to be extracted. It is extracted if it has never
+	 * been extracted or if it has changed since the last time
+	 */
+	private boolean needsUnzip(String fileName) {
+		try {
+			return FileTools.needsUnzip(new File(fileName), dp.getPath());
+		} catch (IOException e) {
+			e.printStackTrace();
+			return !(new File(dp.getPath() + File.separator + "variables").exists());
+		}
+	}
 
 }
@@ -0,0 +1,317 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Percentiles of the values of an image computed with histograms instead of sorting
+ * a copy of every pixel. The planes of the image are read one by one and each of them
+ * is split between the available threads, so the memory needed does not depend on 
+ * the size of the image.
+ * The value of each percentile is first located in one of the {@link #BINS} bins of a
+ * histogram between the minimum and the maximum of the image. Then only the values
+ * that fall in that bin are gathered and sorted. If a bin holds too many values, a
+ * finer histogram of that bin is computed instead. The result is the same as sorting 
+ * every value and interpolating linearly between the two closest ones.
+ * NaN values are ignored. Infinite values are only counted, as they are the first or
+ * the last of the sorted values, and the histograms only hold the finite ones.
+ */
+public class PercentileHistogram {
+	
+	/*
+	 * Number of bins of each histogram
+	 */
+	public static final int BINS = 1 << 16;
+	/*
+	 * Maximum number of values of a bin that are gathered and sorted. Bins
+	 * with more values are split with a finer histogram
+	 */
+	private static final int MAX_GATHER = 1 << 20;
+	
+	/*
+	 * Division of a range of values into bins
+	 */
+	private static class Level {
+		private final double lo;
+		private final double scale;
+		/*
+		 * Bin selected, -1 if no bin has been selected yet
+		 */
+		private int index = -1;
+		
+		private Level(double min, double max) {
+			lo = min;
+			scale = BINS / (max - min);
+		}
+		
+		private Level(Level level, int bin) {
+			lo = level.lo;
+			scale = level.scale;
+			index = bin;
+		}
+		
+		private int getBin(float v) {
+			int b = (int) ((v - lo) * scale);
+			return Math.max(0, Math.min(BINS - 1, b));
+		}
+		
+	}
+	
+	/**
+	 * Compute the percentiles of the values of a group of planes
+	 * @param nPlanes
+	 * 	number of planes
+	 * @param planes
+	 * 	function that gives the values of each plane. It is called once per plane 
+	 * 	and pass over the data, so the values can be computed on the fly
+	 * @param percents
+	 * 	percentiles, between 0 and 100
+	 * @return the value of each of the percentiles, NaN if there are no values
+	 */
+	public static double[] getPercentiles(int nPlanes, IntFunction<float[]> planes, double... percents) {
+		List<Level> filter = new ArrayList<Level>();
+		double[] range = getRange(nPlanes, planes, filter);
+		long nFinite = (long) range[2];
+		long nNegative = (long) range[3];
+		long n = nFinite + nNegative + (long) range[4];
+		double[] result = new double[percents.length];
+		if (n == 0) {
+			Arrays.fill(result, Double.NaN);
+			return result;
+		}
+		// Each percentile is interpolated between two consecutive values
+		long[] ranks = new long[percents.length * 2];
+		double[] fractions = new double[percents.length];
+		for (int i = 0; i < percents.length; i ++) {
+			double pos = percents[i] / 100.0 * (n - 1);
+			ranks[2 * i] = (long) Math.floor(pos);
+			ranks[2 * i + 1] = Math.min(n - 1, ranks[2 * i] + 1);
+			fractions[i] = pos - ranks[2 * i];
+		}
+		double[] values = new double[ranks.length];
+		long[] finiteRanks = new long[ranks.length];
+		int nSelected = 0;
+		for (int i = 0; i < ranks.length; i ++) {
+			if (ranks[i] < nNegative)
+				values[i] = Double.NEGATIVE_INFINITY;
+			else if (ranks[i] >= nNegative + nFinite)
+				values[i] = Double.POSITIVE_INFINITY;
+			else
+				finiteRanks[nSelected ++] = ranks[i] - nNegative;
+		}
+		if (nSelected > 0) {
+			double[] selected = select(nPlanes, planes, filter, range[0], range[1], Arrays.copyOf(finiteRanks, nSelected));
+			for (int i = 0, j = 0; i < ranks.length; i ++) {
+				if (ranks[i] >= nNegative && ranks[i] < nNegative + nFinite)
+					values[i] = selected[j ++];
+			}
+		}
+		for (int i = 0; i < percents.length; i ++) {
+			if (fractions[i] == 0 || values[2 * i] == values[2 * i + 1])
+				result[i] = values[2 * i];
+			else
+				result[i] = values[2 * i] + (values[2 * i + 1] - values[2 * i]) * fractions[i];
+		}
+		return result;
+	}
+	
+	/*
+	 * Values in the given positions of the sorted values that fall in the bins of the filter.
+	 * The values are between min and max
+	 */
+	private static double[] select(int nPlanes, IntFunction<float[]> planes, List<Level> filter, double min, double max, long[] ranks) {
+		double[] result = new double[ranks.length];
+		if (min == max) {
+			Arrays.fill(result, min);
+			return result;
+		}
+		Level level = new Level(min, max);
+		long[] hist = getHistogram(nPlanes, planes, filter, level);
+		// Find the bin of each of the positions and its position inside the bin
+		int[] bins = new int[ranks.length];
+		long[] inBin = new long[ranks.length];
+		for (int i = 0; i < ranks.length; i ++) {
+			long before = 0;
+			int b = 0;
+			while (before + hist[b] <= ranks[i]) 
+				before += hist[b ++];
+			bins[i] = b;
+			inBin[i] = ranks[i] - before;
+		}
+		// Gather the values of the bins that are small enough in a single pass
+		float[][] gathered = new float[BINS][];
+		boolean any = false;
+		for (int b : bins) {
+			if (hist[b] <= MAX_GATHER && gathered[b] == null) {
+				gathered[b] = new float[(int) hist[b]];
+				any = true;
+			}
+		}
+		if (any)
+			gather(nPlanes, planes, filter, level, gathered);
+		for (float[] values : gathered) {
+			if (values != null)
+				Arrays.sort(values);
+		}
+		for (int i = 0; i < ranks.length; i ++) {
+			float[] values = gathered[bins[i]];
+			if (values != null) {
+				result[i] = values[(int) inBin[i]];
+				continue;
+			}
+			// The bin is too big, split it with a finer histogram
+			List<Level> subFilter = new ArrayList<Level>(filter);
+			subFilter.add(new Level(level, bins[i]));
+			double[] range = getRange(nPlanes, planes, subFilter);
+			result[i] = select(nPlanes, planes, subFilter, range[0], range[1], new long[] {inBin[i]})[0];
+		}
+		return result;
+	}
+	
+	/*
+	 * Minimum, maximum and number of the finite values that fall in the bins of the filter,
+	 * followed by the number of negative and positive infinite values
+	 */
+	private static double[] getRange(int nPlanes, IntFunction<float[]> planes, List<Level> filter) {
+		int nThreads = Runtime.getRuntime().availableProcessors();
+		double[][] partial = new double[nThreads][];
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		long count = 0, negative = 0, positive = 0;
+		for (int p = 0; p < nPlanes; p ++) {
+			float[] values = planes.apply(p);
+			IntStream.range(0, nThreads).parallel().forEach(k -> {
+				float lo = Float.POSITIVE_INFINITY;
+				float hi = Float.NEGATIVE_INFINITY;
+				long n = 0, neg = 0, pos = 0;
+				for (int i = getStart(values.length, nThreads, k); i < getStart(values.length, nThreads, k + 1); i ++) {
+					float v = values[i];
+					if (v == Float.NEGATIVE_INFINITY)
+						neg ++;
+					else if (v == Float.POSITIVE_INFINITY)
+						pos ++;
+					if (!Float.isFinite(v) || !accept(v, filter))
+						continue;
+					lo = Math.min(lo, v);
+					hi = Math.max(hi, v);
+					n ++;
+				}
+				partial[k] = new double[] {lo, hi, n, neg, pos};
+			});
+			for (double[] part : partial) {
+				min = Math.min(min, part[0]);
+				max = Math.max(max, part[1]);
+				count += (long) part[2];
+				negative += (long) part[3];
+				positive += (long) part[4];
+			}
+		}
+		return new double[] {min, max, count, negative, positive};
+	}
+	
+	/*
+	 * Histogram of the values that fall in the bins of the filter, using the bins of the level given
+	 */
+	private static long[] getHistogram(int nPlanes, IntFunction<float[]> planes, List<Level> filter, Level level) {
+		int nThreads = Runtime.getRuntime().availableProcessors();
+		long[][] partial = new long[nThreads][BINS];
+		for (int p = 0; p < nPlanes; p ++) {
+			float[] values = planes.apply(p);
+			IntStream.range(0, nThreads).parallel().forEach(k -> {
+				long[] hist = partial[k];
+				for (int i = getStart(values.length, nThreads, k); i < getStart(values.length, nThreads, k + 1); i ++) {
+					float v = values[i];
+					if (Float.isFinite(v) && accept(v, filter))
+						hist[level.getBin(v)] ++;
+				}
+			});
+		}
+		long[] hist = partial[0];
+		for (int k = 1; k < nThreads; k ++) {
+			for (int b = 0; b < BINS; b ++)
+				hist[b] += partial[k][b];
+		}
+		return hist;
+	}
+	
+	/*
+	 * Copy the values that fall in the bins of the filter and in the bins of the level
+	 * given into the arrays of each bin
+	 */
+	private static void gather(int nPlanes, IntFunction<float[]> planes, List<Level> filter, Level level, float[][] gathered) {
+		int[] positions = new int[BINS];
+		for (int p = 0; p < nPlanes; p ++) {
+			float[] values = planes.apply(p);
+			for (float v : values) {
+				if (!Float.isFinite(v) || !accept(v, filter))
+					continue;
+				int b = level.getBin(v);
+				float[] bin = gathered[b];
+				if (bin != null)
+					bin[positions[b] ++] = v;
+			}
+		}
+	}
+	
+	private static boolean accept(float v, List<Level> filter) {
+		for (Level level : filter) {
+			if (level.getBin(v) != level.index)
+				return false;
+		}
+		return true;
+	}
+	
+	/*
+	 * First position of the part of an array processed by a thread
+	 */
+	private static int getStart(int length, int nThreads, int k) {
+		return (int) ((long) length * k / nThreads);
+	}
+}
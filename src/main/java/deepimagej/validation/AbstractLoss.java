@@ -45,11 +45,17 @@
 package deepimagej.validation;
 
 import java.util.ArrayList;
+import java.util.stream.IntStream;
 
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
 
 public abstract class AbstractLoss {
 	
+	/* Approximate number of pixels of each block of rows */
+	public static final int BLOCK_PIXELS = 1 << 16;
+	
 	private boolean selected;
 	
 	public ArrayList<Double> run(ImagePlus reference, ImagePlus test, Constants setting) {
@@ -73,4 +79,137 @@ public abstract class AbstractLoss {
 	public abstract ArrayList<Double> compute(ImagePlus reference, ImagePlus test,Constants setting);
 	public abstract String check(ImagePlus reference, ImagePlus test,Constants setting);
 	public abstract ArrayList<Double> compose(ArrayList<Double> loss1, double w_1,ArrayList<Double> loss2, double w_2);
+	
+	/**
+	 * Loss evaluated on one pair of slices
+	 */
+	public interface SliceLoss {
+		/**
+		 * @param ipr
+		 * 	slice of the reference
+		 * @param ipt
+		 * 	slice of the test image
+		 * @return the values of the loss for the slice
+		 */
+		public double[] compute(ImageProcessor ipr, ImageProcessor ipt);
+	}
+	
+	/**
+	 * Partial reduction of the rows of a slice
+	 */
+	public interface BlockLoss {
+		/**
+		 * @param j0
+		 * 	first row of the block
+		 * @param j1
+		 * 	row after the last row of the block
+		 * @return the partial sums of the block
+		 */
+		public double[] compute(int j0, int j1);
+	}
+	
+	/**
+	 * Number of rows of the blocks in which a slice is split
+	 * @param nx
+	 * 	width of the slice
+	 * @return rows of each block, the last block can have less
+	 */
+	public static int getBlockRows(int nx) {
+		return Math.max(1, BLOCK_PIXELS / Math.max(1, nx));
+	}
+	
+	/**
+	 * Reduces a slice by blocks of rows in parallel. The blocks only depend on
+	 * the size of the slice and their partial sums are added element by element
+	 * in block order, so the result does not depend on the number of threads.
+	 * @param nx
+	 * 	width of the slice
+	 * @param ny
+	 * 	height of the slice
+	 * @param loss
+	 * 	partial sums of a block of rows
+	 * @return the sums of the whole slice
+	 */
+	public static double[] sumBlocks(int nx, int ny, BlockLoss loss) {
+		int blockRows = getBlockRows(nx);
+		int nBlocks = Math.max(1, (ny + blockRows - 1) / blockRows);
+		double[][] parts = IntStream.range(0, nBlocks).parallel()
+				.mapToObj(b -> loss.compute(b * blockRows, Math.min(ny, (b + 1) * blockRows)))
+				.toArray(double[][]::new);
+		double[] sums = parts[0].clone();
+		for (int b = 1; b < nBlocks; b++)
+			for (int k = 0; k < sums.length; k++)
+				sums[k] += parts[b][k];
+		return sums;
+	}
+	
+	/**
+	 * Checks that the first slice of both images contains labels, that is,
+	 * non-negative integer values, as required by the segmentation metrics.
+	 * @param reference
+	 * 	reference image
+	 * @param test
+	 * 	test image
+	 * @param name
+	 * 	name of the metric, used in the messages
+	 * @return "Valid" or the reason why the images cannot be compared
+	 */
+	public static String checkLabels(ImagePlus reference, ImagePlus test, String name) {
+		ImageProcessor ipr = reference.getStack().getProcessor(1);
+		ImageProcessor ipt = test.getStack().getProcessor(1);
+		if (MinMax.getminimum(ipr) < 0 || MinMax.getminimum(ipt) < 0)
+			return "For " + name + ", values must be positive";
+		int nx = Math.min(reference.getWidth(), test.getWidth());
+		int ny = Math.min(reference.getHeight(), test.getHeight());
+		for (int x = 0; x < nx; x++) {
+			for (int y = 0; y < ny; y++) {
+				if ((ipr.getPixelValue(x, y) % 1) != 0.0 || (ipt.getPixelValue(x, y) % 1) != 0.0)
+					return "For " + name + ", values must be integer";
+			}
+		}
+		return "Valid";
+	}
+	
+	/**
+	 * Returns the pixels of a slice as floats, converted with the same
+	 * calibration used by {@link ImageProcessor#getPixelValue(int, int)}.
+	 * The array of float slices is not copied, so it must not be modified.
+	 * @param ip
+	 * 	the slice
+	 * @return its pixels
+	 */
+	public static float[] getPixels(ImageProcessor ip) {
+		if (ip.getPixels() instanceof float[])
+			return (float[]) ip.getPixels();
+		return (float[]) ip.convertToFloat().getPixels();
+	}
+	
+	/**
+	 * Evaluates a loss on every pair of slices in parallel. Slice z of the
+	 * result compares the slices min(z, nzr) and min(z, nzt), as the serial
+	 * loops did. The values are returned in slice order, and the kernels that
+	 * split a slice use the fixed blocks of {@link #sumBlocks}, so the result
+	 * does not depend on the number of threads.
+	 * @param reference
+	 * 	reference image
+	 * @param test
+	 * 	test image
+	 * @param loss
+	 * 	loss of one pair of slices
+	 * @return the values of all the slices, concatenated in slice order
+	 */
+	public static ArrayList<Double> computeSlices(ImagePlus reference, ImagePlus test, SliceLoss loss) {
+		ImageStack stackr = reference.getStack();
+		ImageStack stackt = test.getStack();
+		int nzr = stackr.getSize();
+		int nzt = stackt.getSize();
+		double[][] values = IntStream.rangeClosed(1, Math.max(nzr, nzt)).parallel()
+				.mapToObj(z -> loss.compute(stackr.getProcessor(Math.min(z, nzr)), stackt.getProcessor(Math.min(z, nzt))))
+				.toArray(double[][]::new);
+		ArrayList<Double> res = new ArrayList<Double>();
+		for (double[] v : values)
+			for (double value : v)
+				res.add(value);
+		return res;
+	}
 }
@@ -46,14 +46,17 @@ package deepimagej.validation;
 
 public class Constants {
 
-	public double wd_ssim, sig_lap, w1_composed, w2_composed;
+	public double wd_ssim, sig_ssim, sig_lap, w1_composed, w2_composed;
+	public double iou_f1;
 	public String title1, title2;
 	public Constants(){
 		
 		this.wd_ssim=3.0;
+		this.sig_ssim=SSIM.GAUSSIAN_SIGMA;
 		this.sig_lap=0.0;
 		this.w1_composed=0.0;
 		this.w2_composed=0.0;
+		this.iou_f1=0.5;
 		this.title1="";
 		this.title2="";
 	}
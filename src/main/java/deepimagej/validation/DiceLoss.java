@@ -74,25 +74,16 @@ public class DiceLoss extends AbstractLoss {
 		int nyr = reference.getHeight();
 		
 		double smooth=1.0; //coeff can be changed in parameters
-			
-		ArrayList<Double> res = new ArrayList<Double>(); 	
-		
-	
-		int nzr = reference.getStack().getSize();
-		int nzt = test.getStack().getSize();
-		
-		for (int z=1; z<=Math.max(nzr, nzt); z++) {
-			int ir = Math.min(z, nzr);
-			int it = Math.min(z, nzt);
-			ImageProcessor ipt = test.getStack().getProcessor(it);
-			ImageProcessor ipr = reference.getStack().getProcessor(ir);
-			int n=0;
-			double s, g, sumr = 0.0, sumt = 0.0, dice = 0.0, intersection=0.0;
-			for (int x = 0; x < nxr; x++) {
-				for (int y = 0; y < nyr; y++) {
-					
-					s =  ipr.getPixelValue(x, y);
-					g = ipt.getPixelValue(x, y);
+
+		return computeSlices(reference, test, (ipr, ipt) -> {
+			float[] r = getPixels(ipr);
+			float[] t = getPixels(ipt);
+			// Partial intersection and sums of squares of each block of rows
+			double[] sums = sumBlocks(nxr, nyr, (j0, j1) -> {
+				double s, g, sumr = 0.0, sumt = 0.0, intersection=0.0;
+				for (int p = j0 * nxr; p < j1 * nxr; p++) {
+					s = r[p];
+					g = t[p];
 					if (!Double.isNaN(g))
 						if (!Double.isNaN(s)) {
 							g=1/(1+Math.exp(-g/255.0));
@@ -102,14 +93,11 @@ public class DiceLoss extends AbstractLoss {
 							sumt +=g*g;
 						}
 				}
-			}
-			dice=(2*intersection + smooth)/(sumt + sumr + smooth);
-			res.add(1-dice);
-					
-		}
-		
-		
-		return res ;
+				return new double[] {intersection, sumr, sumt};
+			});
+			double dice=(2*sums[0] + smooth)/(sums[2] + sums[1] + smooth);
+			return new double[] {1-dice};
+		});
 	}
 
 	@Override
@@ -0,0 +1,394 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej.validation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Evaluates all the selected pixel-wise losses in a single sweep over the
+ * raw pixel arrays of the reference and test images. For every pair of
+ * slices only the sufficient statistics (sums, squares, cross products,
+ * number of valid pixels and maximum of the reference) plus the few
+ * non-linear sums requested by the selected losses are accumulated, and
+ * every loss is derived from them. The results are the same as the ones of
+ * {@link AbstractLoss#compute(ImagePlus, ImagePlus, Constants)} up to
+ * floating point rounding, as the pixels are summed in a different order.
+ * 
+ * Slices are evaluated in parallel, and large slices are split in blocks of
+ * rows whose partial sums are merged in block order. The blocks only depend
+ * on the image size, so the results do not change with the number of threads.
+ */
+public class FusedEvaluator {
+	
+	/* Constant added by Bce and Poisson to avoid log(0) */
+	private static final double AVOID_NAN = Math.pow(10, -100);
+	/* Approximate number of pixels of each block of rows */
+	private static final int BLOCK_PIXELS = 1 << 16;
+	
+	/**
+	 * Whether the loss can be computed by the fused evaluator. Losses that
+	 * need a neighbourhood (SSIM, LAP), the segmentation losses and the
+	 * composed function keep using their own implementation.
+	 * @param loss
+	 * 	the loss function
+	 * @return true if the loss is pixel-wise and supported
+	 */
+	public static boolean isFusable(AbstractLoss loss) {
+		return loss instanceof MAE || loss instanceof RMSE || loss instanceof NormL1
+				|| loss instanceof NormL2 || loss instanceof PSNR || loss instanceof SNR
+				|| loss instanceof RegressSNR || loss instanceof TP || loss instanceof FP
+				|| loss instanceof TN || loss instanceof FN || loss instanceof MAPE
+				|| loss instanceof MSLE || loss instanceof Bce || loss instanceof SigmoidBce
+				|| loss instanceof Hinge || loss instanceof Square_Hinge || loss instanceof Huber
+				|| loss instanceof KLD || loss instanceof Log_Cosh || loss instanceof Poisson
+				|| loss instanceof CategoricalHinge || loss instanceof CosineSimilarity;
+	}
+	
+	/**
+	 * Computes the per-slice values of every fusable loss of the list in one
+	 * pass over the images.
+	 * @param reference
+	 * 	reference image
+	 * @param test
+	 * 	image to be compared with the reference
+	 * @param losses
+	 * 	losses to evaluate, the ones that are not fusable are ignored
+	 * @return map from each fusable loss to its per-slice values, empty if
+	 * 	the images do not have the same slice dimensions
+	 */
+	public static HashMap<AbstractLoss, ArrayList<Double>> compute(ImagePlus reference, ImagePlus test,
+			List<AbstractLoss> losses) {
+		HashMap<AbstractLoss, ArrayList<Double>> res = new HashMap<AbstractLoss, ArrayList<Double>>();
+		ArrayList<AbstractLoss> fused = new ArrayList<AbstractLoss>();
+		for (AbstractLoss loss : losses) {
+			if (isFusable(loss) && !fused.contains(loss))
+				fused.add(loss);
+		}
+		if (fused.size() == 0 || reference.getWidth() != test.getWidth() 
+				|| reference.getHeight() != test.getHeight())
+			return res;
+		
+		Sums template = new Sums(fused);
+		for (AbstractLoss loss : fused)
+			res.put(loss, new ArrayList<Double>());
+		
+		ImageStack stackr = reference.getStack();
+		ImageStack stackt = test.getStack();
+		int nzr = stackr.getSize();
+		int nzt = stackt.getSize();
+		int nx = reference.getWidth();
+		int nxy = nx * reference.getHeight();
+		// A single slice is compared against every slice of the other image
+		float[] singler = nzr == 1 ? AbstractLoss.getPixels(stackr.getProcessor(1)) : null;
+		float[] singlet = nzt == 1 ? AbstractLoss.getPixels(stackt.getProcessor(1)) : null;
+		double[][] values = IntStream.rangeClosed(1, Math.max(nzr, nzt)).parallel().mapToObj(z -> {
+			float[] r = singler != null ? singler : AbstractLoss.getPixels(stackr.getProcessor(Math.min(z, nzr)));
+			float[] t = singlet != null ? singlet : AbstractLoss.getPixels(stackt.getProcessor(Math.min(z, nzt)));
+			Sums sums = accumulate(template, r, t, nx);
+			double[] v = new double[fused.size()];
+			for (int k = 0; k < v.length; k++)
+				v[k] = sums.get(fused.get(k), nxy);
+			return v;
+		}).toArray(double[][]::new);
+		for (double[] v : values) {
+			for (int k = 0; k < v.length; k++)
+				res.get(fused.get(k)).add(v[k]);
+		}
+		return res;
+	}
+	
+	/**
+	 * Accumulates the statistics of one pair of slices, in parallel over
+	 * fixed blocks of rows that are merged in order.
+	 * @param template
+	 * 	statistics whose flags select the sums to accumulate
+	 * @param r
+	 * 	pixels of the reference slice
+	 * @param t
+	 * 	pixels of the test slice
+	 * @param nx
+	 * 	width of the slices
+	 * @return the statistics of the whole slice
+	 */
+	private static Sums accumulate(Sums template, float[] r, float[] t, int nx) {
+		int rows = r.length / nx;
+		int blockRows = Math.max(1, BLOCK_PIXELS / nx);
+		int nBlocks = (rows + blockRows - 1) / blockRows;
+		Sums[] parts = IntStream.range(0, nBlocks).parallel().mapToObj(b -> {
+			Sums part = new Sums(template);
+			part.accumulate(r, t, b * blockRows * nx, Math.min(rows, (b + 1) * blockRows) * nx);
+			return part;
+		}).toArray(Sums[]::new);
+		Sums sums = parts[0];
+		for (int b = 1; b < nBlocks; b++)
+			sums.merge(parts[b]);
+		// The regression needs the fit of the whole slice before the residuals
+		if (sums.regress) {
+			double beta = (sums.n * sums.sumGS - sums.sumG * sums.sumS) / (sums.n * sums.sumG2 - sums.sumG * sums.sumG);
+			double alpha = (sums.sumS / sums.n) - (beta * sums.sumG / sums.n);
+			double[] residuals = IntStream.range(0, nBlocks).parallel().mapToDouble(b -> 
+					Sums.residual(r, t, b * blockRows * nx, Math.min(rows, (b + 1) * blockRows) * nx, beta, alpha)).toArray();
+			for (double residual : residuals)
+				sums.sumResidual += residual;
+		}
+		return sums;
+	}
+	
+	/**
+	 * Statistics accumulated for a block of one pair of slices.
+	 */
+	private static class Sums {
+		/* Flags of the non-linear sums needed by the selected losses */
+		private final boolean regress, mape, msle, bce, sigmoid, hinge, sqHinge, huber, kld, logCosh, poisson, catHinge;
+		/* Number of pixels valid in both images */
+		private int n;
+		/* Maximum of the reference, including pixels where the test is NaN */
+		private double maxS;
+		/* Moments of the valid pixels */
+		private double sumAbs, sumSq, sumS, sumG, sumS2, sumG2, sumGS;
+		/* Non-linear sums, only accumulated when the loss is selected */
+		private double sumMape, sumMsle, sumBce, sumSigmoid, sumHinge, sumSqHinge, sumHuber, 
+						sumKld, sumLogCosh, sumPoisson, maxNeg, sumResidual;
+		
+		/**
+		 * Creates empty statistics with the same selection of sums
+		 * @param template
+		 * 	statistics whose flags are copied
+		 */
+		private Sums(Sums template) {
+			this.regress = template.regress;
+			this.mape = template.mape;
+			this.msle = template.msle;
+			this.bce = template.bce;
+			this.sigmoid = template.sigmoid;
+			this.hinge = template.hinge;
+			this.sqHinge = template.sqHinge;
+			this.huber = template.huber;
+			this.kld = template.kld;
+			this.logCosh = template.logCosh;
+			this.poisson = template.poisson;
+			this.catHinge = template.catHinge;
+			this.maxS = -Double.MAX_VALUE;
+		}
+		
+		private Sums(List<AbstractLoss> losses) {
+			boolean regress = false, mape = false, msle = false, bce = false, sigmoid = false, hinge = false, 
+					sqHinge = false, huber = false, kld = false, logCosh = false, poisson = false, catHinge = false;
+			for (AbstractLoss loss : losses) {
+				regress |= loss instanceof RegressSNR;
+				mape |= loss instanceof MAPE;
+				msle |= loss instanceof MSLE;
+				bce |= loss instanceof Bce;
+				sigmoid |= loss instanceof SigmoidBce;
+				hinge |= loss instanceof Hinge;
+				sqHinge |= loss instanceof Square_Hinge;
+				huber |= loss instanceof Huber;
+				kld |= loss instanceof KLD;
+				logCosh |= loss instanceof Log_Cosh;
+				poisson |= loss instanceof Poisson;
+				catHinge |= loss instanceof CategoricalHinge;
+			}
+			this.regress = regress;
+			this.mape = mape;
+			this.msle = msle;
+			this.bce = bce;
+			this.sigmoid = sigmoid;
+			this.hinge = hinge;
+			this.sqHinge = sqHinge;
+			this.huber = huber;
+			this.kld = kld;
+			this.logCosh = logCosh;
+			this.poisson = poisson;
+			this.catHinge = catHinge;
+			this.maxS = -Double.MAX_VALUE;
+		}
+		
+		private void accumulate(float[] r, float[] t, int from, int to) {
+			for (int i = from; i < to; i++) {
+				double s = r[i];
+				double g = t[i];
+				if (s > maxS)
+					maxS = s;
+				if (Double.isNaN(g) || Double.isNaN(s))
+					continue;
+				double e = g - s;
+				double gs = g * s;
+				n ++;
+				sumAbs += Math.abs(e);
+				sumSq += e * e;
+				sumS += s;
+				sumG += g;
+				sumS2 += s * s;
+				sumG2 += g * g;
+				sumGS += gs;
+				if (mape && g != s)
+					sumMape += s == 0.0 ? 1.0 : Math.abs(e / s);
+				if (msle) {
+					double d = Math.log(g + 1) - Math.log(s + 1);
+					sumMsle += d * d;
+				}
+				if (bce) {
+					double sb = s + AVOID_NAN;
+					double gb = g + AVOID_NAN;
+					if (sb != 0)
+						sumBce += sb * Math.log(gb);
+					if (sb != 1)
+						sumBce += (1 - sb) * Math.log(1 - gb);
+				}
+				if (sigmoid)
+					sumSigmoid += g - gs + Math.log(1 + Math.exp(-Math.abs(g)));
+				if (hinge || sqHinge) {
+					double h = Math.max(1.0 - gs, 0.0);
+					sumHinge += h;
+					sumSqHinge += h * h;
+				}
+				if (huber) {
+					double a = Math.abs(e);
+					sumHuber += a > 1.0 ? 0.5 + (a - 1.0) : 0.5 * e * e;
+				}
+				if (kld && g != 0.0 && s != 0.0)
+					sumKld += s * Math.log(s / g);
+				if (logCosh)
+					sumLogCosh += Math.log(Math.cosh(e));
+				if (poisson)
+					sumPoisson += (g + AVOID_NAN) - (s != 0 ? s * Math.log(g + AVOID_NAN) : 0);
+				if (catHinge && (1 - s) * g > maxNeg)
+					maxNeg = (1 - s) * g;
+			}
+		}
+		
+		private void merge(Sums other) {
+			n += other.n;
+			maxS = Math.max(maxS, other.maxS);
+			sumAbs += other.sumAbs;
+			sumSq += other.sumSq;
+			sumS += other.sumS;
+			sumG += other.sumG;
+			sumS2 += other.sumS2;
+			sumG2 += other.sumG2;
+			sumGS += other.sumGS;
+			sumMape += other.sumMape;
+			sumMsle += other.sumMsle;
+			sumBce += other.sumBce;
+			sumSigmoid += other.sumSigmoid;
+			sumHinge += other.sumHinge;
+			sumSqHinge += other.sumSqHinge;
+			sumHuber += other.sumHuber;
+			sumKld += other.sumKld;
+			sumLogCosh += other.sumLogCosh;
+			sumPoisson += other.sumPoisson;
+			maxNeg = Math.max(maxNeg, other.maxNeg);
+		}
+		
+		private static double residual(float[] r, float[] t, int from, int to, double beta, double alpha) {
+			double sum = 0;
+			for (int i = from; i < to; i++) {
+				double s = r[i];
+				double g = t[i];
+				if (Double.isNaN(g) || Double.isNaN(s))
+					continue;
+				double d = s - (beta * g + alpha);
+				sum += d * d;
+			}
+			return sum;
+		}
+		
+		private double get(AbstractLoss loss, int nxy) {
+			if (loss instanceof MAE)
+				return sumAbs / n;
+			else if (loss instanceof RMSE)
+				return Math.sqrt(sumSq / n);
+			else if (loss instanceof NormL1)
+				return sumAbs;
+			else if (loss instanceof NormL2)
+				return Math.sqrt(sumSq);
+			else if (loss instanceof PSNR)
+				return 10.0 * Math.log(maxS * maxS / (sumSq / n)) / Math.log(10.0);
+			else if (loss instanceof SNR)
+				return 10.0 * Math.log((sumS2 / n) / (sumSq / n)) / Math.log(10.0);
+			else if (loss instanceof RegressSNR)
+				return 10.0 * Math.log((sumS2 / n) / (sumResidual / n)) / Math.log(10.0);
+			else if (loss instanceof TP)
+				return sumGS;
+			else if (loss instanceof FP)
+				return sumG - sumGS;
+			else if (loss instanceof TN)
+				return n - sumG - sumS + sumGS;
+			else if (loss instanceof FN)
+				return sumS - sumGS;
+			else if (loss instanceof MAPE)
+				return 100 * sumMape / n;
+			else if (loss instanceof MSLE)
+				return sumMsle / n;
+			else if (loss instanceof Bce)
+				return -sumBce / nxy;
+			else if (loss instanceof SigmoidBce)
+				return sumSigmoid / nxy;
+			else if (loss instanceof Hinge)
+				return sumHinge / n;
+			else if (loss instanceof Square_Hinge)
+				return sumSqHinge / n;
+			else if (loss instanceof Huber)
+				return sumHuber;
+			else if (loss instanceof KLD)
+				return sumKld;
+			else if (loss instanceof Log_Cosh)
+				return sumLogCosh / n;
+			else if (loss instanceof Poisson)
+				return sumPoisson / n;
+			else if (loss instanceof CategoricalHinge)
+				return Math.max(maxNeg - sumGS / n + 1.0, 0.0);
+			else if (loss instanceof CosineSimilarity)
+				return -(Math.sqrt(sumS2) * Math.sqrt(sumG2));
+			return Double.NaN;
+		}
+	}
+}
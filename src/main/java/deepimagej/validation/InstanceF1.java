@@ -0,0 +1,94 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package deepimagej.validation;
+
+import java.util.ArrayList;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+/**
+ * F1 score of the detection of instances in label images. Instances are
+ * matched by their IoU, see {@link LabelContingency#getF1(double)}.
+ */
+public class InstanceF1 extends AbstractLoss {
+	
+	@Override
+	public String getName() {
+		return "F1";
+	}
+	@Override
+	public ArrayList<Double> compute(ImagePlus reference, ImagePlus test,Constants setting) {
+		
+		if(reference.getNChannels() > 1 || test.getNChannels() > 1) {
+			IJ.error("F1 can only be calculated on one channel images.");
+			return null;
+		}
+		double threshold = setting.iou_f1;
+		
+		return computeSlices(reference, test, (ipr, ipt) -> {
+			LabelContingency table = new LabelContingency(getPixels(ipr), getPixels(ipt), ipr.getWidth());
+			return new double[] {table.getF1(threshold)};
+		});
+	}
+
+	@Override
+	public ArrayList<Double> compose(ArrayList<Double> loss1, double w_1, ArrayList<Double> loss2, double w_2) {
+		return null;
+	}
+	
+	@Override
+	public Boolean getSegmented() {
+		return false;
+	}
+
+	@Override
+	public String check(ImagePlus reference, ImagePlus test, Constants setting) {
+		LabelContingency table = new LabelContingency(getPixels(reference.getStack().getProcessor(1)), 
+													getPixels(test.getStack().getProcessor(1)));
+		if (!table.isLabelImage())
+			return "For F1, values must be positive integers";
+		return "Valid";
+	}
+}
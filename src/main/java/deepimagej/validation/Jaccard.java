@@ -50,8 +50,6 @@ import java.util.ArrayList;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.Roi;
-import ij.process.ImageProcessor;
-import ij.process.ImageStatistics;
 
 public class Jaccard extends AbstractLoss {
 
@@ -79,59 +77,18 @@ public class Jaccard extends AbstractLoss {
 		int nxr = reference.getWidth();
 		int nyr = reference.getHeight();
 			
-		ArrayList<Double> res = new ArrayList<Double>(); 	
-		
-	
-		int nzr = reference.getStack().getSize();
-		int nzt = test.getStack().getSize();
-		
-		for (int z=1; z<=Math.max(nzr, nzt); z++) {
-			int ir = Math.min(z, nzr);
-			int it = Math.min(z, nzt);
-			ImageProcessor ipt = test.getStack().getProcessor(it);
-			ImageProcessor ipr = reference.getStack().getProcessor(ir);
-			ImageStatistics aa = ipt.getStatistics();
-			int difval = (int)aa.max + 1;
-			double s, g, sum = 0.0, jaccard = 0.0, intersection=0.0;
-			double globalJac = 0.0;
-			
+		return computeSlices(reference, test, (ipr, ipt) -> {
+			// One pass over each block of rows builds the overlaps of all the labels
+			LabelContingency table = new LabelContingency(getPixels(ipr), getPixels(ipt), nxr);
+			int difval = Math.max(0, (int) table.getMaxTestValue() + 1);
+			double[] res = new double[difval + 1];
 			for(int v=0; v < difval ; v++) {
-				for (int x = 0; x < nxr; x++) {
-					for (int y = 0; y < nyr; y++) {
-						
-						s =  ipr.getPixelValue(x, y);
-						g = ipt.getPixelValue(x, y);
-						if (Double.isNaN(g) || Double.isNaN(s)) {
-							continue;
-								
-						}
-						if( s == v && g == v) {
-							intersection += 1;
-							sum += 1;
-							globalJac ++;
-						}
-						else if(s == v || g == v){
-							sum += 1;
-						}
-						
-					}
-				}
-				if (sum == 0) {
-					// Workaround to avoid showing pixels that do not appear in the image
-					jaccard = -1;
-				} else {
-					jaccard=(intersection)/(sum);
-				}
-				res.add(jaccard);
-				intersection = 0;
-				sum = 0;
+				// -1 is a workaround to avoid showing pixels that do not appear in the image
+				res[v] = table.getJaccard(v);
 			}
-			res.add(globalJac / (nxr * nyr));
-					
-		}
-		
-		
-		return res ;
+			res[difval] = (double) table.getAgreement(difval) / (nxr * nyr);
+			return res;
+		});
 	}
 
 
@@ -147,35 +104,7 @@ public class Jaccard extends AbstractLoss {
 
 	@Override
 	public String check(ImagePlus reference, ImagePlus test, Constants setting) {
-		// TODO Auto-generated method stub
-		
-		//get the max of the first stack of the images
-		double min_im1 = MinMax.getminimum(reference.getStack().getProcessor(1));
-		double min_im2 = MinMax.getminimum(test.getStack().getProcessor(1));
-		
-		//get the first stack of the images
-		ImageProcessor ipt = reference.getStack().getProcessor(1);
-		ImageProcessor ipr = test.getStack().getProcessor(1);
-		
-		int nxr = reference.getWidth();
-		int nyr = test.getHeight();
-		
-		if((min_im1<0)||(min_im2<0)) {
-			
-			return "For Jaccard, values must be positive";
-		}
-		double s,g;
-		for (int x = 0; x < nxr; x++) {
-			for (int y = 0; y < nyr; y++) {
-				
-				s =  ipr.getPixelValue(x, y);
-				g = ipt.getPixelValue(x, y);
-				if ((s%1)!=0.0||(g%1)!=0.0) {
-					return "For Jaccard, values must be integer";
-				}
-			}
-		}
-		return "Valid";
+		return checkLabels(reference, test, "Jaccard");
 	}
 }
 
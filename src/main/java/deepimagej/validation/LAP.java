@@ -46,14 +46,19 @@ package deepimagej.validation;
 
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.stream.IntStream;
 
 import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.Roi;
 import ij.process.Blitter;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 
 public class LAP extends AbstractLoss {
+	
+	/* Number of levels of the pyramid */
+	public static final int LEVELS = 4;
 
 
 	public static void main(String arg[]) {
@@ -76,55 +81,84 @@ public class LAP extends AbstractLoss {
 		double sigma = 0.5;
 		
 			
-		ArrayList<Double> res = new ArrayList<Double>(); 	
-		
-	
-		int nzr = reference.getStack().getSize();
-		int nzt = test.getStack().getSize();
-		double s, g,s_l,g_l,sum=0.0;
-		
-		for (int z=1; z<=Math.max(nzr, nzt); z++) {
-			int ir = Math.min(z, nzr);
-			int it = Math.min(z, nzt);
-			ImageProcessor ipt = test.getStack().getProcessor(it);
-			ImageProcessor ipr = reference.getStack().getProcessor(ir);
-			
-			sum=0.0;
-			//int n=0;
-			for(int l=0; l<4 ;l++){
-				ImageProcessor ipt_l = diffOfGaussian(ipt,sigma*Math.pow(2, l));
-				ImageProcessor ipr_l = diffOfGaussian(ipr,sigma*Math.pow(2, l));
-				
-				//ipr_l.copyBits(ipr, 0, 0, Blitter.SUBTRACT);
-				for (int x = 0; x < nxr; x++) {
-					for (int y = 0; y < nyr; y++) {
-						
-						s =  ipr_l.getPixelValue(x, y);
-						g = ipt_l.getPixelValue(x, y);
-
+		return computeSlices(reference, test, (ipr, ipt) -> {
+			// The pyramids of the reference and of the test are independent
+			float[][][] pyramids = IntStream.range(0, 2).parallel()
+					.mapToObj(k -> laplacianPyramid(k == 0 ? ipr : ipt, sigma, LEVELS))
+					.toArray(float[][][]::new);
+			// Each block of rows adds up the differences of all the levels
+			return sumBlocks(nxr, nyr, (j0, j1) -> {
+				double s, g, sum=0.0;
+				for(int l=0; l<LEVELS ;l++){
+					float[] ipr_l = pyramids[0][l];
+					float[] ipt_l = pyramids[1][l];
+					for (int p = j0 * nxr; p < j1 * nxr; p++) {
+						s = ipr_l[p];
+						g = ipt_l[p];
 						if (!Double.isNaN(g))
 							if (!Double.isNaN(s)) {
 								sum+=Math.abs(g-s);
 							}
 					}
 				}
+				return new double[] {sum};
+			});
+		});
+	}
+	
+	/**
+	 * Differences of Gaussians of the levels of a Laplacian pyramid. Level l
+	 * is the blur of sigma*2^l minus the blur of sigma*2^l*sqrt(2). As the
+	 * variances of successive Gaussian blurs add up, every blur is obtained
+	 * from the previous one with a smaller increment, so each image is only
+	 * duplicated once per level and no blur starts from scratch.
+	 * Images that are not float keep their type: each blur starts from the image
+	 * and the difference is rounded and clipped by {@link Blitter#SUBTRACT},
+	 * so the values do not depend on the rounding of previous blurs.
+	 * @param ip
+	 * 	the image
+	 * @param sigma
+	 * 	sigma of the first level
+	 * @param levels
+	 * 	number of levels
+	 * @return the pixels of the difference of Gaussians of each level
+	 */
+	public static float[][] laplacianPyramid(ImageProcessor ip, double sigma, int levels) {
+		float[][] dog = new float[levels][];
+		if (!(ip instanceof FloatProcessor)) {
+			for (int l = 0; l < levels; l++) {
+				double sigmaLevel = sigma * Math.pow(2, l);
+				ImageProcessor blur1 = ip.duplicate();
+				ImageProcessor blur2 = ip.duplicate();
+				blur1.blurGaussian(sigmaLevel);
+				blur2.blurGaussian(sigmaLevel * Math.sqrt(2.0));
+				blur1.copyBits(blur2, 0, 0, Blitter.SUBTRACT);
+				dog[l] = getPixels(blur1);
 			}
-			res.add(sum);	
+			return dog;
 		}
-		
-		
-		return res ;
+		ImageProcessor blur = ip.duplicate();
+		blur.blurGaussian(sigma);
+		double base = sigma;
+		for (int l = 0; l < levels; l++) {
+			// From base to base*sqrt(2) the increment is base
+			ImageProcessor next = blur.duplicate();
+			next.blurGaussian(base);
+			float[] a = (float[]) blur.getPixels();
+			float[] b = (float[]) next.getPixels();
+			float[] d = new float[a.length];
+			for (int p = 0; p < d.length; p++)
+				d[p] = a[p] - b[p];
+			dog[l] = d;
+			// From base*sqrt(2) to the base of the next level, 2*base, the increment is base*sqrt(2)
+			if (l < levels - 1)
+				next.blurGaussian(base * Math.sqrt(2.0));
+			blur = next;
+			base *= 2;
+		}
+		return dog;
 	}
 	
-	public ImageProcessor diffOfGaussian(ImageProcessor im, double sigma) {
-		ImageProcessor blur1= im.duplicate();
-		ImageProcessor blur2= im.duplicate();
-		blur1.blurGaussian(sigma);
-		blur2.blurGaussian(sigma*Math.sqrt(2.0));
-		blur1.copyBits(blur2, 0, 0, Blitter.SUBTRACT);
-		return blur1;
-	}
-
 	@Override
 	public ArrayList<Double> compose(ArrayList<Double> loss1, double w_1, ArrayList<Double> loss2, double w_2) {
 		return null;
@@ -0,0 +1,335 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej.validation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Sparse contingency table of the overlap between the labels of a reference
+ * and a test slice. It is built in a single pass over the pixels and gives
+ * the per-label Jaccard and Dice indices, the global agreement and the
+ * matching of instances used by the F1 score. Pixels where any of the images
+ * is NaN are ignored. Values that are not non-negative integers (or are above
+ * {@link #MAX_LABEL}) do not belong to any label.
+ */
+public class LabelContingency {
+	
+	/* Largest label stored, the largest integer exactly represented by a float */
+	public static final int MAX_LABEL = 1 << 24;
+	
+	/* Number of valid pixels of each label present in the reference and in the test */
+	private final HashMap<Integer, long[]> refCounts = new HashMap<Integer, long[]>();
+	private final HashMap<Integer, long[]> testCounts = new HashMap<Integer, long[]>();
+	/* Overlap counts of the pairs (reference label, test label) */
+	private final HashMap<Long, long[]> pairs = new HashMap<Long, long[]>();
+	/* Maximum of the test image over all its non-NaN pixels */
+	private double maxTestValue = -Double.MAX_VALUE;
+	/* Whether every valid pixel of both images is a label */
+	private boolean labels = true;
+	
+	/**
+	 * Builds the table of one pair of slices.
+	 * @param ref
+	 * 	pixels of the reference slice
+	 * @param test
+	 * 	pixels of the test slice
+	 */
+	public LabelContingency(float[] ref, float[] test) {
+		this(ref, test, 0, ref.length);
+	}
+	
+	/**
+	 * Builds the table of one pair of slices by blocks of rows in parallel.
+	 * The blocks only depend on the size of the slice and their tables are
+	 * merged in block order, so the result does not depend on the number of
+	 * threads.
+	 * @param ref
+	 * 	pixels of the reference slice
+	 * @param test
+	 * 	pixels of the test slice
+	 * @param nx
+	 * 	width of the slices
+	 */
+	public LabelContingency(float[] ref, float[] test, int nx) {
+		int blockPixels = AbstractLoss.getBlockRows(nx) * Math.max(1, nx);
+		int nBlocks = Math.max(1, (ref.length + blockPixels - 1) / blockPixels);
+		LabelContingency[] parts = IntStream.range(0, nBlocks).parallel()
+				.mapToObj(b -> new LabelContingency(ref, test, b * blockPixels, Math.min(ref.length, (b + 1) * blockPixels)))
+				.toArray(LabelContingency[]::new);
+		for (LabelContingency part : parts)
+			merge(part);
+	}
+	
+	/**
+	 * Table of the pixels from (included) to to (excluded)
+	 */
+	private LabelContingency(float[] ref, float[] test, int from, int to) {
+		// Neighbouring pixels usually belong to the same pair of labels,
+		// so runs are counted before updating the table
+		int lastA = -1, lastB = -1;
+		long run = 0;
+		for (int i = from; i < to; i++) {
+			float s = ref[i];
+			float g = test[i];
+			if (!Float.isNaN(g) && g > maxTestValue)
+				maxTestValue = g;
+			if (Float.isNaN(g) || Float.isNaN(s))
+				continue;
+			int a = toLabel(s);
+			int b = toLabel(g);
+			if (a != lastA || b != lastB) {
+				add(lastA, lastB, run);
+				lastA = a;
+				lastB = b;
+				run = 0;
+			}
+			run ++;
+		}
+		add(lastA, lastB, run);
+	}
+	
+	/**
+	 * Adds the counts of the table of other pixels
+	 */
+	private void merge(LabelContingency part) {
+		for (Map.Entry<Integer, long[]> count : part.refCounts.entrySet())
+			increment(refCounts, count.getKey(), count.getValue()[0]);
+		for (Map.Entry<Integer, long[]> count : part.testCounts.entrySet())
+			increment(testCounts, count.getKey(), count.getValue()[0]);
+		for (Map.Entry<Long, long[]> pair : part.pairs.entrySet())
+			increment(pairs, pair.getKey(), pair.getValue()[0]);
+		maxTestValue = Math.max(maxTestValue, part.maxTestValue);
+		labels &= part.labels;
+	}
+	
+	private int toLabel(float v) {
+		if (v < 0 || v > MAX_LABEL || v != (int) v) {
+			labels = false;
+			return -1;
+		}
+		return (int) v;
+	}
+	
+	private void add(int a, int b, long n) {
+		if (n == 0)
+			return;
+		if (a >= 0)
+			increment(refCounts, a, n);
+		if (b >= 0)
+			increment(testCounts, b, n);
+		if (a >= 0 && b >= 0)
+			increment(pairs, key(a, b), n);
+	}
+	
+	private static <K> void increment(HashMap<K, long[]> counts, K key, long n) {
+		long[] count = counts.get(key);
+		if (count == null)
+			counts.put(key, new long[] {n});
+		else
+			count[0] += n;
+	}
+	
+	private static long getCount(HashMap<Integer, long[]> counts, int label) {
+		long[] count = counts.get(label);
+		return count == null ? 0 : count[0];
+	}
+	
+	private static long key(int a, int b) {
+		return ((long) a << 32) | b;
+	}
+	
+	/**
+	 * @return whether every pixel compared is a non-negative integer label
+	 */
+	public boolean isLabelImage() {
+		return labels;
+	}
+	
+	/**
+	 * Whether both slices are binary masks, stopping at the first pixel
+	 * that is not, so that non-binary images are rejected quickly.
+	 * @param ref
+	 * 	pixels of the reference slice
+	 * @param test
+	 * 	pixels of the test slice
+	 * @return whether every pixel not NaN in any of the images is 0 or 1
+	 */
+	public static boolean isBinary(float[] ref, float[] test) {
+		for (int i = 0; i < ref.length; i++) {
+			float s = ref[i];
+			float g = test[i];
+			if (Float.isNaN(g) || Float.isNaN(s))
+				continue;
+			if ((s != 0 && s != 1) || (g != 0 && g != 1))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * @return the maximum of the non-NaN pixels of the test slice, as given
+	 * 	by its statistics
+	 */
+	public double getMaxTestValue() {
+		return maxTestValue;
+	}
+	
+	/**
+	 * @param a
+	 * 	label of the reference
+	 * @param b
+	 * 	label of the test
+	 * @return number of pixels labelled a in the reference and b in the test
+	 */
+	public long getOverlap(int a, int b) {
+		long[] count = pairs.get(key(a, b));
+		return count == null ? 0 : count[0];
+	}
+	
+	/**
+	 * @param label
+	 * 	the label
+	 * @return number of pixels of the label in the reference
+	 */
+	public long getRefCount(int label) {
+		return getCount(refCounts, label);
+	}
+	
+	/**
+	 * @param label
+	 * 	the label
+	 * @return number of pixels of the label in the test
+	 */
+	public long getTestCount(int label) {
+		return getCount(testCounts, label);
+	}
+	
+	/**
+	 * Jaccard index (IoU) of a label in both images.
+	 * @param label
+	 * 	the label
+	 * @return the index, or -1 if the label is in none of the images
+	 */
+	public double getJaccard(int label) {
+		long intersection = getOverlap(label, label);
+		long union = getRefCount(label) + getTestCount(label) - intersection;
+		return union == 0 ? -1 : (double) intersection / union;
+	}
+	
+	/**
+	 * Dice coefficient of a label in both images.
+	 * @param label
+	 * 	the label
+	 * @return the coefficient, or -1 if the label is in none of the images
+	 */
+	public double getDice(int label) {
+		long sum = getRefCount(label) + getTestCount(label);
+		return sum == 0 ? -1 : 2.0 * getOverlap(label, label) / sum;
+	}
+	
+	/**
+	 * @param nLabels
+	 * 	number of labels considered, from 0
+	 * @return number of pixels with the same label in both images
+	 */
+	public long getAgreement(int nLabels) {
+		long agreement = 0;
+		for (Map.Entry<Long, long[]> pair : pairs.entrySet()) {
+			int a = (int) (pair.getKey() >>> 32);
+			int b = (int) (long) pair.getKey();
+			if (a == b && a < nLabels)
+				agreement += pair.getValue()[0];
+		}
+		return agreement;
+	}
+	
+	/**
+	 * F1 score of the detection of instances. Each instance of the test
+	 * (label above 0) is matched to at most one instance of the reference,
+	 * taking the pairs of largest IoU first, and a match counts as a true
+	 * positive if its IoU reaches the threshold.
+	 * @param threshold
+	 * 	minimum IoU of a match
+	 * @return the F1 score, 1 if there are no instances in any image
+	 */
+	public double getF1(double threshold) {
+		// Only the labels present are stored, the background (0) is not an instance
+		int nRef = refCounts.size() - (refCounts.containsKey(0) ? 1 : 0);
+		int nTest = testCounts.size() - (testCounts.containsKey(0) ? 1 : 0);
+		if (nRef + nTest == 0)
+			return 1;
+		ArrayList<double[]> candidates = new ArrayList<double[]>();
+		for (Map.Entry<Long, long[]> pair : pairs.entrySet()) {
+			int a = (int) (pair.getKey() >>> 32);
+			int b = (int) (long) pair.getKey();
+			if (a == 0 || b == 0)
+				continue;
+			long intersection = pair.getValue()[0];
+			double iou = (double) intersection / (getRefCount(a) + getTestCount(b) - intersection);
+			if (iou >= threshold)
+				candidates.add(new double[] {iou, a, b});
+		}
+		// Ties are broken by the labels so that the matching is deterministic
+		candidates.sort((x, y) -> x[0] != y[0] ? Double.compare(y[0], x[0]) 
+				: x[1] != y[1] ? Double.compare(x[1], y[1]) : Double.compare(x[2], y[2]));
+		HashSet<Integer> matchedRef = new HashSet<Integer>();
+		HashSet<Integer> matchedTest = new HashSet<Integer>();
+		int tp = 0;
+		for (double[] candidate : candidates) {
+			int a = (int) candidate[1];
+			int b = (int) candidate[2];
+			if (matchedRef.contains(a) || matchedTest.contains(b))
+				continue;
+			matchedRef.add(a);
+			matchedTest.add(b);
+			tp ++;
+		}
+		return 2.0 * tp / (nRef + nTest);
+	}
+}
@@ -41,11 +41,11 @@
  * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
  * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
-
 package deepimagej.validation;
 
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.stream.IntStream;
 
 import ij.IJ;
 import ij.ImagePlus;
@@ -53,6 +53,14 @@ import ij.gui.Roi;
 import ij.process.ImageProcessor;
 
 public class SSIM extends AbstractLoss {
+	
+	/* Stability constants of SSIM for a dynamic range of 255 */
+	public static final double C1 = (0.01*255)*(0.01*255);
+	public static final double C2 = (0.03*255)*(0.03*255);
+	/* Default standard deviation of the Gaussian window */
+	public static final double GAUSSIAN_SIGMA = 1.5;
+	/* Weights of the scales of MS-SSIM, from the finest to the coarsest */
+	public static final double[] MS_WEIGHTS = {0.0448, 0.2856, 0.3001, 0.2363, 0.1333};
 
 	public static void main(String arg[]) {
 		ImagePlus ref = IJ.createImage("ref", 32, 200, 202, 32);
@@ -71,70 +79,264 @@ public class SSIM extends AbstractLoss {
 		
 		int nxr = reference.getWidth();
 		int nyr = reference.getHeight();
-		
-		double k1=0.01;
-		double k2=0.03;
-		double c1,c2;
-		c1=(k1*255)*(k1*255);
-		c2=(k2*255)*(k2*255);
-		int L = (int) setting.wd_ssim;
-		int pixwin=L*L;
-			
-		ArrayList<Double> res = new ArrayList<Double>(); 	
-		
+		int L = Math.max(1, (int) setting.wd_ssim);
+
+		return computeSlices(reference, test, (ipr, ipt) -> {
+			double[] ssim = boxSSIM(getPixels(ipr), getPixels(ipt), nxr, nyr, L);
+			return new double[] {ssim[0]};
+		});
+	}
 	
-		int nzr = reference.getStack().getSize();
-		int nzt = test.getStack().getSize();
-		
-		for (int z=1; z<=Math.max(nzr, nzt); z++) {
-			int ir = Math.min(z, nzr);
-			int it = Math.min(z, nzt);
-			ImageProcessor ipt = test.getStack().getProcessor(it);
-			ImageProcessor ipr = reference.getStack().getProcessor(ir);
-			int n=0;
-			double ssim=0;
-			double maxSignal = -Double.MAX_VALUE;
-			for (int x = 0; x < nxr; x++) {
-				for (int y = 0; y < nyr; y++) {
-					double[][] blockr = new double[L][L];
-					ipr.getNeighborhood(x, y,blockr);
-					double[][] blockt = new double[L][L];
-					ipt.getNeighborhood(x, y,blockr);
-					
-					double sumx=0.0 , sumy=0.0;
-					
-					for (int k=0; k<blockr.length; k++)
-						for (int l=0; l<blockr.length; l++) {
-							sumx+=blockr[k][l];
-							sumy+=blockt[k][l];
-						}
-					sumx/=pixwin;
-					sumy/=pixwin;
-					
-					double sigmax=0.0 , sigmay=0.0, sigmaxy=0.0;
-					
-					for (int k=0; k<blockr.length; k++)
-						for (int l=0; l<blockr.length; l++) {
-							sigmax+=(blockr[k][l]-sumx)*(blockr[k][l]-sumx);
-							sigmay+=(blockt[k][l]-sumy)*(blockt[k][l]-sumy);
-							sigmaxy+=(blockr[k][l]-sumx)*(blockt[k][l]-sumy);
-						}
-					
-					sigmax/=(pixwin-1);
-					sigmay/=(pixwin-1);
-					sigmaxy/=(pixwin-1);
-					
-					ssim+=(2*sumx*sumy+c1)*(2*sigmaxy+c2)/(sumx*sumx+sumy*sumy+c1)*(sigmax*sigmax+sigmay*sigmay+c2);
-					n++;
+	/**
+	 * Mean SSIM with a uniform LxL window. The local sums are read from
+	 * summed-area tables, so the cost does not depend on the window size.
+	 * The window is clipped at the borders and the variances are unbiased.
+	 * The blocks of rows of the image are processed in parallel, and the
+	 * tables only cover the rows of the windows of one block, so the memory
+	 * used by each block does not grow with the height of the image.
+	 * @param x
+	 * 	reference pixels
+	 * @param y
+	 * 	test pixels
+	 * @param nx
+	 * 	width
+	 * @param ny
+	 * 	height
+	 * @param L
+	 * 	size of the window
+	 * @return the mean SSIM and the mean contrast-structure term
+	 */
+	public static double[] boxSSIM(float[] x, float[] y, int nx, int ny, int L) {
+		// Centering the data keeps the tables of squares precise on large images
+		double ox = mean(x, nx, ny);
+		double oy = mean(y, nx, ny);
+		double[] acc = sumBlocks(nx, ny, (j0, j1) -> boxSSIM(x, y, nx, ny, L, ox, oy, j0, j1));
+		return new double[] {acc[0] / (nx * ny), acc[1] / (nx * ny)};
+	}
+	
+	/**
+	 * Sums of the SSIM and of the contrast-structure term of the rows from j0
+	 * (included) to j1 (excluded), with the data centered at ox and oy
+	 */
+	private static double[] boxSSIM(float[] x, float[] y, int nx, int ny, int L, double ox, double oy, int j0, int j1) {
+		int half = L / 2;
+		// Rows covered by the windows of the block
+		int ya = Math.max(0, j0 - half);
+		int yb = Math.min(ny, j1 - 1 - half + L);
+		int w = nx + 1;
+		double[] sx = new double[w * (yb - ya + 1)];
+		double[] sy = new double[sx.length];
+		double[] sxx = new double[sx.length];
+		double[] syy = new double[sx.length];
+		double[] sxy = new double[sx.length];
+		for (int j = ya; j < yb; j++) {
+			double rx = 0, ry = 0, rxx = 0, ryy = 0, rxy = 0;
+			for (int i = 0; i < nx; i++) {
+				double a = x[i + j * nx] - ox;
+				double b = y[i + j * nx] - oy;
+				rx += a;
+				ry += b;
+				rxx += a * a;
+				ryy += b * b;
+				rxy += a * b;
+				int p = (i + 1) + (j - ya + 1) * w;
+				sx[p] = sx[p - w] + rx;
+				sy[p] = sy[p - w] + ry;
+				sxx[p] = sxx[p - w] + rxx;
+				syy[p] = syy[p - w] + ryy;
+				sxy[p] = sxy[p - w] + rxy;
+			}
+		}
+		double[] acc = new double[2];
+		for (int j = j0; j < j1; j++) {
+			int y0 = Math.max(0, j - half) - ya;
+			int y1 = Math.min(ny, j - half + L) - ya;
+			for (int i = 0; i < nx; i++) {
+				int x0 = Math.max(0, i - half);
+				int x1 = Math.min(nx, i - half + L);
+				int c = (x1 - x0) * (y1 - y0);
+				int p11 = x1 + y1 * w, p01 = x0 + y1 * w, p10 = x1 + y0 * w, p00 = x0 + y0 * w;
+				double bx = sx[p11] - sx[p01] - sx[p10] + sx[p00];
+				double by = sy[p11] - sy[p01] - sy[p10] + sy[p00];
+				double bxx = sxx[p11] - sxx[p01] - sxx[p10] + sxx[p00];
+				double byy = syy[p11] - syy[p01] - syy[p10] + syy[p00];
+				double bxy = sxy[p11] - sxy[p01] - sxy[p10] + sxy[p00];
+				int dof = Math.max(c - 1, 1);
+				add(acc, bx / c + ox, by / c + oy, (bxx - bx * bx / c) / dof, 
+						(byy - by * by / c) / dof, (bxy - bx * by / c) / dof);
+			}
+		}
+		return acc;
+	}
+	
+	/**
+	 * Mean SSIM with a Gaussian window, computed by separable filtering of
+	 * the local moments. The window is truncated at 3 sigma and the image
+	 * is extended by replicating its borders. The image is processed by
+	 * blocks of rows, and only the rows needed by the windows of one block
+	 * are filtered at a time.
+	 * @param x
+	 * 	reference pixels
+	 * @param y
+	 * 	test pixels
+	 * @param nx
+	 * 	width
+	 * @param ny
+	 * 	height
+	 * @param sigma
+	 * 	standard deviation of the window
+	 * @return the mean SSIM and the mean contrast-structure term
+	 */
+	public static double[] gaussianSSIM(float[] x, float[] y, int nx, int ny, double sigma) {
+		double[] kernel = gaussianKernel(sigma);
+		double ox = mean(x, nx, ny);
+		double oy = mean(y, nx, ny);
+		double[] acc = sumBlocks(nx, ny, (j0, j1) -> gaussianSSIM(x, y, nx, ny, kernel, ox, oy, j0, j1));
+		int n = nx * ny;
+		return new double[] {acc[0] / n, acc[1] / n};
+	}
+	
+	/**
+	 * Sums of the SSIM and of the contrast-structure term of the rows from j0
+	 * (included) to j1 (excluded), with the data centered at ox and oy
+	 */
+	private static double[] gaussianSSIM(float[] x, float[] y, int nx, int ny, double[] kernel, double ox, double oy, int j0, int j1) {
+		int radius = kernel.length / 2;
+		// Rows covered by the windows of the block, the borders are replicated
+		int ya = Math.max(0, j0 - radius);
+		int yb = Math.min(ny, j1 + radius);
+		// Moments of one row and moments of the block filtered along the rows
+		double[][] moments = new double[5][nx];
+		double[][] rows = new double[5][(yb - ya) * nx];
+		for (int j = ya; j < yb; j++) {
+			for (int i = 0; i < nx; i++) {
+				double a = x[i + j * nx] - ox;
+				double b = y[i + j * nx] - oy;
+				moments[0][i] = a;
+				moments[1][i] = b;
+				moments[2][i] = a * a;
+				moments[3][i] = b * b;
+				moments[4][i] = a * b;
+			}
+			for (int m = 0; m < 5; m++) {
+				double[] moment = moments[m];
+				double[] row = rows[m];
+				for (int i = 0; i < nx; i++) {
+					double sum = 0;
+					for (int k = -radius; k <= radius; k++)
+						sum += kernel[k + radius] * moment[Math.min(nx - 1, Math.max(0, i + k))];
+					row[i + (j - ya) * nx] = sum;
 				}
 			}
-			ssim/=n;
-			res.add(ssim);
-					
 		}
-		
-		
-		return res ;
+		double[] acc = new double[2];
+		double[] v = new double[5];
+		for (int j = j0; j < j1; j++) {
+			for (int i = 0; i < nx; i++) {
+				for (int m = 0; m < 5; m++) {
+					double[] row = rows[m];
+					double sum = 0;
+					for (int k = -radius; k <= radius; k++)
+						sum += kernel[k + radius] * row[i + (Math.min(ny - 1, Math.max(0, j + k)) - ya) * nx];
+					v[m] = sum;
+				}
+				add(acc, v[0] + ox, v[1] + oy, v[2] - v[0] * v[0], v[3] - v[1] * v[1], v[4] - v[0] * v[1]);
+			}
+		}
+		return acc;
+	}
+	
+	/**
+	 * Multi-scale SSIM. The contrast-structure term is measured at every
+	 * scale and the luminance only at the coarsest one, halving the image
+	 * between scales. Scales smaller than the Gaussian window are skipped
+	 * and the weights of the remaining ones are renormalised.
+	 * @param x
+	 * 	reference pixels
+	 * @param y
+	 * 	test pixels
+	 * @param nx
+	 * 	width
+	 * @param ny
+	 * 	height
+	 * @param sigma
+	 * 	standard deviation of the Gaussian window
+	 * @return the MS-SSIM of the images
+	 */
+	public static double msSSIM(float[] x, float[] y, int nx, int ny, double sigma) {
+		int size = gaussianKernel(sigma).length;
+		int scales = 0;
+		for (int w = nx, h = ny; scales < MS_WEIGHTS.length && Math.min(w, h) >= size; w /= 2, h /= 2)
+			scales++;
+		scales = Math.max(1, scales);
+		double total = 0;
+		for (int s = 0; s < scales; s++)
+			total += MS_WEIGHTS[s];
+		double msssim = 1;
+		for (int s = 0; s < scales; s++) {
+			double[] ssim = gaussianSSIM(x, y, nx, ny, sigma);
+			// Negative terms are clipped so that the fractional powers are defined
+			double term = s == scales - 1 ? ssim[0] : ssim[1];
+			msssim *= Math.pow(Math.max(term, 0), MS_WEIGHTS[s] / total);
+			if (s < scales - 1) {
+				x = downsample(x, nx, ny);
+				y = downsample(y, nx, ny);
+				nx /= 2;
+				ny /= 2;
+			}
+		}
+		return msssim;
+	}
+	
+	/**
+	 * Adds the SSIM and the contrast-structure term of one pixel
+	 */
+	private static void add(double[] acc, double mx, double my, double vx, double vy, double cxy) {
+		double cs = (2 * cxy + C2) / (vx + vy + C2);
+		acc[0] += (2 * mx * my + C1) / (mx * mx + my * my + C1) * cs;
+		acc[1] += cs;
+	}
+	
+	private static double mean(float[] x, int nx, int ny) {
+		double[] sum = sumBlocks(nx, ny, (j0, j1) -> {
+			double s = 0;
+			for (int p = j0 * nx; p < j1 * nx; p++)
+				s += x[p];
+			return new double[] {s};
+		});
+		return sum[0] / (nx * ny);
+	}
+	
+	/**
+	 * Normalised Gaussian kernel truncated at 3 sigma
+	 */
+	public static double[] gaussianKernel(double sigma) {
+		int radius = Math.max(1, (int) Math.ceil(3 * sigma));
+		double[] kernel = new double[2 * radius + 1];
+		double sum = 0;
+		for (int k = -radius; k <= radius; k++) {
+			kernel[k + radius] = Math.exp(-0.5 * k * k / (sigma * sigma));
+			sum += kernel[k + radius];
+		}
+		for (int k = 0; k < kernel.length; k++)
+			kernel[k] /= sum;
+		return kernel;
+	}
+	
+	/**
+	 * Halves the size of the image averaging blocks of 2x2 pixels
+	 */
+	private static float[] downsample(float[] x, int nx, int ny) {
+		int mx = nx / 2;
+		int my = ny / 2;
+		float[] res = new float[mx * my];
+		IntStream.range(0, my).parallel().forEach(j -> {
+			for (int i = 0; i < mx; i++) {
+				int p = 2 * i + 2 * j * nx;
+				res[i + j * mx] = (x[p] + x[p + 1] + x[p + nx] + x[p + nx + 1]) / 4;
+			}
+		});
+		return res;
 	}
 
 	@Override
@@ -152,4 +354,3 @@ public class SSIM extends AbstractLoss {
 		return "Valid";
 	}
 }
-
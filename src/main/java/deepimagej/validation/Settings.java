@@ -108,6 +108,9 @@ public class Settings implements PlugInFilter {
 		gd.addNumericField("Starting Sigma:", 1, 0);
 		gd.addMessage("SSIM", Title, Color.black);
 		gd.addNumericField("Window Size:", 1, 0);
+		gd.addNumericField("Gaussian Sigma:", SSIM.GAUSSIAN_SIGMA, 2);
+		gd.addMessage("F1", Title, Color.black);
+		gd.addNumericField("IoU threshold:", 0.5, 2);
 		gd.addMessage("Composed Function", Title, Color.black);
 		gd.addChoice("First loss of Composed Function:", name, name[0]);
 		gd.addNumericField("Coefficient:", 0, 2);
@@ -120,6 +123,8 @@ public class Settings implements PlugInFilter {
 		Constants setting = new Constants();
 		setting.sig_lap=gd.getNextNumber();
 		setting.wd_ssim=gd.getNextNumber();
+		setting.sig_ssim=gd.getNextNumber();
+		setting.iou_f1=gd.getNextNumber();
 		setting.w1_composed=gd.getNextNumber();
 		setting.w2_composed=gd.getNextNumber();
 		int index1 = gd.getNextChoiceIndex();
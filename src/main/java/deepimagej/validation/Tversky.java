@@ -72,25 +72,22 @@ public class Tversky extends AbstractLoss {
 		int nxr = reference.getWidth();
 		int nyr = reference.getHeight();
 		double alpha = 0.5, beta = 0.5; // coefficients that can be changed in the settings not implemtented
-			
-		ArrayList<Double> res = new ArrayList<Double>(); 	
-		
-	
-		int nzr = reference.getStack().getSize();
-		int nzt = test.getStack().getSize();
-		
-		for (int z=1; z<=Math.max(nzr, nzt); z++) {
-			int ir = Math.min(z, nzr);
-			int it = Math.min(z, nzt);
-			ImageProcessor ipt = test.getStack().getProcessor(it);
-			ImageProcessor ipr = reference.getStack().getProcessor(ir);
-			int n=0;
-			double s, g,TP = 0.0, tversky = 0.0, FP=0.0, smooth=1.0,FN=0.0;
-			for (int x = 0; x < nxr; x++) {
-				for (int y = 0; y < nyr; y++) {
-					
-					s =  ipr.getPixelValue(x, y);
-					g = ipt.getPixelValue(x, y);
+
+		return computeSlices(reference, test, (ipr, ipt) -> {
+			float[] r = getPixels(ipr);
+			float[] t = getPixels(ipt);
+			// Binary masks are reduced to the overlap counts of the labels 0 and 1
+			if (LabelContingency.isBinary(r, t)) {
+				LabelContingency table = new LabelContingency(r, t, nxr);
+				double tp = table.getOverlap(1, 1), fp = table.getOverlap(0, 1), fn = table.getOverlap(1, 0);
+				return new double[] {1 - (tp + 1.0) / (tp + alpha*fp + beta*fn + 1.0)};
+			}
+			// Partial TP, FP and FN of each block of rows
+			double[] sums = sumBlocks(nxr, nyr, (j0, j1) -> {
+				double s, g, TP = 0.0, FP = 0.0, FN = 0.0;
+				for (int p = j0 * nxr; p < j1 * nxr; p++) {
+					s = r[p];
+					g = t[p];
 					if (!Double.isNaN(g))
 						if (!Double.isNaN(s)) {
 							TP += g*s;
@@ -98,14 +95,12 @@ public class Tversky extends AbstractLoss {
 							FN+=s*(1-g);
 						}
 				}
-			}
-			tversky=(TP+smooth)/(TP+alpha*FP+beta*FN+smooth);
-			res.add(1-tversky);
-					
-		}
-		
-		
-		return res ;
+				return new double[] {TP, FP, FN};
+			});
+			double TP = sums[0], FP = sums[1], FN = sums[2], smooth = 1.0;
+			double tversky=(TP+smooth)/(TP+alpha*FP+beta*FN+smooth);
+			return new double[] {1-tversky};
+		});
 	}
 
 	@Override